@@ -4,28 +4,49 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 import javafx.scene.control.Alert;
 import no.ntnu.imt3281.ludo.gui.ServerListeners.*;
 import no.ntnu.imt3281.ludo.logic.messages.*;
 import no.ntnu.imt3281.ludo.server.ChatMessage;
+import no.ntnu.imt3281.ludo.server.RankingEntry;
 import no.ntnu.imt3281.ludo.server.TopTenList;
 
 import java.io.*;
 import java.net.ConnectException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.concurrent.ArrayBlockingQueue;
 
+/**
+ * Connection to the server.
+ * <p>
+ *     Messages start out as json lines. Unless the system property ludo.protocol is set to json, the client
+ *     asks the server for the binary protocol right after connecting, and both sides switch to length prefixed
+ *     CBOR frames once the server has answered. A server that does not know the binary protocol never answers,
+ *     so the client keeps using json.
+ * </p>
+ */
 public class ClientSocket {
     private static final int DEFAULT_PORT = 4567;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+    private static final boolean USE_BINARY = !"json".equals(System.getProperty("ludo.protocol"));
+    private static final int AVATAR_CACHE_SIZE = 64;
     private Socket connection = null;
     private boolean connected = false;
     private String userId = null;
     private String displayName = null;
-    protected BufferedWriter bw;
-    protected BufferedReader br;
+    protected DataOutputStream out;
+    protected DataInputStream in;
+    private final Object writeLock = new Object();     // messages are sent from several threads
+    private volatile boolean binary = false;           // true when the server has switched to the binary protocol
     private ResourceBundle i18Bundle;
 
     /**
@@ -41,6 +62,7 @@ public class ClientSocket {
     private RegisterResponseListener registerResponseListener = null;
     private ChatJoinResponseListener chatJoinResponseListener = null;
     private ArrayBlockingQueue<SentMessageResponseListener> sentMessageResponseListeners = new ArrayBlockingQueue<>(100);    // max of 100 chats at once
+    private ArrayBlockingQueue<OlderChatMessagesResponseListener> olderChatMessagesResponseListeners = new ArrayBlockingQueue<>(100);    // max of 100 chats at once
     private ChatRoomsListResponseListener chatRoomsListResponseListener = null;
     private UsersListResponseListener usersListResponseListener = null;
     private CreateGameResponseListener createGameResponseListener = null;
@@ -55,6 +77,17 @@ public class ClientSocket {
     private ArrayBlockingQueue<UserWantToViewProfileResponseListener> userWantToViewProfileResponseListeners = new ArrayBlockingQueue<>(100);
     private UserWantToEditProfileResponseListener userWantToEditProfileResponseListener = null;
     private LeaderboardResponseListener leaderboardResponseListener = null;
+    private RankingResponseListener rankingResponseListener = null;
+
+    // avatars by hash (with "#thumbnail" appended for thumbnails), only used by the thread listening to the server
+    private final LinkedHashMap<String, byte[]> avatars = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > AVATAR_CACHE_SIZE;
+        }
+    };
+    // profiles waiting for their avatar from the server
+    private final HashMap<String, ArrayList<UserWantToViewProfileResponse>> waitingForAvatar = new HashMap<>();
 
     public ClientSocket(){
         // for i18n
@@ -79,8 +112,7 @@ public class ClientSocket {
             if (connection == null || !connection.isConnected()) { //First connection
 
                 connection = new Socket(serverIP, port);
-                bw = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
-                br = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+                openStreams();
 
             } else if (connection.isConnected() && //If client is connected
                     (connection.getPort() != port //And either the port or the ip has changed.
@@ -88,8 +120,7 @@ public class ClientSocket {
                                                                                                                 // And connect to the new.
                 connection.close();
                 connection = new Socket(serverIP, port);
-                bw = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
-                br = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+                openStreams();
 
             }
 
@@ -106,6 +137,22 @@ public class ClientSocket {
         }
     }
 
+    /**
+     * Sets up the streams of a new connection and asks for the binary protocol.
+     * @throws IOException if the connection is lost
+     */
+    private void openStreams() throws IOException {
+        synchronized (writeLock) {
+            out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            binary = false;
+
+            if (USE_BINARY) {
+                writeJson(objectMapper.writeValueAsString(new UserWantsBinaryProtocol("UserWantsBinaryProtocol", "cbor")));
+            }
+        }
+    }
+
     /**
      * Close the connection to the server (if connected)
      */
@@ -130,19 +177,63 @@ public class ClientSocket {
             return;
 
         try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            String jsonMessage = objectMapper.writeValueAsString(message);  // json message to send
+            synchronized (writeLock) {
+                if (binary) {
+                    byte[] cborMessage = cborMapper.writeValueAsBytes(message);     // binary frame to send
+
+                    System.out.println("Sending message to server: " + message.getAction());
+
+                    out.writeInt(cborMessage.length);
+                    out.write(cborMessage);
+                    out.flush();
+                } else {
+                    String jsonMessage = objectMapper.writeValueAsString(message);  // json message to send
 
-            System.out.println("Sending message to server: " + jsonMessage);
+                    System.out.println("Sending message to server: " + jsonMessage);
 
-            bw.write(jsonMessage);          // write to outputstream
-            bw.newLine();
-            bw.flush();
+                    writeJson(jsonMessage);
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Writes a json message as a line and sends it.
+     * @param jsonMessage the message
+     * @throws IOException if the connection is lost
+     */
+    private void writeJson(String jsonMessage) throws IOException {
+        out.write(jsonMessage.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * Reads the next message from the server, as a json line or a binary frame depending on the protocol in use.
+     * @return the message
+     * @throws IOException if the connection is lost
+     */
+    private JsonNode readMessage() throws IOException {
+        if (binary) {
+            int length = in.readInt();
+            byte[] cborMessage = new byte[length];
+            in.readFully(cborMessage);
+            return cborMapper.readTree(cborMessage);
+        }
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Server closed the connection");
+            }
+            line.write(b);
+        }
+        return objectMapper.readTree(new String(line.toByteArray(), StandardCharsets.UTF_8));
+    }
+
     /**
      * Create own thread that listens to the server sending the client messages
      */
@@ -152,8 +243,11 @@ public class ClientSocket {
                 while (true) {
                     if (connected) {
                         try {
-                            final String inMessage = br.readLine();
+                            final JsonNode inMessage = readMessage();
                             handleMessagesFromServer(inMessage);
+                        } catch (EOFException e) {
+                            System.out.println("Server closed the connection");
+                            return;
                         } catch (IOException e) {
                             e.printStackTrace();
                         }
@@ -174,23 +268,26 @@ public class ClientSocket {
     }
 
     /**
-     * Gets messages (json) from the listener and deserializes them into the correct objects of type "Message"
+     * Gets messages from the listener and deserializes them into the correct objects of type "Message"
      *
-     * @param jsonMessage json message received from server
+     * @param jsonNode message received from server, read from json or CBOR
      */
-    private void handleMessagesFromServer(String jsonMessage) {
-        ObjectMapper objectMapper = new ObjectMapper();
-
+    private void handleMessagesFromServer(JsonNode jsonNode) {
         try {
-            JsonNode jsonNode = objectMapper.readTree(jsonMessage);
             String action = jsonNode.get("action").asText();
 
             if (!action.equals("Ping"))
-                System.out.println("Got message from server: " + jsonMessage);
+                System.out.println("Got message from server: " + jsonNode);
 
             switch (action) {
                 case "Ping":    // we don't want to do anything here.
                     return;
+                case "BinaryProtocolResponse":
+                    // everything after this is sent as binary frames, by both sides
+                    synchronized (writeLock) {
+                        binary = "cbor".equals(jsonNode.get("format").asText());
+                    }
+                    break;
                 case "LoginResponse":
                     LoginResponse message1 = new LoginResponse(action, jsonNode.get("response").asText(),
                             jsonNode.get("loginStatus").asBoolean(), jsonNode.get("userid").asText(), jsonNode.get("displayname").asText());
@@ -234,6 +331,16 @@ public class ClientSocket {
                             .filter(l -> l != null && l.equalsChatRoomId(message4.getChatroomname())).findFirst().orElse(null);
                     if (listener != null) listener.sentMessageResponseEvent(message4);
                     break;
+                case "OlderChatMessagesResponse":
+                    ArrayList<ChatMessage> olderChatlog = objectMapper.convertValue(jsonNode.get("chatlog"), new TypeReference <ArrayList<ChatMessage>>(){});
+                    OlderChatMessagesResponse olderMessages = new OlderChatMessagesResponse(action, jsonNode.get("chatroomname").asText(),
+                            olderChatlog.toArray(new ChatMessage[0]));
+
+                    // send the messages to the correct listener
+                    OlderChatMessagesResponseListener olderListener = olderChatMessagesResponseListeners.stream()
+                            .filter(l -> l != null && l.equalsChatRoomId(olderMessages.getChatroomname())).findFirst().orElse(null);
+                    if (olderListener != null) olderListener.olderChatMessagesResponseEvent(olderMessages);
+                    break;
                 case "ChatRoomsListResponse":
                     // we get the String[] list from the jackson node
                     ArrayNode chatRoomsNode = (ArrayNode) jsonNode.get("chatRoom");
@@ -339,12 +446,39 @@ public class ClientSocket {
                     UserWantToViewProfileResponse message16 = new UserWantToViewProfileResponse(action, jsonNode.get("userId").asText(),
                             jsonNode.get("displayName").asText(), jsonNode.get("imageString").binaryValue(), jsonNode.get("gamesPlayed").asInt(),
                             jsonNode.get("gamesWon").asInt(), jsonNode.get("message").asText());
+                    message16.setAvatarHash(jsonNode.hasNonNull("avatarHash") ? jsonNode.get("avatarHash").asText() : null);
+                    message16.setThumbnail(jsonNode.path("thumbnail").asBoolean());
 
-                    // send message to listener
-                    for(UserWantToViewProfileResponseListener listener8 : userWantToViewProfileResponseListeners){
-                        // if listener still exists and it waits to get a particular profile from the server
-                        if(listener8 != null && listener8.waitingForProfile(message16.getDisplayName())) {
-                            listener8.userWantToViewProfileResponseEvent(message16);
+                    // the avatar is fetched separately, unless we have it already
+                    if (message16.getAvatarHash() == null) {
+                        sendProfileToListeners(message16);
+                    } else {
+                        String key = avatarKey(message16.getAvatarHash(), message16.isThumbnail());
+                        byte[] avatar = avatars.get(key);
+                        if (avatar != null) {
+                            message16.setImageString(avatar);
+                            sendProfileToListeners(message16);
+                        } else {
+                            ArrayList<UserWantToViewProfileResponse> waiting = waitingForAvatar.computeIfAbsent(key, k -> new ArrayList<>());
+                            waiting.add(message16);
+                            if (waiting.size() == 1) {      // only ask once for each avatar
+                                sendMessageToServer(new UserWantsAvatar("UserWantsAvatar", message16.getAvatarHash(), message16.isThumbnail()));
+                            }
+                        }
+                    }
+                    break;
+                case "AvatarResponse":
+                    String avatarKey = avatarKey(jsonNode.get("avatarHash").asText(), jsonNode.path("thumbnail").asBoolean());
+                    byte[] avatar = jsonNode.get("imageString").binaryValue();
+                    if (avatar != null) {
+                        avatars.put(avatarKey, avatar);
+                    }
+
+                    ArrayList<UserWantToViewProfileResponse> waitingProfiles = waitingForAvatar.remove(avatarKey);
+                    if (waitingProfiles != null) {
+                        for (UserWantToViewProfileResponse profile : waitingProfiles) {
+                            profile.setImageString(avatar);
+                            sendProfileToListeners(profile);
                         }
                     }
                     break;
@@ -382,6 +516,14 @@ public class ClientSocket {
                     LeaderboardResponse message18 = new LeaderboardResponse(action, topPlayedList, topWonList);
                     leaderboardResponseListener.leaderboardResponseEvent(message18);
                     break;
+                case "RankingResponse":
+                    RankingEntry[] rankingEntries = objectMapper.convertValue(jsonNode.get("entries"), RankingEntry[].class);
+                    JsonNode rankedName = jsonNode.get("displayname");
+                    RankingResponse ranking = new RankingResponse(action, jsonNode.get("category").asText(),
+                            rankedName == null || rankedName.isNull() ? null : rankedName.asText(), jsonNode.get("rank").asInt(),
+                            jsonNode.get("total").asInt(), jsonNode.get("from").asInt(), rankingEntries);
+                    if (rankingResponseListener != null) rankingResponseListener.rankingResponseEvent(ranking);
+                    break;
                 case "ErrorMessageResponse":
                     // in case of an error message we just display a popup to the user
                     Alert alert = new Alert(Alert.AlertType.ERROR);
@@ -389,7 +531,7 @@ public class ClientSocket {
                     alert.setContentText(i18Bundle.getString(jsonNode.get("message").asText()));
                     break;
                 default:
-                    System.out.println("Json not recognized: " + jsonMessage);
+                    System.out.println("Json not recognized: " + jsonNode);
                     break;
             }
         } catch (IOException e) {
@@ -397,6 +539,24 @@ public class ClientSocket {
         }
     }
 
+    /**
+     * Send a profile to the listeners waiting for it
+     *
+     * @param message the profile, with avatar
+     */
+    private void sendProfileToListeners(UserWantToViewProfileResponse message) {
+        for(UserWantToViewProfileResponseListener listener8 : userWantToViewProfileResponseListeners){
+            // if listener still exists and it waits to get a particular profile from the server
+            if(listener8 != null && listener8.waitingForProfile(message.getDisplayName())) {
+                listener8.userWantToViewProfileResponseEvent(message);
+            }
+        }
+    }
+
+    private static String avatarKey(String avatarHash, boolean thumbnail) {
+        return thumbnail ? avatarHash + "#thumbnail" : avatarHash;
+    }
+
     /**
      * Get the ID of the account which the client has logged on with.
      *
@@ -450,6 +610,16 @@ public class ClientSocket {
         sentMessageResponseListeners.remove(listener);
     }
 
+    public void addOlderChatMessagesResponseListener(OlderChatMessagesResponseListener listener) {
+        if(!olderChatMessagesResponseListeners.contains(listener)){
+            olderChatMessagesResponseListeners.add(listener);
+        }
+    }
+
+    public void removeOlderChatMessagesResponseListener(OlderChatMessagesResponseListener listener) {
+        olderChatMessagesResponseListeners.remove(listener);
+    }
+
     public void addChatRoomsListResponseListener(ChatRoomsListResponseListener listener) {
         chatRoomsListResponseListener = listener;
     }
@@ -545,4 +715,8 @@ public class ClientSocket {
     public void addLeaderboardResponseListener(LeaderboardResponseListener listener){
         leaderboardResponseListener = listener;
     }
+
+    public void addRankingResponseListener(RankingResponseListener listener){
+        rankingResponseListener = listener;
+    }
 }
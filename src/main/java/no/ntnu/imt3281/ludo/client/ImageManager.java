@@ -3,6 +3,8 @@ package no.ntnu.imt3281.ludo.client;
 import no.ntnu.imt3281.ludo.Exceptions.InvalidImageException;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
@@ -11,8 +13,11 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Base64;
+import java.util.Iterator;
 
 public class ImageManager {
+    // 4096 x 4096, larger images are not decoded, as a few of them would use up the heap
+    public static final long MAX_PIXELS = 4096L * 4096L;
 
     /**
      * Check if path to a file is an image
@@ -73,6 +78,57 @@ public class ImageManager {
         return newFileBytes;
     }
 
+    /**
+     * Make a smaller copy of an image, keeping the aspect ratio.
+     * @param imageData the image, in any format ImageIO can read
+     * @param maxSize max width and height of the copy
+     * @return the copy as png, or null if the data is not an image, has more than {@link #MAX_PIXELS} pixels
+     *         or is already small enough
+     */
+    public static byte[] scaleImage(byte[] imageData, int maxSize) {
+        BufferedImage image;
+        // the size is read from the header, so a huge image is refused before it is decoded
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;        // not an image
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > MAX_PIXELS || (width <= maxSize && height <= maxSize)) {
+                    return null;    // too large to decode, or no need to scale it
+                }
+                image = reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+
+        double scale = Math.min((double) maxSize / image.getWidth(), (double) maxSize / image.getHeight());
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ImageIO.write(scaled, "png", bos);
+            return bos.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     /**
      * Convert an array of bytes to a JavaFX image object
      * @param imageData the byte array to decode
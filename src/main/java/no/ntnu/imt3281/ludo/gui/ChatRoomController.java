@@ -13,6 +13,7 @@ import javafx.scene.input.KeyEvent;
 import javafx.scene.text.Font;
 import no.ntnu.imt3281.ludo.client.ClientSocket;
 import no.ntnu.imt3281.ludo.gui.ServerListeners.ChatJoinNewUserResponseListener;
+import no.ntnu.imt3281.ludo.gui.ServerListeners.OlderChatMessagesResponseListener;
 import no.ntnu.imt3281.ludo.gui.ServerListeners.SentMessageResponseListener;
 import no.ntnu.imt3281.ludo.gui.ServerListeners.UserLeftChatRoomResponseListener;
 import no.ntnu.imt3281.ludo.logic.messages.*;
@@ -24,7 +25,7 @@ import java.time.ZoneOffset;
 import java.util.*;
 
 public class ChatRoomController implements SentMessageResponseListener, ChatJoinNewUserResponseListener,
-        UserLeftChatRoomResponseListener {
+        UserLeftChatRoomResponseListener, OlderChatMessagesResponseListener {
     @FXML
     private TextArea chatLogText;
 
@@ -34,11 +35,16 @@ public class ChatRoomController implements SentMessageResponseListener, ChatJoin
     @FXML
     private Button messageButton;
 
+    @FXML
+    private Button olderMessagesButton;
+
     @FXML
     private ListView<String> userList;
 
     private ClientSocket clientSocket;
     private String chatRoomName;
+    private long oldestMessageTime = Long.MAX_VALUE;   // time of the oldest message shown, older messages are asked for from here
+    private long oldestMessageId = Long.MAX_VALUE;     // id of the oldest message shown, for messages sent in the same second
 
     ObservableList<String> usersInChatRoom;
 
@@ -54,20 +60,18 @@ public class ChatRoomController implements SentMessageResponseListener, ChatJoin
         clientSocket.addSentMessageResponseListener(this);
         clientSocket.addChatJoinNewUserResponseListener(this);
         clientSocket.addUserLeftChatRoomResponseListener(this);
+        clientSocket.addOlderChatMessagesResponseListener(this);
 
         // add chat history to the chat
-        for(int i = 0; i < chatLog.length; i++) {
-            ChatMessage message = chatLog[i];
-
-            Date date = new Date(message.getTimeSent() * 1000L);
-            SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-            sdf.setTimeZone(TimeZone.getTimeZone("GMT+0"));
-            String time = sdf.format(date);
-
-            Platform.runLater(() -> {
-                chatLogText.appendText(time + " - " + message.getdisplayName() + ": " + message.getChatMessage() + "\t\n");
-            });
+        if (chatLog.length > 0) {
+            oldestMessageTime = chatLog[0].getTimeSent();
+            oldestMessageId = chatLog[0].getId();
         }
+        String history = formatChatLog(chatLog);
+        Platform.runLater(() -> {
+            chatLogText.appendText(history);
+            olderMessagesButton.setDisable(chatLog.length == 0);
+        });
         // add all online users in a list
         Platform.runLater(new Runnable() {
             @Override
@@ -93,6 +97,34 @@ public class ChatRoomController implements SentMessageResponseListener, ChatJoin
         });
     }
 
+    /**
+     * Formats chat history, one line per message
+     * @param chatLog the messages, oldest first
+     * @return the lines of the messages
+     */
+    private String formatChatLog(ChatMessage[] chatLog) {
+        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+        sdf.setTimeZone(TimeZone.getTimeZone("GMT+0"));
+
+        StringBuilder lines = new StringBuilder();
+        for (ChatMessage message : chatLog) {
+            String time = sdf.format(new Date(message.getTimeSent() * 1000L));
+            lines.append(time).append(" - ").append(message.getdisplayName()).append(": ").append(message.getChatMessage()).append("\t\n");
+        }
+        return lines.toString();
+    }
+
+    /**
+     * Called when user presses "Older messages" button to see the messages before the ones shown
+     *
+     * @param event
+     */
+    @FXML
+    void olderMessagesButton(ActionEvent event) {
+        olderMessagesButton.setDisable(true);   // enabled again when the messages arrive
+        clientSocket.sendMessageToServer(new UserWantsOlderChatMessages("UserWantsOlderChatMessages", chatRoomName, oldestMessageTime, oldestMessageId));
+    }
+
     /**
      * Called when user presses "Send" button to send message
      *
@@ -171,6 +203,27 @@ public class ChatRoomController implements SentMessageResponseListener, ChatJoin
         });
     }
 
+    /**
+     * When older messages in this chat arrive from the server, they are put before the messages shown
+     *
+     * @param response the page of older messages, oldest first
+     */
+    @Override
+    public void olderChatMessagesResponseEvent(OlderChatMessagesResponse response) {
+        ChatMessage[] chatLog = response.getChatlog();
+        String history = formatChatLog(chatLog);
+
+        Platform.runLater(() -> {
+            if (chatLog.length > 0) {
+                oldestMessageTime = chatLog[0].getTimeSent();
+                oldestMessageId = chatLog[0].getId();
+                chatLogText.insertText(0, history);
+            }
+            // no more messages when the server has none left
+            olderMessagesButton.setDisable(chatLog.length == 0);
+        });
+    }
+
     /**
      * Message when we or another user joined the chat room (used for keeping track of people in chat)
      * @param response
@@ -205,6 +258,7 @@ public class ChatRoomController implements SentMessageResponseListener, ChatJoin
             clientSocket.removeSentMessageResponseListener(ChatRoomController.this);
             clientSocket.removeChatJoinNewUserResponseListener(ChatRoomController.this);
             clientSocket.removeUserLeftChatRoomResponseListener(ChatRoomController.this);
+            clientSocket.removeOlderChatMessagesResponseListener(ChatRoomController.this);
 
             // disconnect user from chat room
             clientSocket.sendMessageToServer(new UserLeftChatRoom("UserLeftChatRoom", clientSocket.getUserId(), chatRoomName));
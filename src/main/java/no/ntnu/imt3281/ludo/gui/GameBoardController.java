@@ -233,7 +233,7 @@ public class GameBoardController implements UserLeftGameResponseListener, GameHa
         // add it to our list and get their profile picture
         for (int i = this.players.length; i < players.length; i++) {
             ludoGame.addPlayer(players[i]);
-            clientSocket.sendMessageToServer(new UserWantToViewProfile("UserWantToViewProfile", players[i]));
+            clientSocket.sendMessageToServer(new UserWantToViewProfile("UserWantToViewProfile", players[i], true));
         }
 
         // get our id of the ludogame
@@ -1,5 +1,6 @@
 package no.ntnu.imt3281.ludo.gui;
 
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
@@ -12,23 +13,40 @@ import javafx.scene.layout.StackPane;
 import javafx.scene.text.Font;
 import no.ntnu.imt3281.ludo.client.ClientSocket;
 import no.ntnu.imt3281.ludo.gui.ServerListeners.LeaderboardResponseListener;
+import no.ntnu.imt3281.ludo.gui.ServerListeners.RankingResponseListener;
 import no.ntnu.imt3281.ludo.logic.messages.LeaderboardResponse;
+import no.ntnu.imt3281.ludo.logic.messages.RankingResponse;
+import no.ntnu.imt3281.ludo.logic.messages.UserWantsRanking;
 import no.ntnu.imt3281.ludo.server.TopTenList;
 
-public class LeaderboardController implements LeaderboardResponseListener {
+import java.util.ResourceBundle;
+
+public class LeaderboardController implements LeaderboardResponseListener, RankingResponseListener {
     @FXML
     private SplitPane splitPane;
     @FXML
     private ListView<TopTenList.WonEntry> topWinsList;
     @FXML
     private ListView<TopTenList.PlayedEntry> topPlaysList;
+    @FXML
+    private Label ownRankText;
+    @FXML
+    private ResourceBundle resources;
+
+    private int ownWinsRank = 0;    // 0 until the server has told us
+    private int ownPlaysRank = 0;
 
     /**
-     * Setup necessary stuff for this class
+     * Setup necessary stuff for this class, and ask the server where this user is ranked
      * @param clientSocket
      */
     public void setup(ClientSocket clientSocket){
         clientSocket.addLeaderboardResponseListener(this);
+        clientSocket.addRankingResponseListener(this);
+
+        // only the rank is needed, not the players around us
+        clientSocket.sendMessageToServer(new UserWantsRanking("UserWantsRanking", "won", clientSocket.getDisplayName(), 0, 0));
+        clientSocket.sendMessageToServer(new UserWantsRanking("UserWantsRanking", "played", clientSocket.getDisplayName(), 0, 0));
     }
 
     /**
@@ -120,4 +138,23 @@ public class LeaderboardController implements LeaderboardResponseListener {
         ObservableList<TopTenList.PlayedEntry> playsItems = FXCollections.observableArrayList(response.getToptenplays());
         topPlaysList.setItems(playsItems);
     }
+
+    /**
+     * When we got our own rank in one of the rankings from the server
+     * @param response
+     */
+    @Override
+    public void rankingResponseEvent(RankingResponse response) {
+        Platform.runLater(() -> {
+            if ("won".equals(response.getCategory())) {
+                ownWinsRank = response.getRank();
+            } else {
+                ownPlaysRank = response.getRank();
+            }
+
+            ownRankText.setText(resources.getString("leaderboards.yourRank") + "  " +
+                    resources.getString("leaderboards.wins") + ": " + (ownWinsRank > 0 ? "#" + ownWinsRank : "-") + "   " +
+                    resources.getString("leaderboard.plays") + ": " + (ownPlaysRank > 0 ? "#" + ownPlaysRank : "-"));
+        });
+    }
 }
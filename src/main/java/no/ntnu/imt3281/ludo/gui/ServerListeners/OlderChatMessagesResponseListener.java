@@ -0,0 +1,7 @@
+package no.ntnu.imt3281.ludo.gui.ServerListeners;
+
+import no.ntnu.imt3281.ludo.logic.messages.OlderChatMessagesResponse;
+
+public interface OlderChatMessagesResponseListener extends EqualsChatRoomId{
+    void olderChatMessagesResponseEvent(OlderChatMessagesResponse response);
+}
@@ -0,0 +1,7 @@
+package no.ntnu.imt3281.ludo.gui.ServerListeners;
+
+import no.ntnu.imt3281.ludo.logic.messages.RankingResponse;
+
+public interface RankingResponseListener {
+    void rankingResponseEvent(RankingResponse response);
+}
@@ -59,9 +59,6 @@ public class ViewProfileController implements UserWantToEditProfileResponseListe
     TextInputDialog displayNameDialog;
     Dialog<Pair<String, String>> passwordDialog;
 
-    // we save the image in form of bytes as well
-    byte[] imageString;
-
     @FXML
     public void initialize() {
         Locale locale = Locale.getDefault();
@@ -82,7 +79,6 @@ public class ViewProfileController implements UserWantToEditProfileResponseListe
             // if user has set own image, else we use default
             if (response.getImageString() != null) {
                 Image image = ImageManager.convertBytesToImage(response.getImageString());
-                imageString = response.getImageString();
                 // check that it decoded without problems
                 if (image != null) {
                     avatarImage.setImage(image);
@@ -244,9 +240,9 @@ public class ViewProfileController implements UserWantToEditProfileResponseListe
                         responseMessage.setStyle("-fx-fill: black");
                         responseMessage.setText(i18Bundle.getString("msg.waitingForServer"));
                     });
-                    // send message to server
+                    // send message to server, without an image the avatar stays as it is
                     clientSocket.sendMessageToServer(new UserWantToEditProfile("UserWantToEditProfile",
-                            clientSocket.getDisplayName(), imageString, newPasswordText));
+                            clientSocket.getDisplayName(), null, newPasswordText));
                     event.consume();
                     return;
                 }
@@ -303,8 +299,8 @@ public class ViewProfileController implements UserWantToEditProfileResponseListe
                     // disable button until we have received answer
                     okButton.setDisable(true);
                     displayNameDialog.setContentText(i18Bundle.getString("msg.waitingForServer"));
-                    // send message to server
-                    clientSocket.sendMessageToServer(new UserWantToEditProfile("UserWantToEditProfile", textInput, imageString, ""));
+                    // send message to server, without an image the avatar stays as it is
+                    clientSocket.sendMessageToServer(new UserWantToEditProfile("UserWantToEditProfile", textInput, null, ""));
                     event.consume();
                     return;
 
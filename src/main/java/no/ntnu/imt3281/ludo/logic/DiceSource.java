@@ -0,0 +1,60 @@
+package no.ntnu.imt3281.ludo.logic;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Where {@link Ludo#throwDice()} gets its numbers from.
+ * <p>
+ *     Games use {@link #random()} unless told otherwise. A game given {@link #seeded(long)} with the same seed,
+ *     and the same moves, plays out the same way every time. A game given {@link #recorded(int...)} throws exactly
+ *     the numbers given, e.g. the ones a {@link DiceListener} saw during a real game, so that game can be replayed.
+ * </p>
+ */
+public interface DiceSource {
+
+    /**
+     * @return the next number thrown, from 1 to 6
+     */
+    int nextThrow();
+
+    /**
+     * @return a source that throws random numbers, using the random generator of the calling thread
+     */
+    static DiceSource random() {
+        return () -> ThreadLocalRandom.current().nextInt(1, 7);
+    }
+
+    /**
+     * @param seed the seed
+     * @return a source that throws the same numbers every time it is made with the same seed
+     */
+    static DiceSource seeded(long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        return () -> random.nextInt(1, 7);
+    }
+
+    /**
+     * @param numbers the numbers to throw, in order
+     * @return a source that throws the given numbers, and then throws IllegalStateException when there are no more
+     */
+    static DiceSource recorded(int... numbers) {
+        for (int number : numbers) {
+            if (number < 1 || number > 6) {
+                throw new IllegalArgumentException("Not a number on a die: " + number);
+            }
+        }
+        int[] copy = numbers.clone();
+        return new DiceSource() {
+            private int next = 0;
+
+            @Override
+            public int nextThrow() {
+                if (next == copy.length) {
+                    throw new IllegalStateException("All " + copy.length + " recorded throws are used");
+                }
+                return copy[next++];
+            }
+        };
+    }
+}
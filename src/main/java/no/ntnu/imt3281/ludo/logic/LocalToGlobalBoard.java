@@ -36,4 +36,14 @@ public class LocalToGlobalBoard {
             39, 40, 41, 42, 43, 44, 45, 46, 47, 48, 49, 50, 51, 52, 53, 54, 55,
             86, 87, 88, 89, 90, 91
     };
+
+    /**
+     * The boards above by player ID, [RED, BLUE, YELLOW, GREEN]
+     */
+    final static int[][] BOARDS = {RED_BOARD, BLUE_BOARD, YELLOW_BOARD, GREEN_BOARD};
+
+    /**
+     * Number of global positions, from 0 to 91
+     */
+    final static int SQUARES = 92;
 }
@@ -4,7 +4,6 @@ import no.ntnu.imt3281.ludo.Exceptions.NoRoomForMorePlayersException;
 import no.ntnu.imt3281.ludo.Exceptions.NotEnoughPlayersException;
 
 import java.util.Arrays;
-import java.util.Random;
 
 public class Ludo {
     private String gameid;
@@ -15,6 +14,11 @@ public class Ludo {
     final static int YELLOW = 2;
     final static int GREEN = 3;
 
+    /**
+     * Max number of moves {@link #legalMoves(int[])} can give, one for each piece
+     */
+    public final static int MAX_MOVES = 4;
+
     final static String INACTIVE_PLAYER = "inactive";       // todo: remember to check that no player actually can register as this name
 
     final static String GAME_STATE_CREATED = "Created";
@@ -26,6 +30,14 @@ public class Ludo {
     private String[] players = new String[4];       // [0] = RED, [1] = BLUE, [2] = YELLOW, [3] = GREEN
     private boolean[] activePlayers = new boolean[4];     // same indexing as line above. default = true
     private int[][] piecesPosition = new int[4][4];       // [playerID][pieceID] = position of piece
+    private int[][] occupancy = new int[4][LocalToGlobalBoard.SQUARES];   // [playerID][global position] = pieces there
+    private int[] towers = new int[4];                    // [playerID] = global positions with 2+ pieces, not counting home
+
+    private int playerCount = 0;                          // players that joined, active or not
+    private int activeCount = 0;                          // players that are active
+    private String[] playerNames = new String[0];         // returned by getPlayers(), replaced when players change
+    private String[] activePlayerNames = new String[0];   // returned by getActivePlayers(), replaced when players change
+    private DiceSource dice = DiceSource.random();        // used by throwDice()
 
     private int playerTurn = 0;                         // whose turn is it? default = red
     private int timesRolled = 0;                          // times of dices rolled in a player's turn
@@ -45,9 +57,12 @@ public class Ludo {
     public Ludo(){
         // all players are "inactive" on start here
         Arrays.fill(activePlayers, false);
+        playersChanged();
         // all pieces start on local position 0
         for (int[] player: piecesPosition)
             Arrays.fill(player, 0);
+        for (int player = 0; player < 4; player++)
+            occupancy[player][userGridToLudoBoardGrid(player, 0)] = 4;
 
         // sets the game state
         if (gameState == null) {
@@ -78,9 +93,12 @@ public class Ludo {
         for(int i = 0; i < 4; i++){
             activePlayers[i] = players[i] != null;
         }
+        playersChanged();
         // all pieces start on local position 0
         for (int[] player: piecesPosition)
             Arrays.fill(player, 0);
+        for (int player = 0; player < 4; player++)
+            occupancy[player][userGridToLudoBoardGrid(player, 0)] = 4;
 
         // sets the game state
         if (gameState == null) {
@@ -128,7 +146,7 @@ public class Ludo {
      * @return number of players (1-4)
      */
     int nrOfPlayers(){
-        return (int)Arrays.stream(players).filter(n -> n != null).count();
+        return playerCount;
     }
 
     /**
@@ -166,26 +184,47 @@ public class Ludo {
 
     /**
      * Returns all players in the game
+     * <p>
+     *     The same array is returned until a player joins or leaves, so it must not be changed.
+     * </p>
      * @return string[] of all players
      */
     public String[] getPlayers() {
-        return Arrays.stream(players).filter(player -> player != null).toArray(String[]::new);
+        return playerNames;
     }
 
     /**
      * Returns names of all players who are active
+     * <p>
+     *     The same array is returned until a player joins or leaves, so it must not be changed.
+     * </p>
      * @return string[] of all active players
      */
     public String[] getActivePlayers(){
-        String[] arr = new String[4];
+        return activePlayerNames;
+    }
 
-        for(int i = 0; i < getPlayers().length; i++) {
-            if (activePlayers[i]) {
-                arr[i] = getPlayerName(i);
-            }
+    /**
+     * Update the player counts and names after a player joined or left.
+     */
+    private void playersChanged(){
+        playerCount = 0;
+        activeCount = 0;
+        for(int i = 0; i < 4; i++){
+            if(players[i] != null) playerCount++;
+            if(players[i] != null && activePlayers[i]) activeCount++;
         }
 
-        return Arrays.stream(arr).filter(player -> player != null).toArray(String[]::new);
+        String[] names = new String[playerCount];
+        String[] activeNames = new String[activeCount];
+        int active = 0;
+        for(int i = 0, player = 0; i < 4; i++){
+            if(players[i] == null) continue;
+            names[player++] = players[i];
+            if(activePlayers[i]) activeNames[active++] = players[i];
+        }
+        playerNames = names;
+        activePlayerNames = activeNames;
     }
 
     /**
@@ -201,6 +240,7 @@ public class Ludo {
 
         activePlayers[nrOfPlayers()] = true;
         players[nrOfPlayers()] = playerName;
+        playersChanged();
 
         //Update game state if game was created without players
         if (gameState == GAME_STATE_CREATED) {
@@ -218,6 +258,7 @@ public class Ludo {
      */
     public void removePlayer(String playerName){
         activePlayers[getPlayerID(playerName)] = false;
+        playersChanged();
         //Send event that a user left the game.
         if (playerListener != null) {
             playerListener.playerStateChanged(new PlayerEvent(this, getPlayerID(playerName), PlayerEvent.LEFTGAME));
@@ -237,6 +278,7 @@ public class Ludo {
      */
     public void removePlayer(int playerId) {
         activePlayers[playerId] = false;
+        playersChanged();
         //Send event that a user left the game.
         if (playerListener != null) {
             playerListener.playerStateChanged(new PlayerEvent(this, playerId, PlayerEvent.LEFTGAME));
@@ -253,8 +295,7 @@ public class Ludo {
      * @return number of active players
      */
     public int activePlayers(){
-        // if has player and player is active
-        return (int)Arrays.stream(players).filter(n -> n != null && activePlayers[getPlayerID(n)]).count();
+        return activeCount;
     }
 
     /**
@@ -308,6 +349,14 @@ public class Ludo {
         }
     }
 
+    /**
+     * Set where {@link #throwDice()} gets its numbers from, e.g. a seeded or recorded source to replay a game
+     * @param dice the source to use for all later throws
+     */
+    public void setDiceSource(DiceSource dice){
+        this.dice = dice;
+    }
+
     /**
      * Throw a random die
      * @return number from the die thrown
@@ -319,9 +368,8 @@ public class Ludo {
             gameState = GAME_STATE_STARTED;
         }
 
-        Random rand = new Random();
         // get number between 1 and 6
-        int randThrow = rand.nextInt(6) + 1;
+        int randThrow = dice.nextThrow();
         throwDice(randThrow);
         return randThrow;
     }
@@ -335,8 +383,7 @@ public class Ludo {
      * @param rolled the number that was rolled
      */
     public int throwDice(int rolled){
-        boolean allPiecesAtHome = Arrays.stream(piecesPosition[playerTurn]).allMatch(n -> n == 0);
-        int piecesAtHome = (int)Arrays.stream(piecesPosition[playerTurn]).filter(n -> n == 0).count();
+        boolean allPiecesAtHome = occupancy[playerTurn][userGridToLudoBoardGrid(playerTurn, 0)] == 4;
 
         timesRolled++;
         diceRolled = rolled;
@@ -359,6 +406,7 @@ public class Ludo {
             if(timesRolled == 3 && rolled != 6){
 
                 nextPlayerTurn();
+                return rolled;  // the next player has not thrown yet
             }
 
         } else {
@@ -373,8 +421,7 @@ public class Ludo {
             // 2. piece is home and rolled six.
             // If none of the pieces can do that, we go to next player's turn.
             for(int i = 0; i < 4; i++){
-                int piecePos = piecesPosition[playerTurn][i];
-                if((piecePos != 59 && piecePos + rolled <= 59 && piecePos != 0) || (rolled == 6 && piecePos == 0)){
+                if(moveTarget(piecesPosition[playerTurn][i], rolled) != -1){
                     break;
                 } else if (i == 3){
                     nextPlayerTurn();
@@ -382,8 +429,8 @@ public class Ludo {
                 }
             }
 
-            //Skip turn if the player is blocked.
-            if (!towersBlocksOpponents(playerTurn, rolled)) {
+            //Skip turn if towers block every piece that could move.
+            if (!hasLegalMove()) {
                 nextPlayerTurn();
                 return rolled;
             }
@@ -419,100 +466,145 @@ public class Ludo {
         }
 
         // if no piece can be moved, go to next player's turn
-        if(pieceToBeMoved == -1){
+        if(pieceToBeMoved == -1 || !isLegalMove(playerID, pieceToBeMoved, from, to)){
             //nextPlayerTurn();
             return false;
         }
 
         // move home => start position
-        if(diceRolled == 6 && from == 0 && to == 1){
-            piecesPosition[playerID][pieceToBeMoved] = to;
+        if(from == 0){
+            setPosition(playerID, pieceToBeMoved, to);
             // call event listener
             if(pieceListener != null){
                 pieceListener.pieceMoved(new PieceEvent(this, playerID, pieceToBeMoved, from, to));
             }
 
-            piecesPosition[playerID][pieceToBeMoved] = to;
             int playerUnder = getOnTopOfOtherPlayer(playerID, pieceToBeMoved);
 
             // check if piece ontop of another player
             if(playerUnder != -1){
-                int playerPosition = getPosition(playerID, pieceToBeMoved);
-                // get the specific piece that is under current player
-                for(int piece = 0; piece < 4; piece++){
-                    int otherPlayerPosition = getPosition(playerUnder, piece);
-                    if(userGridToLudoBoardGrid(playerID, playerPosition) == userGridToLudoBoardGrid(playerUnder, otherPlayerPosition)){
-                        // send him back home!
-                        piecesPosition[playerUnder][piece] = 0;
-                        // call event listener
-                        if(pieceListener != null){
-                            pieceListener.pieceMoved(new PieceEvent(this, playerUnder, piece, otherPlayerPosition, 0));
-                        }
-                    }
-                }
+                sendHome(playerUnder, userGridToLudoBoardGrid(playerID, to));
             }
 
             nextPlayerTurn();
             return true;
         }
 
-        // move over the board limit
-        if(to > 59){
-            //nextPlayerTurn();
-            return false;
-        }
-
         // move anywhere else
-        if(from + diceRolled == to){
-            if(pieceBlockedByTower(playerID, diceRolled, pieceToBeMoved)) {
-                return false;
-            }
+        setPosition(playerID, pieceToBeMoved, to);
+        int playerUnder = getOnTopOfOtherPlayer(playerID, pieceToBeMoved);
 
-            piecesPosition[playerID][pieceToBeMoved] = to;
-            int playerUnder = getOnTopOfOtherPlayer(playerID, pieceToBeMoved);
+        // call event listener
+        if(pieceListener != null){
+            pieceListener.pieceMoved(new PieceEvent(this, playerID, pieceToBeMoved, from, to));
+        }
 
-            // call event listener
-            if(pieceListener != null){
-                pieceListener.pieceMoved(new PieceEvent(this, playerID, pieceToBeMoved, from, to));
-            }
+        // check if piece ontop of another player
+        if(playerUnder != -1){
+            sendHome(playerUnder, userGridToLudoBoardGrid(playerID, to));
+        }
 
-            // check if piece ontop of another player
-            if(playerUnder != -1){
-                int playerPosition = getPosition(playerID, pieceToBeMoved);
-                // get the specific piece that is under current player
-                for(int piece = 0; piece < 4; piece++){
-                    int otherPlayerPosition = getPosition(playerUnder, piece);
-                    if(userGridToLudoBoardGrid(playerID, playerPosition) == userGridToLudoBoardGrid(playerUnder, otherPlayerPosition)){
-                        // send him back home!
-                        piecesPosition[playerUnder][piece] = 0;
-                        // call event listener
-                        if(pieceListener != null){
-                            pieceListener.pieceMoved(new PieceEvent(this, playerUnder, piece, otherPlayerPosition, 0));
-                        }
-                    }
-                }
-            }
 
+        // if did not throw 6, go to next player
+        if(diceRolled != 6){
+            nextPlayerTurn();
+        }
 
-            // if did not throw 6, go to next player
-            if(diceRolled != 6){
-                nextPlayerTurn();
-            }
+        checkIfGameIsDone();
 
-            checkIfGameIsDone();
+        return true;
+    }
 
-            return true;
+    /**
+     * Get the moves the active player can make with the dice that was rolled.
+     * <p>
+     *     The moves are written as from/to pairs of local positions into the given buffer,
+     *     [from0, to0, from1, to1, ...], so the same buffer can be used for every turn.
+     *     Pieces on the same position give one move. Each move is accepted by {@link #movePiece(int, int, int)}.
+     * </p>
+     * @param moves buffer for the moves, at least 2 * {@link #MAX_MOVES} long
+     * @return the number of moves, 0 if the dice has not been thrown or no piece can move
+     */
+    public int legalMoves(int[] moves){
+        if(diceRolled == -1){
+            return 0;
         }
 
-        if(timesRolled == 3) {
-            //nextPlayerTurn();
+        int count = 0;
+        for(int piece = 0; piece < 4; piece++){
+            int from = piecesPosition[playerTurn][piece];
+            int to = moveTarget(from, diceRolled);
+            if(to == -1 || !isFirstPieceAt(playerTurn, piece) || !isLegalMove(playerTurn, piece, from, to)){
+                continue;
+            }
+            moves[count * 2] = from;
+            moves[count * 2 + 1] = to;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Check if a piece may be moved. Used both to make moves and to find them.
+     * @param playerID the ID of the player
+     * @param pieceID the ID of the piece
+     * @param from the local position of the piece
+     * @param to the local position to move to
+     * @return if it is the player's turn, and the move follows the rules for the dice that was rolled
+     */
+    private boolean isLegalMove(int playerID, int pieceID, int from, int to){
+        if(playerID != playerTurn || to != moveTarget(from, diceRolled)){
             return false;
         }
+        // a piece leaving home can not be blocked, anything else can be blocked by a tower
+        return from == 0 || !pieceBlockedByTower(playerID, diceRolled, pieceID);
+    }
+
+    /**
+     * Get where a piece would end up, not counting towers.
+     * <p>
+     *     A piece needs a 6 to leave home, and the exact number of eyes to reach the finish (59).
+     * </p>
+     * @param from the local position of the piece
+     * @param rolled the number that was rolled
+     * @return the local position to move to, or -1 if the piece can not move
+     */
+    private static int moveTarget(int from, int rolled){
+        if(rolled < 1){
+            return -1;
+        }
+        if(from == 0){
+            return rolled == 6 ? 1 : -1;
+        }
+        return from != 59 && from + rolled <= 59 ? from + rolled : -1;
+    }
 
-        //nextPlayerTurn();
+    /**
+     * @return true if the active player can move any piece with the dice that was rolled
+     */
+    private boolean hasLegalMove(){
+        for(int piece = 0; piece < 4; piece++){
+            int from = piecesPosition[playerTurn][piece];
+            int to = moveTarget(from, diceRolled);
+            if(to != -1 && isLegalMove(playerTurn, piece, from, to)){
+                return true;
+            }
+        }
         return false;
     }
 
+    /**
+     * @return true if no piece with a lower ID is on the same position
+     */
+    private boolean isFirstPieceAt(int playerID, int pieceID){
+        for(int piece = 0; piece < pieceID; piece++){
+            if(piecesPosition[playerID][piece] == piecesPosition[playerID][pieceID]){
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Convert local Player position to global Board positions
      * @param playerID the id of the player
@@ -520,20 +612,65 @@ public class Ludo {
      * @return boardlocation or -1 if not found
      */
     public int userGridToLudoBoardGrid(int playerID, int position){
-        switch (playerID){
-            case RED:
-                return LocalToGlobalBoard.RED_BOARD[position];
-            case BLUE:
-                return LocalToGlobalBoard.BLUE_BOARD[position];
-            case YELLOW:
-                return LocalToGlobalBoard.YELLOW_BOARD[position];
-            case GREEN:
-                return LocalToGlobalBoard.GREEN_BOARD[position];
-            default:
-                return -1;
+        if(playerID < RED || playerID > GREEN)
+            return -1;
+        return LocalToGlobalBoard.BOARDS[playerID][position];
+    }
+
+    /**
+     * Move a piece and keep the occupancy table up to date.
+     * <p>
+     *     Every change of piecesPosition must go through here.
+     * </p>
+     * @param playerID the ID of the player
+     * @param pieceID the ID of the piece
+     * @param to the local position to move to
+     */
+    private void setPosition(int playerID, int pieceID, int to){
+        int[] board = LocalToGlobalBoard.BOARDS[playerID];
+        int from = piecesPosition[playerID][pieceID];
+
+        // pieces at home (local 0) never make a tower
+        if(--occupancy[playerID][board[from]] == 1 && from != 0)
+            towers[playerID]--;
+        if(++occupancy[playerID][board[to]] == 2 && to != 0)
+            towers[playerID]++;
+
+        piecesPosition[playerID][pieceID] = to;
+    }
+
+    /**
+     * Send all pieces of a player on a global position back home.
+     * @param playerID the ID of the player whose pieces were stomped on
+     * @param square the global position
+     */
+    private void sendHome(int playerID, int square){
+        for(int piece = 0; piece < 4; piece++){
+            int position = getPosition(playerID, piece);
+            if(userGridToLudoBoardGrid(playerID, position) == square){
+                // send him back home!
+                setPosition(playerID, piece, 0);
+                // call event listener
+                if(pieceListener != null){
+                    pieceListener.pieceMoved(new PieceEvent(this, playerID, piece, position, 0));
+                }
+            }
         }
     }
 
+    /**
+     * Get the global position of the tower a piece is part of, two or more pieces of the same player
+     * on the same position outside home.
+     * @param playerID the ID of the player
+     * @param pieceID the ID of the piece
+     * @return the global position, or -1 if the piece is not in a tower
+     */
+    private int towerAt(int playerID, int pieceID){
+        int position = getPosition(playerID, pieceID);
+        int square = userGridToLudoBoardGrid(playerID, position);
+        return position != 0 && occupancy[playerID][square] >= 2 ? square : -1;
+    }
+
     /**
      * Returns the int of the player who won
      * @return Int of the winner
@@ -548,39 +685,19 @@ public class Ludo {
      * It also finds out which player who won.
      */
     public void checkIfGameIsDone(){
-
-        int[] playerIds = new int[activePlayers()];
-        int[] piecesDone = new int[activePlayers()];
         int playersDone = 0;
+        int winner = -1;
 
-        //Get player ids of active players.
-        int tempPlayerCount = 0;
-        for(int i = 0; i < 4; i++) {
-            if (activePlayers[i]) {
-                playerIds[tempPlayerCount++] = i;
-            }
-        }
-
-        //Loop over players
-        for (int i = 0; i < activePlayers(); i++) {
-            //Loop over pieces
-            for (int j = 0; j < 4; j++) {
-                if (piecesPosition[playerIds[i]][j] == 59) {
-                    piecesDone[i]++;
-                }
-            }
-        }
-
-        //Check how many players are done
-        for (int i = 0; i < activePlayers(); i++) {
-            if (piecesDone[i] == 4) {
+        //Loop over active players, a player is done when all four pieces are at 59
+        for (int i = 0; i < 4; i++) {
+            if (activePlayers[i] && occupancy[i][userGridToLudoBoardGrid(i, 59)] == 4) {
                 playersDone++;
+                winner = i;
             }
         }
 
         //Finds the winner when the first player is done.
         if ( gameWinner == -1 && playersDone == 1) {
-            int winner = Arrays.binarySearch(piecesDone, 4);
             gameWinner = winner;
 
             //Send event with game winner.
@@ -602,89 +719,34 @@ public class Ludo {
      * @return ID of other player or -1 if none found
      */
     private int getOnTopOfOtherPlayer(int playerID, int pieceID){
+        int square = userGridToLudoBoardGrid(playerID, getPosition(playerID, pieceID));
         for(int otherPlayer = 0; otherPlayer < 4; otherPlayer++){
-            for(int otherPiece = 0; otherPiece < 4; otherPiece++){
-                int position = getPosition(playerID, pieceID);
-                int otherPosition = getPosition(otherPlayer, otherPiece);
-
-                // if is on same position as parameters
-                if(userGridToLudoBoardGrid(playerID, position) == userGridToLudoBoardGrid(otherPlayer, otherPosition) && otherPlayer != playerID){
-                    return otherPlayer;
-                }
+            // if other player has pieces on same position as parameters
+            if(otherPlayer != playerID && occupancy[otherPlayer][square] > 0){
+                return otherPlayer;
             }
         }
         return -1;
     }
 
-    /**
-     * Checks if the player is able to move.
-     * @param playerID id of player
-     * @param diceRolled Number that the dice rolled
-     * @return false if the user is blocked, true if the player can move.
-     */
-    private boolean towersBlocksOpponents(int playerID, int diceRolled) {
+    private boolean pieceBlockedByTower(int playerID, int diceRolled, int pieceToBeMoved) {
+        int myPiece = userGridToLudoBoardGrid(playerID,getPosition(playerID,pieceToBeMoved));
 
         for (int i = 0; i < 4; i++){ //Playerid
-
-            for (int j = 0; j < 4; j++){ //Pieceid
-                for(int k = 0; k < 4; k++){//Pieceid
-
-                    int pieceid1_local = getPosition(i,j);
-                    int pieceid2_local = getPosition(i,k);
-
-                    int pieceid1 = userGridToLudoBoardGrid(i,getPosition(i,j));
-                    int pieceid2 = userGridToLudoBoardGrid(i,getPosition(i,k));
-
-                    if(pieceid1 == pieceid2 && j != k && pieceid1_local != 0 && pieceid2_local != 0 && playerID != i){ //any towers?
-
-
-                            for (int x = 0; x < 4; x++) { // Check if other pieces are in play.
-                                int myOtherPiece = userGridToLudoBoardGrid(playerID,getPosition(playerID,x));
-                                int myOtherPieceLocal = getPosition(playerID,x); // todo
-                                if (((myOtherPieceLocal != 0 && myOtherPieceLocal != 59 && myOtherPieceLocal + diceRolled <= 59 && myOtherPieceLocal >= 54)
-                                        || (myOtherPieceLocal != 0 && pieceid1 > myOtherPiece + diceRolled)
-                                        || (myOtherPieceLocal != 0 && (((pieceid1 - myOtherPiece) > 6) || (pieceid1 - myOtherPiece < 0)) && myOtherPieceLocal + diceRolled <= 59)
-                                        || (diceRolled == 6 && myOtherPieceLocal == 0))) {
-                                    //Other pieces are available. Return true;
-                                    return true;
-                                }
-                            }
-
-                            return false;
-
-                        //}
-                    }
-                }
+            if (i == playerID || towers[i] == 0) { //No towers to block with
+                continue;
             }
-        }
-
-        return true;
-    }
-
-    private boolean pieceBlockedByTower(int playerID, int diceRolled, int pieceToBeMoved) {
-        for (int i = 0; i < 4; i++){ //Playerid
 
             for (int j = 0; j < 4; j++){ //Pieceid
-                for(int k = 0; k < 4; k++){//Pieceid
+                int pieceid1 = towerAt(i, j);
 
-                    int pieceid1_local = getPosition(i,j);
-                    int pieceid2_local = getPosition(i,k);
-
-                    int pieceid1 = userGridToLudoBoardGrid(i,getPosition(i,j));
-                    int pieceid2 = userGridToLudoBoardGrid(i,getPosition(i,k));
-
-                    if(pieceid1 == pieceid2 && j != k && pieceid1_local != 0 && pieceid2_local != 0 && playerID != i){ //any towers?
-                        int myPiece = userGridToLudoBoardGrid(playerID,getPosition(playerID,pieceToBeMoved));
-
-                        if (pieceid1 < myPiece+diceRolled && diceRolled == 6) { //In the way but we can go over.
-                            return false;
-                        }
+                if(pieceid1 != -1){ //any towers?
+                    if (pieceid1 < myPiece+diceRolled && diceRolled == 6) { //In the way but we can go over.
+                        return false;
+                    }
 
-                        for(int playerMove = 0; playerMove != diceRolled+1; playerMove++) {
-                            if (myPiece + playerMove == pieceid1) {
-                                return true;
-                            }
-                        }
+                    if (pieceid1 >= myPiece && pieceid1 <= myPiece + diceRolled) { //Tower between here and there
+                        return true;
                     }
                 }
             }
@@ -1,35 +1,92 @@
 package no.ntnu.imt3281.ludo.logic;
 
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 
 /** A really simple SHA_512 Encryption example.
  * Source gotten from: https://github.com/yiminyangguang520/spring-boot-tutorials/blob/master/core-java-security/src/main/java/com/baeldung/passwordhashing/SHA512Hasher.java
+ * <p>
+ *     Each thread reuses its own digest. Setting the system property ludo.pbkdf2.iterations makes new hashes
+ *     use PBKDF2 with that many iterations instead, stored as "pbkdf2:&lt;iterations&gt;:&lt;hex&gt;". Hashes of
+ *     both kinds can always be checked, so existing passwords keep working when the setting changes.
+ * </p>
  */
 public class SHA512Hasher {
+    private static final String PBKDF2 = "pbkdf2:";
+    private static final int PBKDF2_ITERATIONS = Integer.getInteger("ludo.pbkdf2.iterations", 0);    // 0 for plain SHA-512
+    private static final int PBKDF2_KEY_BITS = 256;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
 
     public String hash(String passwordToHash, byte[] salt){
-        String generatedPassword = null;
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-512");
-            md.update(salt);
-            byte[] bytes = md.digest(passwordToHash.getBytes(StandardCharsets.UTF_8));
-            StringBuilder sb = new StringBuilder();
-            for(int i=0; i< bytes.length ;i++){
-                sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
+        if (PBKDF2_ITERATIONS > 0) {
+            return PBKDF2 + PBKDF2_ITERATIONS + ":" + pbkdf2(passwordToHash, salt, PBKDF2_ITERATIONS);
+        }
+        return sha512(passwordToHash, salt);
+    }
+
+    public boolean checkHashedValue(String hash, String attempt, byte[] salt){
+        String generatedHash;
+        if (hash.startsWith(PBKDF2)) {
+            int end = hash.indexOf(':', PBKDF2.length());
+            int iterations;
+            try {
+                iterations = Integer.parseInt(hash.substring(PBKDF2.length(), end));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                return false;
             }
-            generatedPassword = sb.toString();
+            generatedHash = hash.substring(0, end + 1) + pbkdf2(attempt, salt, iterations);
+        } else {
+            generatedHash = sha512(attempt, salt);
         }
-        catch (NoSuchAlgorithmException e){
+        // compare in constant time, so the time taken does not tell how much of the hash was right
+        return generatedHash != null && MessageDigest.isEqual(hash.getBytes(StandardCharsets.US_ASCII),
+                generatedHash.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return true if the hash was not made the way new hashes are, and should be made again at next login
+     */
+    public boolean needsRehash(String hash){
+        return PBKDF2_ITERATIONS > 0 && !hash.startsWith(PBKDF2 + PBKDF2_ITERATIONS + ":");
+    }
+
+    private static String sha512(String passwordToHash, byte[] salt){
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        md.update(salt);
+        return toHex(md.digest(passwordToHash.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String pbkdf2(String passwordToHash, byte[] salt, int iterations){
+        PBEKeySpec spec = new PBEKeySpec(passwordToHash.toCharArray(), salt, iterations, PBKDF2_KEY_BITS);
+        try {
+            return toHex(SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512").generateSecret(spec).getEncoded());
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
+            return null;
+        } finally {
+            spec.clearPassword();
         }
-        return generatedPassword;
     }
 
-    public boolean checkHashedValue(String hash, String attempt, byte[] salt){
-        String generatedHash = hash(attempt, salt);
-        return hash.equals(generatedHash);
+    private static String toHex(byte[] bytes){
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
     }
 }
@@ -0,0 +1,339 @@
+package no.ntnu.imt3281.ludo.logic;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Plays complete four player games of {@link Ludo} without a GUI or server, as fast as the cores allow.
+ * <p>
+ *     Each seat has a {@link Policy} that picks one of the legal moves after each throw. The games are split
+ *     between the threads of a fork/join pool, and the results are added up. Game number n of a run with a given
+ *     seed always plays out the same way, so a game that went wrong can be played again on its own.
+ * </p>
+ * <p>
+ *     After every move the simulator checks the rules the engine should keep: all pieces are between 0 and 59,
+ *     only the piece that was moved moved, and exactly the opponents on the square it landed on were sent home.
+ *     A game that breaks one of them, or does not end, stops the run with an IllegalStateException.
+ * </p>
+ * Run with the main method: <code>Simulator [games] [policy for each seat]</code>, where a policy is random or
+ * greedy. Set the system property ludo.sim.seed to repeat a run.
+ */
+public class Simulator {
+    private static final int GAMES_PER_TASK = 1000;        // smaller ranges are played on one thread
+    private static final int MAX_THROWS = 100000;          // a game that takes longer is taken to be stuck
+
+    private final Policy[] seats;
+    private final long seed;
+
+    /**
+     * Picks a move for the active player.
+     */
+    public interface Policy {
+        /**
+         * Picks one of the legal moves in a random way.
+         */
+        Policy RANDOM = (game, moves, count, random) -> random.nextInt(count);
+
+        /**
+         * Picks the move that sends an opponent home, then the one that finishes a piece, then the one that leaves
+         * home, and else moves the piece that is furthest ahead.
+         */
+        Policy GREEDY = (game, moves, count, random) -> {
+            int best = 0;
+            int bestScore = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                int to = moves[i * 2 + 1];
+                int score = to;
+                if (capturesAt(game, to)) {
+                    score += 300;
+                } else if (to == 59) {
+                    score += 200;
+                } else if (moves[i * 2] == 0) {
+                    score += 100;
+                }
+                if (score > bestScore) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+            return best;
+        };
+
+        /**
+         * @param game the game, with the dice thrown
+         * @param moves the legal moves, as from/to pairs, see {@link Ludo#legalMoves(int[])}
+         * @param count the number of legal moves, at least 1
+         * @param random random numbers for this game
+         * @return the index of the move to make, from 0 to count - 1
+         */
+        int choose(Ludo game, int[] moves, int count, SplittableRandom random);
+
+        /**
+         * @param name random or greedy
+         * @return the policy with the given name
+         */
+        static Policy forName(String name) {
+            switch (name.toLowerCase()) {
+                case "random" : return RANDOM;
+                case "greedy" : return GREEDY;
+                default : throw new IllegalArgumentException("Unknown policy: " + name);
+            }
+        }
+    }
+
+    /**
+     * What a run of games came to.
+     */
+    public static class Result {
+        private long games = 0;
+        private long turns = 0;
+        private long throwsMade = 0;
+        private long moves = 0;
+        private final long[] wins = new long[4];
+
+        public long getGames() {
+            return games;
+        }
+
+        /**
+         * @return the number of times the turn went to a player, over all games
+         */
+        public long getTurns() {
+            return turns;
+        }
+
+        public long getThrows() {
+            return throwsMade;
+        }
+
+        public long getMoves() {
+            return moves;
+        }
+
+        /**
+         * @param seat the player id
+         * @return the number of games the seat won
+         */
+        public long getWins(int seat) {
+            return wins[seat];
+        }
+
+        private Result add(Result other) {
+            games += other.games;
+            turns += other.turns;
+            throwsMade += other.throwsMade;
+            moves += other.moves;
+            for (int i = 0; i < 4; i++) {
+                wins[i] += other.wins[i];
+            }
+            return this;
+        }
+    }
+
+    /**
+     * @param seats the policy for each of the four players
+     * @param seed the seed for the dice and the random policies
+     */
+    public Simulator(Policy[] seats, long seed) {
+        if (seats.length != 4) {
+            throw new IllegalArgumentException("Need a policy for each of the 4 seats");
+        }
+        this.seats = seats.clone();
+        this.seed = seed;
+    }
+
+    /**
+     * Plays the games on the common fork/join pool.
+     * @param games the number of games to play
+     * @return what the games came to
+     */
+    public Result run(long games) {
+        return run(games, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Plays the games on the given pool.
+     * @param games the number of games to play
+     * @param pool the pool to play them on
+     * @return what the games came to
+     */
+    public Result run(long games, ForkJoinPool pool) {
+        return pool.invoke(new Games(0, games));
+    }
+
+    /**
+     * Plays one game.
+     * @param number the number of the game in the run, decides the dice and the random choices
+     * @return what the game came to
+     */
+    public Result play(long number) {
+        Result result = new Result();
+        new Player().play(number, result);
+        return result;
+    }
+
+    /**
+     * Splits a range of games in two until it is small enough to play on one thread.
+     */
+    private class Games extends RecursiveTask<Result> {
+        private static final long serialVersionUID = 1L;
+
+        private final long from;
+        private final long to;
+
+        Games(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Result compute() {
+            if (to - from <= GAMES_PER_TASK) {
+                Result result = new Result();
+                Player player = new Player();
+                for (long number = from; number < to; number++) {
+                    player.play(number, result);
+                }
+                return result;
+            }
+            long middle = (from + to) >>> 1;
+            Games first = new Games(from, middle);
+            first.fork();
+            Result second = new Games(middle, to).compute();
+            return second.add(first.join());
+        }
+    }
+
+    /**
+     * Plays games on one thread, reusing its buffers from game to game.
+     */
+    private class Player {
+        private final int[] moves = new int[Ludo.MAX_MOVES * 2];
+        private final int[] before = new int[16];           // [player * 4 + piece] = local position before a move
+
+        void play(long number, Result result) {
+            SplittableRandom random = new SplittableRandom(seed + number * 0x9E3779B97F4A7C15L);
+            Ludo game = new Ludo("Seat1", "Seat2", "Seat3", "Seat4");
+            game.setDiceSource(DiceSource.seeded(random.nextLong()));
+
+            int turns = 1;
+            int throwsMade = 0;
+            int movesMade = 0;
+            while (game.getWinner() == -1) {
+                if (++throwsMade > MAX_THROWS) {
+                    throw failure(number, "no winner after " + MAX_THROWS + " throws");
+                }
+                int player = game.activePlayer();
+                game.throwDice();
+                int count = game.legalMoves(moves);
+                if (count > 0) {
+                    int move = seats[player].choose(game, moves, count, random);
+                    move(game, number, player, moves[move * 2], moves[move * 2 + 1]);
+                    movesMade++;
+                }
+                if (game.activePlayer() != player) {
+                    turns++;
+                }
+            }
+
+            int winner = game.getWinner();
+            for (int piece = 0; piece < 4; piece++) {
+                if (game.getPosition(winner, piece) != 59) {
+                    throw failure(number, "player " + winner + " won with piece " + piece + " at "
+                            + game.getPosition(winner, piece));
+                }
+            }
+            result.games++;
+            result.turns += turns;
+            result.throwsMade += throwsMade;
+            result.moves += movesMade;
+            result.wins[winner]++;
+        }
+
+        /**
+         * Makes a move and checks that it did what the rules say.
+         */
+        private void move(Ludo game, long number, int player, int from, int to) {
+            for (int i = 0; i < 16; i++) {
+                before[i] = game.getPosition(i / 4, i % 4);
+            }
+            if (!game.movePiece(player, from, to)) {
+                throw failure(number, "legal move " + from + " -> " + to + " of player " + player + " refused");
+            }
+
+            int square = game.userGridToLudoBoardGrid(player, to);
+            boolean moved = false;
+            for (int i = 0; i < 16; i++) {
+                int owner = i / 4;
+                int now = game.getPosition(owner, i % 4);
+                int expected = before[i];
+                if (owner == player) {
+                    if (!moved && before[i] == from) {
+                        expected = to;
+                        moved = true;
+                    }
+                } else if (game.userGridToLudoBoardGrid(owner, before[i]) == square) {
+                    expected = 0;
+                }
+                if (now < 0 || now > 59) {
+                    throw failure(number, "piece " + i % 4 + " of player " + owner + " at " + now);
+                }
+                if (now != expected) {
+                    throw failure(number, "after " + from + " -> " + to + " of player " + player + ", piece "
+                            + i % 4 + " of player " + owner + " is at " + now + ", expected " + expected
+                            + ", positions before " + Arrays.toString(before));
+                }
+            }
+        }
+
+        private IllegalStateException failure(long number, String what) {
+            return new IllegalStateException("Game " + number + " with seed " + seed + ": " + what);
+        }
+    }
+
+    /**
+     * @return true if moving the active player to the given position sends an opponent home
+     */
+    private static boolean capturesAt(Ludo game, int to) {
+        int player = game.activePlayer();
+        int square = game.userGridToLudoBoardGrid(player, to);
+        for (int other = 0; other < 4; other++) {
+            if (other == player) {
+                continue;
+            }
+            for (int piece = 0; piece < 4; piece++) {
+                if (game.userGridToLudoBoardGrid(other, game.getPosition(other, piece)) == square) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) {
+        long games = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+        Policy[] seats = new Policy[4];
+        for (int i = 0; i < 4; i++) {
+            seats[i] = Policy.forName(args.length > i + 1 ? args[i + 1] : "random");
+        }
+        long seed = Long.getLong("ludo.sim.seed", System.nanoTime());
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+
+        System.out.println("Playing " + games + " games on " + pool.getParallelism() + " threads, seed " + seed);
+        long start = System.nanoTime();
+        Result result = new Simulator(seats, seed).run(games, pool);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d games in %.2f s, %.0f games/s, %.0f throws/s%n", result.getGames(), seconds,
+                result.getGames() / seconds, result.getThrows() / seconds);
+        System.out.printf("Per game: %.1f turns, %.1f throws, %.1f moves%n",
+                (double) result.getTurns() / result.getGames(), (double) result.getThrows() / result.getGames(),
+                (double) result.getMoves() / result.getGames());
+        for (int i = 0; i < 4; i++) {
+            System.out.printf("Seat %d (%s): %.2f %% wins%n", i + 1, args.length > i + 1 ? args[i + 1] : "random",
+                    100.0 * result.getWins(i) / result.getGames());
+        }
+    }
+}
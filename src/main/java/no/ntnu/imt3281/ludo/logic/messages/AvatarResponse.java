@@ -0,0 +1,41 @@
+package no.ntnu.imt3281.ludo.logic.messages;
+
+public class AvatarResponse extends Message {
+
+    private String avatarHash;
+    private boolean thumbnail;
+    private byte[] imageString;
+
+    public AvatarResponse(String action){super(action);}
+
+    public AvatarResponse(String action, String avatarHash, boolean thumbnail, byte[] imageString){
+        super(action);
+        this.avatarHash = avatarHash;
+        this.thumbnail = thumbnail;
+        this.imageString = imageString;
+    }
+
+    public String getAvatarHash() {
+        return avatarHash;
+    }
+
+    public void setAvatarHash(String avatarHash) {
+        this.avatarHash = avatarHash;
+    }
+
+    public boolean isThumbnail() {
+        return thumbnail;
+    }
+
+    public void setThumbnail(boolean thumbnail) {
+        this.thumbnail = thumbnail;
+    }
+
+    public byte[] getImageString() {
+        return imageString;
+    }
+
+    public void setImageString(byte[] imageString) {
+        this.imageString = imageString;
+    }
+}
@@ -0,0 +1,33 @@
+package no.ntnu.imt3281.ludo.logic.messages;
+
+import no.ntnu.imt3281.ludo.server.ChatMessage;
+
+public class OlderChatMessagesResponse extends Message {
+
+    String chatroomname;
+    ChatMessage[] chatlog;
+
+    public OlderChatMessagesResponse(String action){super(action);}
+
+    public OlderChatMessagesResponse(String action, String chatroomname, ChatMessage[] chatlog){
+        super(action);
+        this.chatroomname = chatroomname;
+        this.chatlog = chatlog;
+    }
+
+    public String getChatroomname() {
+        return chatroomname;
+    }
+
+    public void setChatroomname(String chatroomname) {
+        this.chatroomname = chatroomname;
+    }
+
+    public ChatMessage[] getChatlog() {
+        return chatlog;
+    }
+
+    public void setChatlog(ChatMessage[] chatlog) {
+        this.chatlog = chatlog;
+    }
+}
@@ -0,0 +1,73 @@
+package no.ntnu.imt3281.ludo.logic.messages;
+
+import no.ntnu.imt3281.ludo.server.RankingEntry;
+
+public class RankingResponse extends Message {
+
+    String category;
+    String displayname;
+    int rank;
+    int total;
+    int from;
+    RankingEntry[] entries;
+
+    public RankingResponse(String action){super(action);}
+
+    public RankingResponse(String action, String category, String displayname, int rank, int total, int from, RankingEntry[] entries){
+        super(action);
+        this.category = category;
+        this.displayname = displayname;
+        this.rank = rank;
+        this.total = total;
+        this.from = from;
+        this.entries = entries;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public void setCategory(String category) {
+        this.category = category;
+    }
+
+    public String getDisplayname() {
+        return displayname;
+    }
+
+    public void setDisplayname(String displayname) {
+        this.displayname = displayname;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public void setRank(int rank) {
+        this.rank = rank;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public void setTotal(int total) {
+        this.total = total;
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public void setFrom(int from) {
+        this.from = from;
+    }
+
+    public RankingEntry[] getEntries() {
+        return entries;
+    }
+
+    public void setEntries(RankingEntry[] entries) {
+        this.entries = entries;
+    }
+}
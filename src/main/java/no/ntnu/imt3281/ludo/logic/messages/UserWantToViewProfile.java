@@ -3,12 +3,19 @@ package no.ntnu.imt3281.ludo.logic.messages;
 public class UserWantToViewProfile extends Message{
 
     String displayname;
+    boolean thumbnail;  // the client only needs a small version of the avatar
 
     public UserWantToViewProfile(String action, String displayname){
         super(action);
         this.displayname = displayname;
     }
 
+    public UserWantToViewProfile(String action, String displayname, boolean thumbnail){
+        super(action);
+        this.displayname = displayname;
+        this.thumbnail = thumbnail;
+    }
+
     public void setDisplayname(String displayname) {
         this.displayname = displayname;
     }
@@ -16,4 +23,12 @@ public class UserWantToViewProfile extends Message{
     public String getDisplayname() {
         return displayname;
     }
+
+    public boolean isThumbnail() {
+        return thumbnail;
+    }
+
+    public void setThumbnail(boolean thumbnail) {
+        this.thumbnail = thumbnail;
+    }
 }
@@ -4,7 +4,9 @@ public class UserWantToViewProfileResponse extends Message{
 
     private String userId;
     private String displayName;
-    private byte[] imageString;
+    private byte[] imageString;     // not sent by the server, the client fetches the avatar by its hash
+    private String avatarHash;
+    private boolean thumbnail;
     private int gamesPlayed;
     private int gamesWon;
     private String message;
@@ -68,4 +70,20 @@ public class UserWantToViewProfileResponse extends Message{
     public String getMessage() {
         return message;
     }
+
+    public String getAvatarHash() {
+        return avatarHash;
+    }
+
+    public void setAvatarHash(String avatarHash) {
+        this.avatarHash = avatarHash;
+    }
+
+    public boolean isThumbnail() {
+        return thumbnail;
+    }
+
+    public void setThumbnail(boolean thumbnail) {
+        this.thumbnail = thumbnail;
+    }
 }
@@ -0,0 +1,31 @@
+package no.ntnu.imt3281.ludo.logic.messages;
+
+public class UserWantsAvatar extends Message {
+
+    String avatarhash;
+    boolean thumbnail;
+
+    public UserWantsAvatar(String action){super(action);}
+
+    public UserWantsAvatar(String action, String avatarhash, boolean thumbnail){
+        super(action);
+        this.avatarhash = avatarhash;
+        this.thumbnail = thumbnail;
+    }
+
+    public String getAvatarhash() {
+        return avatarhash;
+    }
+
+    public void setAvatarhash(String avatarhash) {
+        this.avatarhash = avatarhash;
+    }
+
+    public boolean isThumbnail() {
+        return thumbnail;
+    }
+
+    public void setThumbnail(boolean thumbnail) {
+        this.thumbnail = thumbnail;
+    }
+}
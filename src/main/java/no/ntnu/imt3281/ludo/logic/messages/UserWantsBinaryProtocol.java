@@ -0,0 +1,21 @@
+package no.ntnu.imt3281.ludo.logic.messages;
+
+public class UserWantsBinaryProtocol extends Message {
+
+    String format;
+
+    public UserWantsBinaryProtocol(String action){super(action);}
+
+    public UserWantsBinaryProtocol(String action, String format){
+        super(action);
+        this.format = format;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+}
@@ -0,0 +1,41 @@
+package no.ntnu.imt3281.ludo.logic.messages;
+
+public class UserWantsOlderChatMessages extends Message {
+
+    String chatroomname;
+    long before;
+    long beforeId;
+
+    public UserWantsOlderChatMessages(String action){super(action);}
+
+    public UserWantsOlderChatMessages(String action, String chatroomname, long before, long beforeId){
+        super(action);
+        this.chatroomname = chatroomname;
+        this.before = before;
+        this.beforeId = beforeId;
+    }
+
+    public String getChatroomname() {
+        return chatroomname;
+    }
+
+    public void setChatroomname(String chatroomname) {
+        this.chatroomname = chatroomname;
+    }
+
+    public long getBefore() {
+        return before;
+    }
+
+    public void setBefore(long before) {
+        this.before = before;
+    }
+
+    public long getBeforeId() {
+        return beforeId;
+    }
+
+    public void setBeforeId(long beforeId) {
+        this.beforeId = beforeId;
+    }
+}
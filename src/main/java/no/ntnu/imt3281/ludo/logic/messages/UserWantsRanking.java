@@ -0,0 +1,51 @@
+package no.ntnu.imt3281.ludo.logic.messages;
+
+public class UserWantsRanking extends Message {
+
+    String category;
+    String displayname;
+    int from;
+    int count;
+
+    public UserWantsRanking(String action){super(action);}
+
+    public UserWantsRanking(String action, String category, String displayname, int from, int count){
+        super(action);
+        this.category = category;
+        this.displayname = displayname;
+        this.from = from;
+        this.count = count;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public void setCategory(String category) {
+        this.category = category;
+    }
+
+    public String getDisplayname() {
+        return displayname;
+    }
+
+    public void setDisplayname(String displayname) {
+        this.displayname = displayname;
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public void setFrom(int from) {
+        this.from = from;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+}
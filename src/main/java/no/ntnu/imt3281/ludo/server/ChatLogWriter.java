@@ -0,0 +1,211 @@
+package no.ntnu.imt3281.ludo.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes chat messages to the chat log in the background.
+ * <p>
+ *     Messages are queued and written by one thread in batches, a batch is one transaction. A batch is written
+ *     when it is full, or a few milliseconds after its first message arrived. Users see a message as soon as it
+ *     is queued, they do not wait for the database.
+ * </p>
+ * <p>
+ *     Messages keep the id and time they were given when sent, so the order of the chat log does not depend
+ *     on when they are written. If a batch fails, for instance because a chat room was removed, its messages are written one by
+ *     one so only the failing ones are lost.
+ * </p>
+ */
+public class ChatLogWriter implements AutoCloseable {
+    private static final int BATCH_SIZE = 200;          // max messages in one transaction
+    private static final long FLUSH_DELAY_MS = 5;       // how long a message may wait for others to join its batch
+    private static final String INSERT = "INSERT INTO chat_log" +
+            "(id, chat_name, user_id, chat_message, timestamp) VALUES (?, ?, ?, ?, ?)";
+
+    private final ConnectionPool pool;
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Object writeLock = new Object();        // held while a batch is written
+    private final AtomicLong added = new AtomicLong();    // number of messages queued so far
+    private long written = 0;                             // number of messages written (or failed) so far, guarded by writeLock
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    /**
+     * Starts the thread that writes the messages.
+     * @param pool connections to the database with the chat log
+     */
+    public ChatLogWriter(ConnectionPool pool) {
+        this.pool = pool;
+        writer = new Thread(this::run, "chat-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a message to be written.
+     * @param id the id of the message
+     * @param chatName the chat room it was sent to
+     * @param userId the user that sent it
+     * @param chatMessage the message
+     * @param timestamp when it was sent, epoch seconds
+     */
+    public void add(long id, String chatName, String userId, String chatMessage, long timestamp) {
+        if (closed) {
+            throw new IllegalStateException("Chat log writer is closed");
+        }
+        queue.add(new Entry(id, chatName, userId, chatMessage, timestamp));
+        added.incrementAndGet();
+    }
+
+    /**
+     * Writes all queued messages before returning, including any batch the writer thread is working on.
+     */
+    public void flush() {
+        long target = added.get();
+        ArrayList<Entry> batch = new ArrayList<>();
+        synchronized (writeLock) {
+            while (written < target) {
+                if (queue.drainTo(batch, BATCH_SIZE) > 0) {
+                    write(batch);
+                    batch.clear();
+                } else if (writer.isAlive()) {
+                    try {   // the writer thread has taken the rest, wait for it to write them
+                        writeLock.wait(FLUSH_DELAY_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all queued messages and stops the writer thread. No more messages can be added.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void run() {
+        ArrayList<Entry> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                batch.clear();
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                synchronized (writeLock) {
+                    batch.add(first);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_DELAY_MS);
+                    while (batch.size() < BATCH_SIZE) {
+                        if (queue.drainTo(batch, BATCH_SIZE - batch.size()) == 0) {
+                            long wait = deadline - System.nanoTime();
+                            Entry next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                            if (next == null) {
+                                break;
+                            }
+                            batch.add(next);
+                        }
+                    }
+                    write(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {  // Do not let one bad batch stop the writer
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes a batch in one transaction, or one message at a time if the batch fails. Must hold writeLock.
+     * @param batch the messages
+     */
+    private void write(ArrayList<Entry> batch) {
+        try {
+            writeBatch(batch);
+        } finally {
+            written += batch.size();
+            writeLock.notifyAll();
+        }
+    }
+
+    private void writeBatch(ArrayList<Entry> batch) {
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            Connection conn = connection.getConnection();
+            PreparedStatement stmt = connection.prepare(INSERT);
+            stmt.clearBatch();
+            conn.setAutoCommit(false);
+            try {
+                for (Entry entry : batch) {
+                    entry.set(stmt);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.commit();
+                return;
+            } catch (SQLException ex) {
+                conn.rollback();
+                stmt.clearBatch();
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+            for (Entry entry : batch) {
+                try {
+                    entry.set(stmt);
+                    stmt.execute();
+                } catch (SQLException ex) {
+                    System.out.println("Error occured when trying to insert chat message: " + ex.getMessage());
+                }
+            }
+        } catch (SQLException ex) {
+            System.out.println("Error occured when trying to insert chat messages: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * A message waiting to be written.
+     */
+    private static final class Entry {
+        final long id;
+        final String chatName;
+        final String userId;
+        final String chatMessage;
+        final long timestamp;
+
+        Entry(long id, String chatName, String userId, String chatMessage, long timestamp) {
+            this.id = id;
+            this.chatName = chatName;
+            this.userId = userId;
+            this.chatMessage = chatMessage;
+            this.timestamp = timestamp;
+        }
+
+        void set(PreparedStatement stmt) throws SQLException {
+            stmt.setLong(1, id);
+            stmt.setString(2, chatName);
+            stmt.setString(3, userId);
+            stmt.setString(4, chatMessage);
+            stmt.setLong(5, timestamp);
+        }
+    }
+}
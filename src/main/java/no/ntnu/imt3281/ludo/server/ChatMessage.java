@@ -8,7 +8,8 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
         "chatName",
         "userId",
         "chatMessage",
-        "timeSent"
+        "timeSent",
+        "id"
 })
 public class ChatMessage {
     @JsonProperty("chatName")
@@ -23,13 +24,17 @@ public class ChatMessage {
     @JsonProperty("timeSent")
     private long timeSent;
 
+    @JsonProperty("id")
+    private long id;
+
     public ChatMessage(){}
 
-    public ChatMessage(String chatName, String displayName, String chatMessage, long timeSent){
+    public ChatMessage(String chatName, String displayName, String chatMessage, long timeSent, long id){
         this.chatName = chatName;
         this.displayName = displayName;
         this.chatMessage = chatMessage;
         this.timeSent = timeSent;
+        this.id = id;
     }
     @JsonProperty("chatName")
     public String getChatName() {
@@ -51,6 +56,11 @@ public class ChatMessage {
         return timeSent;
     }
 
+    @JsonProperty("id")
+    public long getId() {
+        return id;
+    }
+
     @JsonProperty("chatMessage")
     public void setChatMessage(String chatMessage) {
         this.chatMessage = chatMessage;
@@ -70,4 +80,9 @@ public class ChatMessage {
     public void setdisplayName(String displayName) {
         this.displayName = displayName;
     }
+
+    @JsonProperty("id")
+    public void setId(long id) {
+        this.id = id;
+    }
 }
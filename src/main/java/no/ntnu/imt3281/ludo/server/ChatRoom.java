@@ -1,14 +1,20 @@
 package no.ntnu.imt3281.ludo.server;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class ChatRoom {
+    static final int RECENT_MESSAGES = 50; //Number of messages kept in memory, sent to users that join.
 
     String name;
     boolean gameRoom; //Room that is associated with a game.
     ArrayList<String> connectedUsers = new ArrayList<>(); //ArrayList with user ids.
     ArrayList<String> allowedUsers = new ArrayList<>(); //People allowed into the room.
 
+    private final ChatMessage[] recentMessages = new ChatMessage[RECENT_MESSAGES]; //Ring buffer of the latest messages.
+    private int oldestMessage = 0; //Index of the oldest message in the ring buffer.
+    private int messageCount = 0; //Number of messages in the ring buffer.
+
     ChatRoom(String name) {
         gameRoom = false;
         this.name = name;
@@ -41,4 +47,44 @@ public class ChatRoom {
     public boolean isGameRoom() {
         return gameRoom;
     }
+
+    /**
+     * Adds a message sent to the room, replacing the oldest message if the buffer is full.
+     * @param message the message, must not be older than the messages already added
+     */
+    public synchronized void addRecentMessage(ChatMessage message) {
+        if (messageCount < RECENT_MESSAGES) {
+            recentMessages[(oldestMessage + messageCount++) % RECENT_MESSAGES] = message;
+        } else {
+            recentMessages[oldestMessage] = message;
+            oldestMessage = (oldestMessage + 1) % RECENT_MESSAGES;
+        }
+    }
+
+    /**
+     * Fills the buffer with messages from the chat log, used when the room is set up.
+     * @param messages the latest messages in the room, oldest first
+     */
+    public synchronized void setRecentMessages(List<ChatMessage> messages) {
+        oldestMessage = 0;
+        messageCount = 0;
+        for (int i = Math.max(0, messages.size() - RECENT_MESSAGES); i < messages.size(); i++) {
+            addRecentMessage(messages.get(i));
+        }
+    }
+
+    /**
+     * Gets the latest messages in the room, like the first page of the chat log.
+     * <p>
+     *     Older messages are read from the database by time and id, starting before the oldest message the user has.
+     * </p>
+     * @return the messages, oldest first
+     */
+    public synchronized ChatMessage[] getRecentMessages() {
+        ChatMessage[] messages = new ChatMessage[messageCount];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = recentMessages[(oldestMessage + i) % RECENT_MESSAGES];
+        }
+        return messages;
+    }
 }
@@ -1,44 +1,277 @@
 package no.ntnu.imt3281.ludo.server;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import no.ntnu.imt3281.ludo.logic.JsonMessage;
-
-import java.io.*;
-import java.net.Socket;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 
+/**
+ * A connection from a client to the server.
+ * <p>
+ *     The channel is non-blocking and owned by the selector thread in Server. Incoming bytes are
+ *     collected per connection and split into messages. A message is either a json line, or a binary
+ *     frame (see {@link MessageCodec}) that starts with a 0 byte, so both can arrive on the same connection.
+ * </p>
+ * <p>
+ *     Outbound messages are queued per connection and written by the selector thread when the
+ *     socket is writable, several at a time, so a slow client never holds up anyone else. Messages are
+ *     sent as json until the client has asked for the binary protocol.
+ * </p>
+ */
 public class Client {
-    ObjectMapper mapper = new ObjectMapper();
-    String uuid;
-    String userId;
-    String username;
+    private static final int READ_BUFFER_SIZE = 8192;          // bytes read from the socket at a time
+    private static final int MAX_FRAME_SIZE = MessageCodec.MAX_FRAME_SIZE;  // largest message we accept (avatars are max 16MB)
+    private static final int MAX_QUEUED_MESSAGES = 1000;         // client is considered dead if it falls this far behind
+    private static final int MAX_BUFFERS_PER_WRITE = 64;         // messages handed to one gathering write
+
+    volatile String uuid;
+    volatile String userId;
+    volatile String username;   // display name, set when the user logs in
+
+    private final SocketChannel channel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteArrayOutputStream partialFrame = new ByteArrayOutputStream(); // json message not yet ended by newline
+    private final ByteBuffer lengthPrefix = ByteBuffer.allocate(4); // length of the binary frame being read
+    private byte[] payload;         // binary frame being read
+    private int payloadRead;        // bytes of the binary frame read so far
+    private int readState = FRAME_START;
+
+    private static final int FRAME_START = 0;       // next byte starts a new message
+    private static final int FRAME_TEXT = 1;        // reading a json line
+    private static final int FRAME_LENGTH = 2;      // reading the length prefix of a binary frame
+    private static final int FRAME_PAYLOAD = 3;     // reading the data of a binary frame
 
-    Socket s;
-    BufferedWriter bw;
-    BufferedReader br;
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>(); // encoded messages waiting to be written
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
+    private boolean writePending = false; // true while the selector has been asked to write for us
+    private boolean binary = false;       // true when the client has switched to the binary protocol
+    private boolean disconnected = false; // true once the client is handed over to be removed
 
-    public Client (Socket s) throws IOException {
-        bw = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
-        br = new BufferedReader(new InputStreamReader(s.getInputStream()));
+    public Client (SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(false);
     }
 
-    public String read() throws IOException {
-        if (br.ready()) {
-            return br.readLine();
+    /**
+     * Reads whatever is available on the channel without blocking.
+     * @return all complete messages received, empty if none are complete yet
+     * @throws IOException if the connection is lost or the client closed it
+     */
+    public ArrayList<Frame> read() throws IOException {
+        ArrayList<Frame> frames = new ArrayList<>();
+        int count;
+
+        while ((count = channel.read(readBuffer)) > 0) {
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                switch (readState) {
+                    case FRAME_START: readState = readBuffer.get(readBuffer.position()) == 0 ? FRAME_LENGTH : FRAME_TEXT; break;
+                    case FRAME_TEXT: readText(frames); break;
+                    case FRAME_LENGTH: readLength(); break;
+                    case FRAME_PAYLOAD: readPayload(frames); break;
+                }
+            }
+            readBuffer.clear();
+        }
+
+        if (count == -1) {
+            throw new EOFException("Client closed the connection");
         }
-        return null;
+
+        return frames;
     }
 
-    public void send(String s) throws IOException {
-        bw.write(s);
-        bw.newLine();
-        bw.flush();
+    /**
+     * Reads from the buffer up to and including the end of the current json line.
+     * @param frames where to put the line if it is complete
+     * @throws IOException if the line is too long
+     */
+    private void readText(ArrayList<Frame> frames) throws IOException {
+        byte[] bytes = readBuffer.array();
+        int start = readBuffer.position();
+        int end = readBuffer.limit();
+
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '\n') {
+                partialFrame.write(bytes, start, i - start);
+                readBuffer.position(i + 1);
+                frames.add(new Frame(takeText()));
+                readState = FRAME_START;
+                return;
+            }
+        }
+
+        partialFrame.write(bytes, start, end - start);
+        readBuffer.position(end);
+        if (partialFrame.size() > MAX_FRAME_SIZE) {
+            throw new IOException("Message from client exceeds " + MAX_FRAME_SIZE + " bytes");
+        }
+    }
+
+    /**
+     * Reads the length prefix of a binary frame.
+     * @throws IOException if the length is not valid
+     */
+    private void readLength() throws IOException {
+        while (lengthPrefix.hasRemaining() && readBuffer.hasRemaining()) {
+            lengthPrefix.put(readBuffer.get());
+        }
+        if (lengthPrefix.hasRemaining()) {
+            return;
+        }
+
+        lengthPrefix.flip();
+        int length = lengthPrefix.getInt();
+        lengthPrefix.clear();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid binary frame length " + length);
+        }
+
+        payload = new byte[length];
+        payloadRead = 0;
+        readState = length == 0 ? FRAME_START : FRAME_PAYLOAD;   // Nothing to read for an empty frame
+    }
+
+    /**
+     * Reads the data of a binary frame.
+     * @param frames where to put the frame if it is complete
+     */
+    private void readPayload(ArrayList<Frame> frames) {
+        int count = Math.min(readBuffer.remaining(), payload.length - payloadRead);
+        readBuffer.get(payload, payloadRead, count);
+        payloadRead += count;
+
+        if (payloadRead == payload.length) {
+            frames.add(new Frame(payload));
+            payload = null;
+            readState = FRAME_START;
+        }
+    }
+
+    /**
+     * Decodes the collected bytes of one json message and resets the collector.
+     * @return the message without line terminator
+     */
+    private String takeText() {
+        String frame = new String(partialFrame.toByteArray(), StandardCharsets.UTF_8);
+        partialFrame.reset();
+
+        if (frame.endsWith("\r")) {
+            frame = frame.substring(0, frame.length() - 1);
+        }
+        return frame;
+    }
+
+    /**
+     * Queues a message for this client, encoded the way the client wants it.
+     * @param frame the message
+     * @return false if the queue is full, which means the client is not reading what we send
+     */
+    public synchronized boolean queue(OutboundFrame frame) {
+        ByteBuffer bytes = binary ? frame.cbor() : frame.json();
+        if (bytes == null) { //Could not be encoded, nothing to send
+            return true;
+        }
+        return queue(bytes);
+    }
+
+    /**
+     * Switches to the binary protocol. The answer to the client is the last message sent as json,
+     * everything queued after it is sent as binary frames.
+     * @param answer the message telling the client that the server has switched
+     * @return false if the queue is full
+     */
+    public synchronized boolean switchToBinary(OutboundFrame answer) {
+        boolean queued = queue(answer);
+        binary = true;
+        return queued;
+    }
+
+    public synchronized boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Queues an encoded message for this client. Only called while holding the lock.
+     * @param message the message including the trailing newline, ready to be written
+     * @return false if the queue is full, which means the client is not reading what we send
+     */
+    private boolean queue(ByteBuffer message) {
+        if (outbound.size() >= MAX_QUEUED_MESSAGES) {
+            return false;
+        }
+        outbound.add(message);
+        return true;
+    }
+
+    /**
+     * Marks that the selector has to write for this client.
+     * @return true if it was not already marked, and the selector must be told about it
+     */
+    public synchronized boolean requestWrite() {
+        if (writePending || outbound.isEmpty()) {
+            return false;
+        }
+        writePending = true;
+        return true;
+    }
+
+    /**
+     * Writes as much of the queue as the socket accepts, batching several messages in each write.
+     * Only called from the selector thread.
+     * @return true if the queue is empty, false if the socket is full and we must wait to write the rest
+     * @throws IOException if the connection is lost
+     */
+    public synchronized boolean flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : outbound) {
+                writeBatch[count++] = buffer;
+                if (count == MAX_BUFFERS_PER_WRITE) {
+                    break;
+                }
+            }
+
+            channel.write(writeBatch, 0, count);
+            boolean socketFull = writeBatch[count - 1].hasRemaining();
+            Arrays.fill(writeBatch, 0, count, null);
+
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                outbound.poll();
+            }
+
+            if (socketFull) {
+                return false;
+            }
+        }
+
+        writePending = false;
+        return true;
+    }
+
+    /**
+     * Marks the client as lost.
+     * @return true the first time, so the client is only removed once
+     */
+    public synchronized boolean markDisconnected() {
+        if (disconnected) {
+            return false;
+        }
+        disconnected = true;
+        return true;
     }
 
     public void close() throws IOException {
-        bw.close();
-        br.close();
-        s.close();
+        channel.close();
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
     }
 
     public void setUsername(String username) {
@@ -65,17 +298,38 @@ public class Client {
         return uuid;
     }
 
-    public void parseSessionid(String json) {
+    /**
+     * A message received from the client, either a json line or the data of a binary frame.
+     */
+    public static final class Frame {
+        private final String text;
+        private final byte[] binary;
 
-        try {
-            JsonNode jsonNode = mapper.readTree(json);
-            this.setUuid(jsonNode.get("recipientSessionId").asText());
-            System.out.println(uuid);
-        } catch (IOException e) {
-            e.printStackTrace();
+        Frame(String text) {
+            this.text = text;
+            this.binary = null;
         }
 
-    }
+        Frame(byte[] binary) {
+            this.text = null;
+            this.binary = binary;
+        }
 
+        public boolean isBinary() {
+            return binary != null;
+        }
+
+        public String getText() {
+            return text;
+        }
 
+        public byte[] getBinary() {
+            return binary;
+        }
+
+        @Override
+        public String toString() {
+            return isBinary() ? "<binary, " + binary.length + " bytes>" : text;
+        }
+    }
 }
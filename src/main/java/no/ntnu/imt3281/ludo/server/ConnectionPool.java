@@ -0,0 +1,193 @@
+package no.ntnu.imt3281.ludo.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fixed number of connections to the database, shared by all threads.
+ * <p>
+ *     Connections are opened when they are first needed, up to the size of the pool. After that, threads wait
+ *     for a connection to be returned. A connection that was lost is thrown away when it is returned, and the
+ *     next thread to need one opens a new one. Each connection keeps the statements it has prepared, so the
+ *     same sql is only prepared once per connection.
+ * </p>
+ * <p>
+ *     A connection is used by one thread at a time, and must be given back by closing it, preferably with
+ *     try-with-resources. Statements from {@link PooledConnection#prepare(String)} are owned by the connection
+ *     and must not be closed, but their ResultSets must.
+ * </p>
+ */
+public class ConnectionPool implements AutoCloseable {
+    private final String url;
+    private final Semaphore permits;    // one permit for each connection that may be handed out
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private boolean closed = false;
+
+    /**
+     * Opens the first connection, so any problem with the database is found right away.
+     * @param url jdbc url of the database
+     * @param size max number of connections
+     * @throws SQLException if the database can not be opened
+     */
+    public ConnectionPool(String url, int size) throws SQLException {
+        this.url = url;
+        this.permits = new Semaphore(size, true);
+        idle.add(open());
+    }
+
+    /**
+     * Gets a connection, waiting for one to be returned if they are all in use.
+     * @return the connection, give it back by closing it
+     * @throws SQLException if the pool is closed or a new connection can not be opened
+     */
+    public PooledConnection acquire() throws SQLException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+
+        PooledConnection connection;
+        synchronized (this) {
+            if (closed) {
+                permits.release();
+                throw new SQLException("Connection pool is closed");
+            }
+            connection = idle.poll();
+        }
+        if (connection != null) {
+            return connection;
+        }
+
+        try { // None left to reuse, so one of the connections in use was lost or has not been opened yet
+            return open();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        return new PooledConnection(DriverManager.getConnection(url));
+    }
+
+    /**
+     * Takes back a connection. A connection that was lost is thrown away, and its place is given to the next
+     * thread that needs one.
+     * @param connection the connection
+     */
+    private void release(PooledConnection connection) {
+        boolean usable;
+        try {
+            usable = !connection.connection.isClosed();
+            if (usable && !connection.connection.getAutoCommit()) { //Left in a transaction, undo whatever is not committed
+                connection.connection.rollback();
+                connection.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            usable = false;
+        }
+
+        synchronized (this) {
+            if (usable && !closed) {
+                idle.add(connection);
+                connection = null;
+            }
+        }
+        if (connection != null) {
+            connection.closeConnection();
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes all connections, and wakes the threads waiting for one. Connections in use are closed when they
+     * are given back.
+     */
+    @Override
+    public void close() {
+        ArrayList<PooledConnection> toClose;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            toClose = new ArrayList<>(idle);
+            idle.clear();
+        }
+        for (PooledConnection connection : toClose) {
+            connection.closeConnection();
+        }
+        permits.release(Integer.MAX_VALUE / 2); // Enough for every waiting thread to get in and find the pool closed
+    }
+
+    /**
+     * A connection borrowed from the pool, with the statements prepared on it.
+     */
+    public class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final HashMap<String, PreparedStatement> statements = new HashMap<>();
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Gets a prepared statement for the sql, preparing it the first time it is used on this connection.
+         * @param sql the sql
+         * @return the statement, with no parameters set
+         * @throws SQLException if the sql can not be prepared
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null || stmt.isClosed()) {
+                stmt = connection.prepareStatement(sql);
+                statements.put(sql, stmt);
+            } else {
+                stmt.clearParameters();
+            }
+            return stmt;
+        }
+
+        /**
+         * Creates a plain statement, for sql that is only run once. Close it after use.
+         * @return the statement
+         * @throws SQLException if the connection is lost
+         */
+        public Statement createStatement() throws SQLException {
+            return connection.createStatement();
+        }
+
+        /**
+         * Gives direct access to the connection, for transactions. Do not close it.
+         * @return the connection
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Gives the connection back to the pool.
+         */
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        private void closeConnection() {
+            try {
+                connection.close();     // Also closes the prepared statements
+            } catch (SQLException e) {
+                // Nothing more to do with a connection that can not be closed
+            }
+        }
+    }
+}
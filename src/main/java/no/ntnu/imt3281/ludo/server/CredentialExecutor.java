@@ -0,0 +1,136 @@
+package no.ntnu.imt3281.ludo.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs logins, registrations and password changes on a few threads of their own.
+ * <p>
+ *     Checking and hashing passwords is slow, and can be made slower on purpose, see
+ *     {@link no.ntnu.imt3281.ludo.logic.SHA512Hasher}. Chat and games are handled on other threads, so they do
+ *     not wait for it. Both the number of threads and the queue are bounded, so a flood of logins can not use
+ *     more than its share of the cpu or memory. Actions that do not fit in the queue are turned away.
+ * </p>
+ * <p>
+ *     Actions given a key, like a user id, run one at a time in the order they were queued, while actions with
+ *     other keys run beside them.
+ * </p>
+ */
+public class CredentialExecutor {
+    private static final int MAX_WAITING_PER_KEY = 8;  // actions waiting behind an earlier action with the same key
+
+    private final ThreadPoolExecutor executor;
+    private final HashMap<String, ArrayDeque<Runnable[]>> waiting = new HashMap<>(); // key -> {task, rejected} queued behind the running action
+
+    /**
+     * Creates an executor with half a thread per available processor, at least one.
+     * @param queueSize max number of actions waiting for a thread
+     */
+    public CredentialExecutor(int queueSize) {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), queueSize);
+    }
+
+    /**
+     * @param threads max number of passwords checked at the same time
+     * @param queueSize max number of actions waiting for a thread
+     */
+    public CredentialExecutor(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, "credentials-" + count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Queues an action.
+     * @param task the action
+     * @param rejected run on the calling thread instead, if the queue is full or the executor is shut down
+     */
+    public void execute(Runnable task, Runnable rejected) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {  // Do not let one bad message stop the thread
+                    e.printStackTrace();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.run();
+        }
+    }
+
+    /**
+     * Queues an action that must run after the actions queued earlier with the same key.
+     * @param key actions with the same key run one at a time, in order
+     * @param task the action
+     * @param rejected run on the calling thread instead, if too many actions wait for the key, the queue is full
+     *                 or the executor is shut down
+     */
+    public void execute(String key, Runnable task, Runnable rejected) {
+        boolean full;
+        synchronized (waiting) {
+            ArrayDeque<Runnable[]> behind = waiting.get(key);
+            full = behind != null && behind.size() >= MAX_WAITING_PER_KEY;
+            if (behind == null) {
+                waiting.put(key, new ArrayDeque<>());
+            } else if (!full) { // An earlier action with the key is queued or running, it runs this one after it
+                behind.add(new Runnable[]{task, rejected});
+                return;
+            }
+        }
+        if (full) {
+            rejected.run();
+            return;
+        }
+
+        execute(() -> runInOrder(key, task), () -> {
+            ArrayDeque<Runnable[]> behind;
+            synchronized (waiting) {
+                behind = waiting.remove(key);
+            }
+            rejected.run();
+            for (Runnable[] next : behind) {
+                next[1].run();
+            }
+        });
+    }
+
+    /**
+     * Runs an action, then the actions that were queued behind it with the same key.
+     */
+    private void runInOrder(String key, Runnable task) {
+        Runnable next = task;
+        while (next != null) {
+            try {
+                next.run();
+            } catch (RuntimeException e) {  // Do not let one bad message stop the ones behind it
+                e.printStackTrace();
+            }
+            synchronized (waiting) {
+                Runnable[] queued = waiting.get(key).poll();
+                if (queued == null) {
+                    waiting.remove(key);
+                    next = null;
+                } else {
+                    next = queued[0];
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets queued actions finish, but takes no new ones.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
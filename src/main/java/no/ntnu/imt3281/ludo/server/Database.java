@@ -1,22 +1,52 @@
 package no.ntnu.imt3281.ludo.server;
 
+import no.ntnu.imt3281.ludo.client.ImageManager;
 import no.ntnu.imt3281.ludo.logic.SHA512Hasher;
 
-import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
-import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.sql.*;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Singleton Database class
+ * <p>
+ * Queries are run on a small pool of connections, so several threads can use the database at the same time.
+ * Every query is prepared once per connection and reused after that.
+ * </p>
+ * <p>
+ * Avatars are kept in their own table, keyed by the SHA-256 hash of the image, along with a thumbnail made
+ * when the avatar is uploaded. Profiles only hold the hash, so reading a profile never reads an image.
+ * </p>
+ * <p>
+ * Chat messages from users are written to the chat log in the background, see {@link ChatLogWriter}.
+ * Each message gets its id when it is sent, so the id is known before the message is written.
+ * </p>
+ * <p>
+ * Logging in reads the account and the profile in one query, see {@link #login(String, String)} and
+ * {@link #loginBySession(String)}. Valid session tokens are kept in memory.
+ * </p>
  */
 public class Database {
+    private static final int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final int PROFILE_CACHE_SIZE = 1024;
+    private static final int SESSION_CACHE_SIZE = 4096;
+    private static final int THUMBNAIL_SIZE = 128;     // max width and height of avatar thumbnails
+    private static final String ALREADY_EXISTS = "X0Y32";   // SQL state when creating a table or index that already exists
     private static Database DATABASE_INSTANCE = null;
-    private Connection connection = null;
+    private ConnectionPool pool = null;
+    private ChatLogWriter chatLog = null;
+    private AtomicLong lastChatMessageId = null;     // id of the latest chat message
+    private final UserInfoCache profiles = new UserInfoCache(PROFILE_CACHE_SIZE);  // profiles without avatars
+    private final SessionTokenCache sessions = new SessionTokenCache(SESSION_CACHE_SIZE);  // valid session tokens
 
     /**
      * setup database
@@ -25,16 +55,11 @@ public class Database {
 
         // try to establish a database connection, if not create
         try {
-            connection = DriverManager.getConnection(dbURL);
+            pool = new ConnectionPool(dbURL, POOL_SIZE);
         } catch (SQLException ex) {               // database is missing
             if (ex.getMessage().contains("Database") && ex.getMessage().contains("not found.")) {
                 try {                            // create a new database
-                    connection = DriverManager.getConnection(dbURL + ";create=true");
-                    createLoginInformationTable();
-                    createUserInformationTable();
-                    createSessionInformationTable();
-                    createChatRoomTable();
-                    createChatLogTable();
+                    pool = new ConnectionPool(dbURL + ";create=true", POOL_SIZE);
                 } catch (SQLException ex2) {      // could not create database, we exit.
                     ex2.printStackTrace();
                     System.exit(1);
@@ -45,24 +70,24 @@ public class Database {
             }
         }
 
-        // check that tables exist (in case they have been DROP'ed)
+        // create tables that are missing (new database, or they have been DROP'ed) and update old tables
         try {
             createLoginInformationTable();
             createUserInformationTable();
             createSessionInformationTable();
             createChatRoomTable();
             createChatLogTable();
+            migrateChatLogIds();
+            createChatLogIndex();
+            createAvatarStoreTable();
+            migrateAvatarColumn();
+            lastChatMessageId = new AtomicLong(readLastChatMessageId());
         } catch (SQLException ex) {
-            // if error is something else than that the table already exists
-            if (!ex.getMessage().equals("Table/View 'LOGIN_INFO' already exists in Schema 'APP'.")
-                    && !ex.getMessage().equals("Table/View 'SESSION_INFO' already exists in Schema 'APP'.")
-                    && !ex.getMessage().equals("Table/View 'USER_INFO' already exists in Schema 'APP'.")
-                    && !ex.getMessage().equals("Table/View 'CHAT_ROOM' already exists in Schema 'APP'.")
-                    && !ex.getMessage().equals("Table/View 'CHAT_LOG' already exists in Schema 'APP'.")) {
-                ex.printStackTrace();
-                System.exit(1);
-            }
+            ex.printStackTrace();
+            System.exit(1);
         }
+
+        chatLog = new ChatLogWriter(pool);
     }
 
     /**
@@ -70,13 +95,22 @@ public class Database {
      *
      * @return database instance
      */
-    public static Database getDatabase() {
+    public static synchronized Database getDatabase() {
         if (DATABASE_INSTANCE == null) {
             DATABASE_INSTANCE = new Database("jdbc:derby:./ludoDB");
         }
         return DATABASE_INSTANCE;
     }
 
+    /**
+     * Write the chat messages waiting to be written, and close all connections to the database.
+     * The instance can not be used after this.
+     */
+    public void close() {
+        chatLog.close();
+        pool.close();
+    }
+
     /**
      * Insert a new account for the user. Password will be hashed here before it is inserted into the database.
      * <p>
@@ -101,14 +135,16 @@ public class Database {
         String hashedPwd = hasher.hash(password, salt);
 
         // first insert a new account into our "login_info" table
-        PreparedStatement stmt = connection.prepareStatement("INSERT INTO login_info" +
-                "(USER_ID, ACCOUNT_NAME, PWD_HSH, ACCOUNT_SALT) VALUES (?, ?, ?, ?)");
-
-        stmt.setString(1, uniqueId);
-        stmt.setString(2, accountName);
-        stmt.setString(3, hashedPwd);
-        stmt.setBytes(4, salt);
-        stmt.execute();
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("INSERT INTO login_info" +
+                    "(USER_ID, ACCOUNT_NAME, PWD_HSH, ACCOUNT_SALT) VALUES (?, ?, ?, ?)");
+
+            stmt.setString(1, uniqueId);
+            stmt.setString(2, accountName);
+            stmt.setString(3, hashedPwd);
+            stmt.setBytes(4, salt);
+            stmt.execute();
+        }
 
         // at last insert a new user so he has a profile when he logs in for the first time
         insertProfile(uniqueId, accountName, null, 0, 0);
@@ -124,20 +160,145 @@ public class Database {
      * @return if the name is available
      */
     public boolean doesAccountNameExist(String nameToCheck) throws SQLException {
-        // create connection to database
-        PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(account_name) AS name_count FROM login_info " +
-                "WHERE account_name = ?");
-        stmt.setString(1, nameToCheck);
-        ResultSet rs = stmt.executeQuery();
+        int count;
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT COUNT(account_name) AS name_count FROM login_info " +
+                    "WHERE account_name = ?");
+            stmt.setString(1, nameToCheck);
 
-        rs.next();
-        // get the total count of account names (1 if it exists, 0 else)
-        int count = rs.getInt("name_count");
-        rs.close();
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                // get the total count of account names (1 if it exists, 0 else)
+                count = rs.getInt("name_count");
+            }
+        }
 
         return count == 0 ? false : true;
     }
 
+    /**
+     * Log in with account name and password. The account and the profile are read in one query.
+     * <p>
+     * Checking the password can be slow on purpose, see {@link SHA512Hasher}, so do not call this on a thread
+     * that others wait for.
+     * </p>
+     *
+     * @param accountName the login name of the account
+     * @param password    the hashed plaintext password to compare to. DO NOT SEND PLAIN PASSWORD! HASH FIRST!
+     * @return the user without avatar, null if the account name or password is wrong
+     * @throws SQLException if error occured in database
+     */
+    public UserInfo login(String accountName, String password) throws SQLException {
+        UserInfo userInfo = null;
+        String pwd_hsh = null;
+        byte[] salt = null;
+        long stamp = profiles.stamp();
+
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT l.pwd_hsh, l.account_salt, u.* " +
+                    "FROM login_info l JOIN user_info u ON u.user_id = l.user_id " +
+                    "WHERE l.account_name = ?");
+            stmt.setString(1, accountName);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    pwd_hsh = rs.getString("pwd_hsh");
+                    salt = rs.getBytes("account_salt");
+                    userInfo = readUserInfo(rs);
+                }
+            }
+        }
+
+        // if the account was not found, or the password does not match
+        SHA512Hasher hasher = new SHA512Hasher();
+        if (userInfo == null || !hasher.checkHashedValue(pwd_hsh, password, salt)) {
+            return null;
+        }
+
+        // the password is known now, store it the way new passwords are stored
+        if (hasher.needsRehash(pwd_hsh)) {
+            updateAccountPassword(userInfo.getUserId(), password);
+        }
+
+        profiles.put(userInfo, stamp);
+        return userInfo;
+    }
+
+    /**
+     * Log in with a session token from an earlier login.
+     * <p>
+     * Tokens that are known to be valid are kept in memory, and their users are found in the profile cache.
+     * Other tokens are checked and their users read in one query.
+     * </p>
+     *
+     * @param sessionId the session token
+     * @return the user without avatar, null if the token is not valid
+     * @throws SQLException if error occured in database
+     */
+    public UserInfo loginBySession(String sessionId) throws SQLException {
+        String userId = sessions.get(sessionId);
+        if (userId != null) {
+            UserInfo userInfo = getUserInfo(userId);
+            if (userInfo != null) {
+                return userInfo;
+            }
+        }
+
+        UserInfo userInfo = null;
+        long profileStamp = profiles.stamp();
+        long sessionStamp = sessions.stamp();
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT u.* " +
+                    "FROM session_info s JOIN user_info u ON u.user_id = s.user_id " +
+                    "WHERE s.session_id = ?");
+            stmt.setString(1, sessionId);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    userInfo = readUserInfo(rs);
+                }
+            }
+        }
+
+        if (userInfo != null) {
+            profiles.put(userInfo, profileStamp);
+            sessions.put(sessionId, userInfo.getUserId(), sessionStamp);
+        }
+        return userInfo;
+    }
+
+    /**
+     * Set the session token of a user, replacing any token the user had.
+     * <p>
+     * The token is updated in place, a user only has one. It is only inserted if the user had no token.
+     * </p>
+     *
+     * @param sessionId the new session token
+     * @param userId    the ID of the user
+     * @throws SQLException if error occured in database
+     */
+    public void replaceSessionToken(String sessionId, String userId) throws SQLException {
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("UPDATE session_info " +
+                    "SET session_id = ? " +
+                    "WHERE user_id = ?");
+            stmt.setString(1, sessionId);
+            stmt.setString(2, userId);
+
+            if (stmt.executeUpdate() == 0) {
+                stmt = connection.prepare("INSERT INTO session_info" +
+                        "(session_id, user_id) VALUES (?, ?)");
+                stmt.setString(1, sessionId);
+                stmt.setString(2, userId);
+                stmt.execute();
+            }
+        } catch (SQLException ex) {
+            sessions.invalidate(userId);
+            throw ex;
+        }
+        sessions.replace(sessionId, userId);
+    }
+
     /**
      * Check if the user-entered login values match the values in the database.
      * <p>
@@ -155,17 +316,19 @@ public class Database {
         String pwd_hsh = "", account_name = "";
         byte[] salt = null;
 
-        // create connection to database
-        PreparedStatement stmt = connection.prepareStatement("SELECT * FROM login_info " +
-                "WHERE account_name = ?");
-        stmt.setString(1, accountName);
-        ResultSet rs = stmt.executeQuery();
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT * FROM login_info " +
+                    "WHERE account_name = ?");
+            stmt.setString(1, accountName);
 
-        // get hashed password from database that's linked to this user
-        while (rs.next()) {
-            pwd_hsh = rs.getString("pwd_hsh");
-            account_name = rs.getString("account_name");
-            salt = rs.getBytes("account_salt");
+            try (ResultSet rs = stmt.executeQuery()) {
+                // get hashed password from database that's linked to this user
+                while (rs.next()) {
+                    pwd_hsh = rs.getString("pwd_hsh");
+                    account_name = rs.getString("account_name");
+                    salt = rs.getBytes("account_salt");
+                }
+            }
         }
 
         // if password or username was not found in database
@@ -188,16 +351,22 @@ public class Database {
      * @throws SQLException if error occured in database
      */
     public boolean checkIfLoginValid(String sessionId) throws SQLException {
-        // create connection to database
-        PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(*) AS session_count FROM session_info " +
-                "WHERE session_id = ?");
-        stmt.setString(1, sessionId);
-        ResultSet rs = stmt.executeQuery();
+        if (sessions.get(sessionId) != null) {
+            return true;
+        }
 
-        rs.next();
-        // get the total count of session_info names (1 if it exists, 0 else)
-        int count = rs.getInt("session_count");
-        rs.close();
+        int count;
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT COUNT(*) AS session_count FROM session_info " +
+                    "WHERE session_id = ?");
+            stmt.setString(1, sessionId);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                // get the total count of session_info names (1 if it exists, 0 else)
+                count = rs.getInt("session_count");
+            }
+        }
 
         // check if sessionID is valid
         return count == 0 ? false : true;
@@ -211,12 +380,15 @@ public class Database {
      * @throws SQLException if error occured in database
      */
     public void insertSessionToken(String sessionId, String userId) throws SQLException {
-        PreparedStatement stmt = connection.prepareStatement("INSERT INTO session_info" +
-                "(session_id, user_id) VALUES (?, ?)");
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("INSERT INTO session_info" +
+                    "(session_id, user_id) VALUES (?, ?)");
 
-        stmt.setString(1, sessionId);
-        stmt.setString(2, userId);
-        stmt.execute();
+            stmt.setString(1, sessionId);
+            stmt.setString(2, userId);
+            stmt.execute();
+        }
+        sessions.replace(sessionId, userId);
     }
 
     /**
@@ -227,16 +399,18 @@ public class Database {
      * @return count of tokens associated with a user_id
      */
     public int countSessionToken(String userId) throws SQLException {
-        // create connection to database
-        PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(*) AS session_count FROM session_info " +
-                "WHERE user_id = ?");
-        stmt.setString(1, userId);
-        ResultSet rs = stmt.executeQuery();
+        int count;
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT COUNT(*) AS session_count FROM session_info " +
+                    "WHERE user_id = ?");
+            stmt.setString(1, userId);
 
-        rs.next();
-        // get the total count of session_info names (1 if it exists, 0 else)
-        int count = rs.getInt("session_count");
-        rs.close();
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                // get the total count of session_info names (1 if it exists, 0 else)
+                count = rs.getInt("session_count");
+            }
+        }
 
         // check if sessionID is valid
         return count;
@@ -249,11 +423,15 @@ public class Database {
      * @throws SQLException if error occured in database
      */
     public void terminateSessionToken(String userId) throws SQLException {
-        PreparedStatement stmt = connection.prepareStatement("DELETE FROM session_info " +
-                "WHERE user_id = ?");
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("DELETE FROM session_info " +
+                    "WHERE user_id = ?");
 
-        stmt.setString(1, userId);
-        stmt.execute();
+            stmt.setString(1, userId);
+            stmt.execute();
+        } finally {
+            sessions.invalidate(userId);
+        }
     }
 
     /**
@@ -263,15 +441,15 @@ public class Database {
      */
     public String getUserId(String accountName) {
         String userId = "";
-        try {
-            PreparedStatement stmt = connection.prepareStatement("SELECT user_id FROM login_info " +
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT user_id FROM login_info " +
                     "WHERE account_name = ?");
             stmt.setString(1, accountName);
-            ResultSet rs = stmt.executeQuery();
 
-            rs.next();
-            userId = rs.getString("user_id");
-            rs.close();
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                userId = rs.getString("user_id");
+            }
         } catch (SQLException ex) {
             System.out.println("Error occured when trying to get user: " + ex.getMessage());
             return "";
@@ -287,16 +465,20 @@ public class Database {
      * @return Userid of the user
      */
     public String getUserIdBySession(String sessionToken) {
-        String userId = "";
-        try {
-            PreparedStatement stmt = connection.prepareStatement("SELECT user_id FROM session_info " +
+        String userId = sessions.get(sessionToken);
+        if (userId != null) {
+            return userId;
+        }
+
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT user_id FROM session_info " +
                     "WHERE session_id = ?");
             stmt.setString(1, sessionToken);
-            ResultSet rs = stmt.executeQuery();
 
-            rs.next();
-            userId = rs.getString("user_id");
-            rs.close();
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                userId = rs.getString("user_id");
+            }
         } catch (SQLException ex) {
             System.out.println("Error occured when trying to get user: " + ex.getMessage());
             return "";
@@ -323,15 +505,17 @@ public class Database {
         // hash user's password before we insert into database
         String hashedPwd = hasher.hash(nonHashedPwd, salt);
 
-        PreparedStatement stmt = connection.prepareStatement("UPDATE login_info " +
-                "SET pwd_hsh = ?, account_salt = ? " +
-                "WHERE user_id = ?");
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("UPDATE login_info " +
+                    "SET pwd_hsh = ?, account_salt = ? " +
+                    "WHERE user_id = ?");
 
-        stmt.setString(1, hashedPwd);
-        stmt.setBytes(2, salt);
-        stmt.setString(3, userId);
+            stmt.setString(1, hashedPwd);
+            stmt.setBytes(2, salt);
+            stmt.setString(3, userId);
 
-        stmt.execute();
+            stmt.execute();
+        }
     }
 
     /**
@@ -348,93 +532,223 @@ public class Database {
      * @return true if upload was successful, else false
      */
     protected void insertProfile(String userId, String displayName, byte[] avatarImage, int gamesPlayed, int gamesWon) throws SQLException {
-        PreparedStatement stmt = connection.prepareStatement("INSERT INTO user_info" +
-                "(user_id, display_name, avatar_path, games_played, games_won) VALUES (?, ?, ?, ?, ?)");
+        String avatarHash = avatarImage == null ? null : storeAvatar(avatarImage);
+
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("INSERT INTO user_info" +
+                    "(user_id, display_name, avatar_path, games_played, games_won) VALUES (?, ?, ?, ?, ?)");
 
-        stmt.setString(1, userId);
-        stmt.setString(2, displayName);
-        stmt.setBytes(3, avatarImage);
-        stmt.setInt(4, gamesPlayed);
-        stmt.setInt(5, gamesWon);
+            stmt.setString(1, userId);
+            stmt.setString(2, displayName);
+            stmt.setString(3, avatarHash);
+            stmt.setInt(4, gamesPlayed);
+            stmt.setInt(5, gamesWon);
 
-        stmt.execute();
+            stmt.execute();
+        }
     }
 
     /**
-     * Get the user by his account name
+     * Get the user by his account name, with avatar
      *
      * @param userId the user ID of the user
      * @return a data class containing all relevant info about a user
      */
     public UserInfo getProfile(String userId) {
-        UserInfo userInfo = null;
-        try {
-            PreparedStatement stmt = connection.prepareStatement("SELECT * FROM user_info " +
-                    "WHERE user_id = ?");
-            stmt.setString(1, userId);
-            ResultSet rs = stmt.executeQuery();
-
-            // loop over user
-            while (rs.next()) {
-                userInfo = new UserInfo(
-                        rs.getString("user_id"),
-                        rs.getString("display_name"),
-                        rs.getBytes("avatar_path"),
-                        rs.getInt("games_played"),
-                        rs.getInt("games_won")
-                );
-            }
-        } catch (SQLException ex) {
-            System.out.println("Error occured when trying to get user: " + ex.getMessage());
-            return null;
+        UserInfo userInfo = getUserInfo(userId);
+        if (userInfo != null && userInfo.getAvatarHash() != null) {
+            userInfo.setAvatarImage(getAvatar(userInfo.getAvatarHash(), false));
         }
-
         return userInfo;
     }
 
     /**
-     * Get the user by their display name
+     * Get the user by their display name, with avatar
      *
      * @param displayName display name of the user
      * @return a data class containing all relevant info about a user
      */
     public UserInfo getProfilebyDisplayName(String displayName) {
-        UserInfo userInfo = null;
-        try {
-            PreparedStatement stmt = connection.prepareStatement("SELECT * FROM user_info " +
-                    "WHERE display_name = ?");
-            stmt.setString(1, displayName);
-            ResultSet rs = stmt.executeQuery();
+        UserInfo userInfo = getUserInfoByDisplayName(displayName);
+        if (userInfo != null && userInfo.getAvatarHash() != null) {
+            userInfo.setAvatarImage(getAvatar(userInfo.getAvatarHash(), false));
+        }
+        return userInfo;
+    }
 
-            // loop over user
-            while (rs.next()) {
-                userInfo = new UserInfo(
-                        rs.getString("user_id"),
-                        rs.getString("display_name"),
-                        rs.getBytes("avatar_path"),
-                        rs.getInt("games_played"),
-                        rs.getInt("games_won")
-                );
+    /**
+     * Get the user by his user ID, without avatar.
+     * <p>
+     * Recently used users are kept in memory, so this is cheap enough to call for every player or chat member.
+     * </p>
+     *
+     * @param userId the user ID of the user
+     * @return the user without avatar, null if not found
+     */
+    public UserInfo getUserInfo(String userId) {
+        UserInfo userInfo = profiles.get(userId);
+        if (userInfo == null) {
+            userInfo = loadUserInfo("SELECT * FROM user_info " +
+                    "WHERE user_id = ?", userId);
+        }
+        return userInfo;
+    }
+
+    /**
+     * Get the user by their display name, without avatar. See {@link #getUserInfo(String)}.
+     *
+     * @param displayName display name of the user
+     * @return the user without avatar, null if not found
+     */
+    public UserInfo getUserInfoByDisplayName(String displayName) {
+        UserInfo userInfo = profiles.getByDisplayName(displayName);
+        if (userInfo == null) {
+            userInfo = loadUserInfo("SELECT * FROM user_info " +
+                    "WHERE display_name = ?", displayName);
+        }
+        return userInfo;
+    }
+
+    /**
+     * Read a user from the database and remember it.
+     *
+     * @param query query for the user
+     * @param key user ID or display name to look for
+     * @return the user without avatar, null if not found
+     */
+    private UserInfo loadUserInfo(String query, String key) {
+        UserInfo userInfo = null;
+        long stamp = profiles.stamp();
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare(query);
+            stmt.setString(1, key);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                // loop over user
+                while (rs.next()) {
+                    userInfo = readUserInfo(rs);
+                }
             }
         } catch (SQLException ex) {
             System.out.println("Error occured when trying to get user: " + ex.getMessage());
             return null;
         }
 
+        if (userInfo != null) {
+            profiles.put(userInfo, stamp);
+        }
+        return userInfo;
+    }
+
+    /**
+     * Read a user, without avatar, from the current row of a query on user_info.
+     */
+    private UserInfo readUserInfo(ResultSet rs) throws SQLException {
+        UserInfo userInfo = new UserInfo(
+                rs.getString("user_id"),
+                rs.getString("display_name"),
+                null,
+                rs.getInt("games_played"),
+                rs.getInt("games_won")
+        );
+        userInfo.setAvatarHash(rs.getString("avatar_path"));
         return userInfo;
     }
 
+    /**
+     * Get an avatar from the avatar store
+     *
+     * @param avatarHash the hash of the avatar
+     * @param thumbnail true to get the thumbnail, which is the full image if it is small already
+     * @return the image data, null if there is no such avatar
+     */
+    public byte[] getAvatar(String avatarHash, boolean thumbnail) {
+        byte[] avatar = null;
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare(thumbnail
+                    ? "SELECT COALESCE(thumbnail, image) AS avatar FROM avatar_store WHERE avatar_hash = ?"
+                    : "SELECT image AS avatar FROM avatar_store WHERE avatar_hash = ?");
+            stmt.setString(1, avatarHash);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    avatar = rs.getBytes("avatar");
+                }
+            }
+        } catch (SQLException ex) {
+            System.out.println("Error occured when trying to get avatar: " + ex.getMessage());
+            return null;
+        }
+
+        return avatar;
+    }
+
+    /**
+     * Put an avatar in the avatar store, unless it is there already. A thumbnail is made the first time.
+     *
+     * @param image the image data
+     * @return the hash the avatar is stored by
+     * @throws SQLException if the avatar could not be stored
+     */
+    private String storeAvatar(byte[] image) throws SQLException {
+        String avatarHash = sha256(image);
+
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT COUNT(*) AS avatar_count FROM avatar_store " +
+                    "WHERE avatar_hash = ?");
+            stmt.setString(1, avatarHash);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                if (rs.getInt("avatar_count") > 0) {
+                    return avatarHash;
+                }
+            }
+
+            stmt = connection.prepare("INSERT INTO avatar_store" +
+                    "(avatar_hash, image, thumbnail) VALUES (?, ?, ?)");
+            stmt.setString(1, avatarHash);
+            stmt.setBytes(2, image);
+            stmt.setBytes(3, ImageManager.scaleImage(image, THUMBNAIL_SIZE));
+            stmt.execute();
+        } catch (SQLIntegrityConstraintViolationException ex) {
+            // stored by someone else in the meantime, which is just as good
+        }
+
+        return avatarHash;
+    }
+
+    /**
+     * Hash data with SHA-256
+     *
+     * @param data the data
+     * @return the hash as 64 lower case hex digits
+     */
+    private static String sha256(byte[] data) {
+        try {
+            byte[] bytes = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+        }
+    }
+
     public boolean displaynameExists(String displayname) throws SQLException {
-        // create connection to database
-        PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(*) AS name_count FROM user_info " +
-                "WHERE display_name = ?");
-        stmt.setString(1, displayname);
-        ResultSet rs = stmt.executeQuery();
+        int count;
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT COUNT(*) AS name_count FROM user_info " +
+                    "WHERE display_name = ?");
+            stmt.setString(1, displayname);
 
-        rs.next();
-        // get the total count of rooms with name 'name_count' (1 if it exists, 0 else)
-        int count = rs.getInt("name_count");
-        rs.close();
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                // get the total count of rooms with name 'name_count' (1 if it exists, 0 else)
+                count = rs.getInt("name_count");
+            }
+        }
 
         // check if sessionID is valid
         return count > 0;
@@ -442,29 +756,38 @@ public class Database {
 
     /**
      * Update a user in the database with new information
+     * <p>
+     *     Only the display name and avatar are written. Games played and won are only changed by
+     *     {@link #updateGameStats(List, String)}, so a game that ends while a profile is edited is still counted.
+     *     Without an avatar image the avatar is left as it is.
+     * </p>
      *
      * @param userInfo the Data class holding all relevant information about a user
      * @throws SQLException if database could not update, else none
      */
     public void updateProfile(UserInfo userInfo) throws SQLException {
-        PreparedStatement stmt = connection.prepareStatement("UPDATE user_info " +
-                "SET display_name = ?, avatar_path = ?, games_played = ?, games_won = ? " +
-                "WHERE user_id = ?");
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt;
+            if (userInfo.getAvatarImage() != null) {
+                // a new image is stored and referred to by its hash
+                stmt = connection.prepare("UPDATE user_info " +
+                        "SET display_name = ?, avatar_path = ? " +
+                        "WHERE user_id = ?");
+                stmt.setString(2, storeAvatar(userInfo.getAvatarImage()));
+                stmt.setString(3, userInfo.getUserId());
+            } else {
+                // no image, the profile keeps referring to the avatar it has (if any)
+                stmt = connection.prepare("UPDATE user_info " +
+                        "SET display_name = ? " +
+                        "WHERE user_id = ?");
+                stmt.setString(2, userInfo.getUserId());
+            }
+            stmt.setString(1, userInfo.getDisplayName());
 
-        // if user has set image, update in db, else set the field to null in db
-        if(userInfo.getAvatarImage() != null){
-            InputStream stream = new ByteArrayInputStream(userInfo.getAvatarImage());
-            stmt.setBinaryStream(2, stream);
-        } else {
-            stmt.setBinaryStream(2, null);
+            stmt.execute();
+        } finally {
+            profiles.invalidate(userInfo.getUserId());
         }
-
-        stmt.setString(1, userInfo.getDisplayName());
-        stmt.setInt(3, userInfo.getGamesPlayed());
-        stmt.setInt(4, userInfo.getGamesWon());
-        stmt.setString(5, userInfo.getUserId());
-
-        stmt.execute();
     }
 
     /**
@@ -474,11 +797,13 @@ public class Database {
      * @throws SQLException Exception if item could not be inserted into database
      */
     public void insertChatRoom(String chatRoom) throws SQLException {
-        PreparedStatement stmt = connection.prepareStatement("INSERT INTO chat_room" +
-                "(chat_name) VALUES (?)");
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("INSERT INTO chat_room" +
+                    "(chat_name) VALUES (?)");
 
-        stmt.setString(1, chatRoom);
-        stmt.execute();
+            stmt.setString(1, chatRoom);
+            stmt.execute();
+        }
     }
 
     /**
@@ -489,14 +814,15 @@ public class Database {
     public ArrayList<String> getAllChatRooms() {
         ArrayList<String> chatRooms = new ArrayList<>();
 
-        try {
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
             // get the messages from database
-            Statement stmt = connection.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM chat_room");
+            PreparedStatement stmt = connection.prepare("SELECT * FROM chat_room");
 
-            // loop over all data and add each entry into our arraylist
-            while (rs.next()) {
-                chatRooms.add(rs.getString("chat_name"));
+            try (ResultSet rs = stmt.executeQuery()) {
+                // loop over all data and add each entry into our arraylist
+                while (rs.next()) {
+                    chatRooms.add(rs.getString("chat_name"));
+                }
             }
         } catch (SQLException ex) {
             System.out.println("Error occured when trying to get chat rooms: " + ex.getMessage());
@@ -517,11 +843,13 @@ public class Database {
      * @throws SQLException if error in deleting occurs, else none
      */
     public void removeChatRoom(String chatRoom) throws SQLException {
-        PreparedStatement stmt = connection.prepareStatement("DELETE FROM chat_room " +
-                "WHERE chat_name=?");
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("DELETE FROM chat_room " +
+                    "WHERE chat_name=?");
 
-        stmt.setString(1, chatRoom);
-        stmt.execute();
+            stmt.setString(1, chatRoom);
+            stmt.execute();
+        }
     }
 
     /**
@@ -531,44 +859,76 @@ public class Database {
      * @throws SQLException
      */
     public boolean isChatRoom(String chatroom) throws SQLException {
-        // create connection to database
-        PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(*) AS room_count FROM chat_room " +
-                "WHERE chat_name = ?");
-        stmt.setString(1, chatroom);
-        ResultSet rs = stmt.executeQuery();
-
-        rs.next();
-        // get the total count of rooms with name 'chatroom' (1 if it exists, 0 else)
-        int count = rs.getInt("room_count");
-        rs.close();
+        int count;
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT COUNT(*) AS room_count FROM chat_room " +
+                    "WHERE chat_name = ?");
+            stmt.setString(1, chatroom);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                // get the total count of rooms with name 'chatroom' (1 if it exists, 0 else)
+                count = rs.getInt("room_count");
+            }
+        }
 
         // check if sessionID is valid
         return count > 0;
     }
 
+    /**
+     * Queue a chat message to be written to the database in the background. It is given an id and stamped with
+     * the current time. Queued messages are written within a few milliseconds, or right away by {@link #flushChatLog()}.
+     *
+     * @param chatName    The name of the chat room the message was sent to
+     * @param userId      The user who sent the message
+     * @param chatMessage The actual text the user sent to the chat message
+     * @return the message as it will be stored, with the display name of the user
+     */
+    public ChatMessage queueChatMessage(String chatName, String userId, String chatMessage) {
+        long timestamp = Instant.now().getEpochSecond();
+        long id = lastChatMessageId.incrementAndGet();
+        chatLog.add(id, chatName, userId, chatMessage, timestamp);
+
+        UserInfo info = getUserInfo(userId);
+        return new ChatMessage(chatName, info == null ? null : info.getDisplayName(), chatMessage, timestamp, id);
+    }
+
+    /**
+     * Write all queued chat messages to the database before returning.
+     */
+    public void flushChatLog() {
+        chatLog.flush();
+    }
+
     /**
      * Insert chat message into the database. It auto adds a timestamp into the database as well.
      *
      * @param chatName    The name of the user who sent the message
      * @param chatMessage The actual text the user sent to the chat message
+     * @return the timestamp the message was stored with
      */
-    public void insertChatMessage(String chatName, String userId, String chatMessage) throws SQLException {
+    public long insertChatMessage(String chatName, String userId, String chatMessage) throws SQLException {
         long timestamp = Instant.now().getEpochSecond();
 
         // make query ready to insert data
-        PreparedStatement stmt = connection.prepareStatement("INSERT INTO chat_log" +
-                "(chat_name, user_id, chat_message, timestamp) VALUES (?, ?, ?, ?)");
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("INSERT INTO chat_log" +
+                    "(id, chat_name, user_id, chat_message, timestamp) VALUES (?, ?, ?, ?, ?)");
 
-        stmt.setString(1, chatName);
-        stmt.setString(2, userId);
-        stmt.setString(3, chatMessage);
-        stmt.setLong(4, timestamp);
+            stmt.setLong(1, lastChatMessageId.incrementAndGet());
+            stmt.setString(2, chatName);
+            stmt.setString(3, userId);
+            stmt.setString(4, chatMessage);
+            stmt.setLong(5, timestamp);
 
-        stmt.execute();
+            stmt.execute();
+        }
+        return timestamp;
     }
 
     /**
-     * Get all chat messages with relevant information of a particular chat room.
+     * Get all chat messages with relevant information of a particular chat room, oldest first.
      *
      * @param chatName the chat room to get chat log from
      * @return Array of chat messages or null if error/none found
@@ -577,28 +937,139 @@ public class Database {
         ArrayList<ChatMessage> chatMessages = new ArrayList<ChatMessage>();
 
         // get the messages
-        try {
-            PreparedStatement stmt = connection.prepareStatement("SELECT chat_log.chat_name, user_info.display_name, chat_log.chat_message, chat_log.timestamp FROM chat_log " +
-                    "JOIN user_info ON user_info.user_id = chat_log.user_id WHERE chat_name=? ORDER BY 'timestamp' DESC");
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT chat_log.id, chat_log.chat_name, user_info.display_name, chat_log.chat_message, chat_log.timestamp FROM chat_log " +
+                    "JOIN user_info ON user_info.user_id = chat_log.user_id WHERE chat_name=? ORDER BY chat_log.timestamp, chat_log.id");
             stmt.setString(1, chatName);
+            readChatMessages(stmt, chatMessages);
+        } catch (SQLException ex) {
+            System.out.println("Error occured when trying to get chat message: " + ex.getMessage());
+            return null;
+        }
 
-            ResultSet rs = stmt.executeQuery();
+        return chatMessages;
+    }
 
+    /**
+     * Get a page of the chat log of a chat room: the latest messages sent before a given message, oldest first.
+     * <p>
+     * Messages are ordered by timestamp, and by id within a second. Only the rows of the page are read, using the
+     * index on chat name, timestamp and id. The timestamp and id of the first message is where the next page starts.
+     * </p>
+     *
+     * @param chatName the chat room to get chat log from
+     * @param before only get messages sent before this time (epoch seconds), Long.MAX_VALUE for the latest messages
+     * @param beforeId of the messages sent at time {@code before}, only get those with a lower id
+     * @param count max number of messages to get
+     * @return chat messages, or null if error
+     */
+    public ArrayList<ChatMessage> getChatMessages(String chatName, long before, long beforeId, int count) {
+        ArrayList<ChatMessage> chatMessages = new ArrayList<ChatMessage>();
+
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT chat_log.id, chat_log.chat_name, user_info.display_name, chat_log.chat_message, chat_log.timestamp FROM chat_log " +
+                    "JOIN user_info ON user_info.user_id = chat_log.user_id WHERE chat_name = ? AND chat_log.timestamp <= ? " +
+                    "AND (chat_log.timestamp < ? OR chat_log.id < ?) " +
+                    "ORDER BY chat_log.timestamp DESC, chat_log.id DESC FETCH FIRST ? ROWS ONLY");
+            stmt.setString(1, chatName);
+            stmt.setLong(2, before);
+            stmt.setLong(3, before);
+            stmt.setLong(4, beforeId);
+            stmt.setInt(5, count);
+            readChatMessages(stmt, chatMessages);
+        } catch (SQLException ex) {
+            System.out.println("Error occured when trying to get chat message: " + ex.getMessage());
+            return null;
+        }
+
+        Collections.reverse(chatMessages);
+        return chatMessages;
+    }
+
+    /**
+     * Run a query for chat messages and add them to a list
+     *
+     * @param stmt query selecting id, chat name, display name, chat message and timestamp
+     * @param chatMessages list to add the messages to
+     * @throws SQLException if error occured in database
+     */
+    private void readChatMessages(PreparedStatement stmt, ArrayList<ChatMessage> chatMessages) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery()) {
             // loop over all data and add each entry into our arraylist
             while (rs.next()) {
                 chatMessages.add(new ChatMessage(
                         rs.getString("chat_name"),
                         rs.getString("display_name"),
                         rs.getString("chat_message"),
-                        rs.getLong("timestamp")
+                        rs.getLong("timestamp"),
+                        rs.getLong("id")
                 ));
             }
-        } catch (SQLException ex) {
-            System.out.println("Error occured when trying to get chat message: " + ex.getMessage());
-            return null;
         }
+    }
 
-        return chatMessages;
+    /**
+     * Count a finished game for its players: one more game played for all of them, and one more win for the
+     * winner. All players are updated in one transaction, and nothing else in their profiles is touched.
+     *
+     * @param userIds  the players of the game
+     * @param winnerId the player who won, null if nobody did
+     * @throws SQLException if the counts could not be updated, then none of them are
+     */
+    public void updateGameStats(List<String> userIds, String winnerId) throws SQLException {
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            Connection conn = connection.getConnection();
+            PreparedStatement stmt = connection.prepare("UPDATE user_info " +
+                    "SET games_played = games_played + 1, games_won = games_won + ? " +
+                    "WHERE user_id = ?");
+            stmt.clearBatch();
+
+            conn.setAutoCommit(false);
+            try {
+                for (String userId : userIds) {
+                    stmt.setInt(1, userId.equals(winnerId) ? 1 : 0);
+                    stmt.setString(2, userId);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                stmt.clearBatch();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            for (String userId : userIds) {
+                profiles.invalidate(userId);
+            }
+        }
+    }
+
+    /**
+     * Read the games played and won of every player, to fill the leaderboard.
+     * The players are read one at a time, without the columns the leaderboard does not need.
+     *
+     * @param action called with each player, as a profile without avatar
+     * @throws SQLException if error occured in database
+     */
+    public void forEachUserStats(Consumer<UserInfo> action) throws SQLException {
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement stmt = connection.prepare("SELECT user_id, display_name, games_played, games_won FROM user_info");
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    action.accept(new UserInfo(
+                            rs.getString("user_id"),
+                            rs.getString("display_name"),
+                            null,
+                            rs.getInt("games_played"),
+                            rs.getInt("games_won")
+                    ));
+                }
+            }
+        }
     }
 
     /**
@@ -610,37 +1081,39 @@ public class Database {
         ArrayList<TopTenList.PlayedEntry> playedEntries = new ArrayList<>();
         ArrayList<TopTenList.WonEntry> wonEntries = new ArrayList<>();
 
-        try {
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
             // get the top ten plays
-            PreparedStatement stmt = connection.prepareStatement("SELECT * FROM user_info " +
+            PreparedStatement stmt = connection.prepare("SELECT * FROM user_info " +
                     "ORDER BY games_played DESC " +
                     "FETCH FIRST 10 ROWS ONLY");
-            ResultSet rs = stmt.executeQuery();
 
-            // loop over all data and add each entry into our arraylist
-            int counter = 1;
-            while (rs.next()) {
-                playedEntries.add(new TopTenList.PlayedEntry(
-                        rs.getString("display_name"),
-                        rs.getInt("games_played"),
-                        counter++)
-                );
+            try (ResultSet rs = stmt.executeQuery()) {
+                // loop over all data and add each entry into our arraylist
+                int counter = 1;
+                while (rs.next()) {
+                    playedEntries.add(new TopTenList.PlayedEntry(
+                            rs.getString("display_name"),
+                            rs.getInt("games_played"),
+                            counter++)
+                    );
+                }
             }
 
             // get the top ten wins
-            stmt = connection.prepareStatement("SELECT * FROM user_info " +
+            stmt = connection.prepare("SELECT * FROM user_info " +
                     "ORDER BY games_won DESC " +
                     "FETCH FIRST 10 ROWS ONLY");
-            rs = stmt.executeQuery();
 
-            // loop over all data and add each entry into our arraylist
-            counter = 1;
-            while (rs.next()) {
-                wonEntries.add(new TopTenList.WonEntry(
-                        rs.getString("display_name"),
-                        rs.getInt("games_won"),
-                        counter++)
-                );
+            try (ResultSet rs = stmt.executeQuery()) {
+                // loop over all data and add each entry into our arraylist
+                int counter = 1;
+                while (rs.next()) {
+                    wonEntries.add(new TopTenList.WonEntry(
+                            rs.getString("display_name"),
+                            rs.getInt("games_won"),
+                            counter++)
+                    );
+                }
             }
         } catch (SQLException ex) {
             System.out.println("Error occured when trying to get top ten list: " + ex.getMessage());
@@ -666,9 +1139,12 @@ public class Database {
     }
 
     /**
-     * Used for setting up Database for test environment
+     * Used for setting up Database for test environment. Closes the previous instance, if any.
      */
-    protected static Database constructTestDatabase(String testDBURL) {
+    protected static synchronized Database constructTestDatabase(String testDBURL) {
+        if (DATABASE_INSTANCE != null) {
+            DATABASE_INSTANCE.close();
+        }
         DATABASE_INSTANCE = new Database(testDBURL);
         return DATABASE_INSTANCE;
     }
@@ -679,9 +1155,7 @@ public class Database {
      * @throws SQLException if table could not be created, else none
      */
     private void createLoginInformationTable() throws SQLException {
-        Statement stmt = connection.createStatement();
-
-        stmt.execute("CREATE TABLE login_info (" +
+        createIfMissing("CREATE TABLE login_info (" +
                 "user_id varchar(36) NOT NULL," +
                 "account_name varchar(24) NOT NULL," +
                 "pwd_hsh varchar(128) NOT NULL," +
@@ -698,12 +1172,11 @@ public class Database {
      * @throws SQLException if table could not be created, else none
      */
     private void createUserInformationTable() throws SQLException {
-        Statement stmt = connection.createStatement();
-
-        stmt.execute("CREATE TABLE user_info (" +
+        createIfMissing("CREATE TABLE user_info (" +
                 "user_id varchar(36) NOT NULL," +
                 "display_name varchar(24) NOT NULL," +
-                "avatar_path blob(16M) ," +
+                // hash of the avatar in "avatar_store", null if the user has no avatar
+                "avatar_path varchar(64) ," +
                 "games_played int NOT NULL," +
                 "games_won int NOT NULL," +
                 // "user_id" should be unique and primary key
@@ -721,9 +1194,7 @@ public class Database {
      * @throws SQLException if table could not be created, else none
      */
     private void createSessionInformationTable() throws SQLException {
-        Statement stmt = connection.createStatement();
-
-        stmt.execute("CREATE TABLE session_info (" +
+        createIfMissing("CREATE TABLE session_info (" +
                 "session_id varchar(36) NOT NULL," +
                 "user_id varchar(36) NOT NULL," +
                 // "session_id" should be unique and primary key
@@ -739,9 +1210,7 @@ public class Database {
      * @throws SQLException if table could not be created, else none
      */
     private void createChatRoomTable() throws SQLException {
-        Statement stmt = connection.createStatement();
-
-        stmt.execute("CREATE TABLE chat_room (" +
+        createIfMissing("CREATE TABLE chat_room (" +
                 "chat_name varchar(36) NOT NULL," +
                 // room name should be unique
                 "PRIMARY KEY (chat_name))");
@@ -753,18 +1222,178 @@ public class Database {
      * @throws SQLException if table could not be created, else none
      */
     private void createChatLogTable() throws SQLException {
-        Statement stmt = connection.createStatement();
-
-        stmt.execute("CREATE TABLE chat_log (" +
+        createIfMissing("CREATE TABLE chat_log (" +
                 "chat_name varchar(36) NOT NULL, " +
                 "user_id varchar(36) NOT NULL," +
                 "chat_message varchar(500), " +
                 "timestamp bigint," +
+                // given by the server when the message is sent, see queueChatMessage
+                "id bigint NOT NULL," +
                 // "chat_name" is a foreign key of "room_name" from table "chat_room".
                 // Chat entries will be deleted if the "room_name" is deleted from table "chat_room"
                 "FOREIGN KEY (chat_name) references chat_room(chat_name) ON DELETE CASCADE," +
                 // here "user_id" is a foreign key reference to the "user_info" table
                 // So that we can see the chat log of deleted users, we set the RESTRICT constraint.
-                "FOREIGN KEY (user_id) references login_info(user_id) ON DELETE RESTRICT)");
+                "FOREIGN KEY (user_id) references login_info(user_id) ON DELETE RESTRICT," +
+                "PRIMARY KEY (id))");
+    }
+
+    /**
+     * Creates the index used to find the latest messages of a chat room
+     *
+     * @throws SQLException if index could not be created, else none
+     */
+    private void createChatLogIndex() throws SQLException {
+        createIfMissing("CREATE INDEX chat_log_room_time_id ON chat_log (chat_name, timestamp, id)");
+    }
+
+    /**
+     * Reads the id of the latest chat message, the ids of new messages count up from there
+     *
+     * @return the highest id in the chat log, 0 if it is empty
+     * @throws SQLException if error occured in database
+     */
+    private long readLastChatMessageId() throws SQLException {
+        try (ConnectionPool.PooledConnection connection = pool.acquire();
+             Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(id) AS last_id FROM chat_log")) {
+            rs.next();
+            return rs.getLong("last_id");     // 0 if NULL
+        }
+    }
+
+    /**
+     * Creates the table for avatars, keyed by the SHA-256 hash of the image
+     *
+     * @throws SQLException if table could not be created, else none
+     */
+    private void createAvatarStoreTable() throws SQLException {
+        createIfMissing("CREATE TABLE avatar_store (" +
+                "avatar_hash char(64) NOT NULL," +
+                "image blob(16M) NOT NULL," +
+                // smaller copy of the image, null if the image is small already
+                "thumbnail blob(1M)," +
+                "PRIMARY KEY (avatar_hash))");
+    }
+
+    /**
+     * Runs a CREATE TABLE or CREATE INDEX statement, unless the table or index exists already
+     *
+     * @param sql the statement
+     * @throws SQLException if table could not be created, else none
+     */
+    private void createIfMissing(String sql) throws SQLException {
+        try (ConnectionPool.PooledConnection connection = pool.acquire();
+             Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        } catch (SQLException ex) {
+            if (!ALREADY_EXISTS.equals(ex.getSQLState())) {
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Moves avatars of databases made before the avatar store was added, where "avatar_path" held the image itself.
+     * Each image is put in the avatar store and replaced by its hash.
+     *
+     * @throws SQLException if the database could not be updated, nothing is changed then
+     */
+    private void migrateAvatarColumn() throws SQLException {
+        try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+            Connection connection = pooled.getConnection();
+            try (ResultSet columns = connection.getMetaData().getColumns(null, null, "USER_INFO", "AVATAR_PATH")) {
+                if (!columns.next() || !"BLOB".equals(columns.getString("TYPE_NAME"))) {
+                    return;     // already up to date
+                }
+            }
+
+            System.out.println("Moving avatars to the avatar store...");
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("ALTER TABLE user_info ADD COLUMN avatar_hash varchar(64)");
+
+                try (ResultSet rs = stmt.executeQuery("SELECT user_id, avatar_path FROM user_info WHERE avatar_path IS NOT NULL");
+                     PreparedStatement store = connection.prepareStatement("INSERT INTO avatar_store" +
+                             "(avatar_hash, image, thumbnail) VALUES (?, ?, ?)");
+                     PreparedStatement exists = connection.prepareStatement("SELECT COUNT(*) AS avatar_count FROM avatar_store " +
+                             "WHERE avatar_hash = ?");
+                     PreparedStatement update = connection.prepareStatement("UPDATE user_info SET avatar_hash = ? WHERE user_id = ?")) {
+                    while (rs.next()) {
+                        byte[] image = rs.getBytes("avatar_path");
+                        String avatarHash = sha256(image);
+
+                        exists.setString(1, avatarHash);
+                        int count;
+                        try (ResultSet existing = exists.executeQuery()) {
+                            existing.next();
+                            count = existing.getInt("avatar_count");
+                        }
+                        if (count == 0) {
+                            store.setString(1, avatarHash);
+                            store.setBytes(2, image);
+                            store.setBytes(3, ImageManager.scaleImage(image, THUMBNAIL_SIZE));
+                            store.execute();
+                        }
+
+                        update.setString(1, avatarHash);
+                        update.setString(2, rs.getString("user_id"));
+                        update.execute();
+                    }
+                }
+
+                stmt.execute("ALTER TABLE user_info DROP COLUMN avatar_path");
+                stmt.execute("RENAME COLUMN user_info.avatar_hash TO avatar_path");
+                connection.commit();
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Gives ids to the messages in chat logs made before messages had ids, and drops the index on chat name and
+     * timestamp. The index that includes the id is made by {@link #createChatLogIndex()}. The old messages are
+     * numbered in no particular order.
+     *
+     * @throws SQLException if the database could not be updated, nothing is changed then
+     */
+    private void migrateChatLogIds() throws SQLException {
+        try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+            Connection connection = pooled.getConnection();
+            try (ResultSet columns = connection.getMetaData().getColumns(null, null, "CHAT_LOG", "ID")) {
+                if (columns.next()) {
+                    return;     // already up to date
+                }
+            }
+
+            System.out.println("Numbering the chat log...");
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("ALTER TABLE chat_log ADD COLUMN id bigint");
+
+                try (Statement select = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
+                     ResultSet rs = select.executeQuery("SELECT id FROM chat_log FOR UPDATE OF id")) {
+                    long id = 0;
+                    while (rs.next()) {
+                        rs.updateLong("id", ++id);
+                        rs.updateRow();
+                    }
+                }
+
+                stmt.execute("ALTER TABLE chat_log ALTER COLUMN id NOT NULL");
+                stmt.execute("ALTER TABLE chat_log ADD PRIMARY KEY (id)");
+                stmt.execute("DROP INDEX chat_log_room_time");
+                connection.commit();
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,66 @@
+package no.ntnu.imt3281.ludo.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs game actions on a fixed set of single threaded executors.
+ * <p>
+ *     Every game is tied to one executor by its game id, so actions for one game are handled one at a time
+ *     and in the order they arrived, while different games are handled in parallel on all cores.
+ * </p>
+ */
+public class GameExecutor {
+    private final ExecutorService[] stripes;
+
+    /**
+     * Creates an executor with one thread per available processor.
+     */
+    public GameExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an executor with the given number of threads.
+     * @param threads number of games that can be handled at the same time
+     */
+    public GameExecutor(int threads) {
+        stripes = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            String name = "game-" + i;
+            stripes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Queues an action for a game.
+     * @param gameid id of the game the action belongs to
+     * @param task the action
+     */
+    public void execute(String gameid, Runnable task) {
+        stripeFor(gameid).execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {  // Do not let one bad message stop the game thread
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Stops all game threads. Actions already queued are still handled.
+     */
+    public void shutdown() {
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+
+    private ExecutorService stripeFor(String gameid) {
+        return stripes[Math.floorMod(gameid.hashCode(), stripes.length)];
+    }
+}
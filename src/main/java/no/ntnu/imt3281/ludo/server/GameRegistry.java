@@ -0,0 +1,137 @@
+package no.ntnu.imt3281.ludo.server;
+
+import no.ntnu.imt3281.ludo.logic.Ludo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All active games on the server.
+ * <p>
+ *     Games are looked up by game id. It also keeps track of which games each player is in, which games
+ *     are still waiting for players and the pending invitations of each game. Safe to use from any thread.
+ * </p>
+ */
+public class GameRegistry {
+    private final ConcurrentHashMap<String, Ludo> games = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> gamesByPlayer = new ConcurrentHashMap<>(); // display name -> game ids
+    private final Set<String> lobby = ConcurrentHashMap.newKeySet(); // ids of games that have not started yet
+    private final ConcurrentHashMap<String, Invitations> invitations = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a new game. The game is open for players until it is started.
+     * @param game the game, with game id and any players already added
+     */
+    public void add(Ludo game) {
+        games.put(game.getGameid(), game);
+        lobby.add(game.getGameid());
+        for (String name : game.getPlayers()) {
+            playerJoined(game.getGameid(), name);
+        }
+    }
+
+    /**
+     * Finds a game.
+     * @param gameid id of the game
+     * @return the game, null if there is no such game
+     */
+    public Ludo get(String gameid) {
+        return gameid == null ? null : games.get(gameid);
+    }
+
+    /**
+     * Removes a game along with its invitations.
+     * @param game the game to remove
+     */
+    public void remove(Ludo game) {
+        String gameid = game.getGameid();
+        if (!games.remove(gameid, game)) {
+            return;
+        }
+        lobby.remove(gameid);
+        invitations.remove(gameid);
+        for (String name : game.getPlayers()) {
+            playerLeft(gameid, name);
+        }
+    }
+
+    public int size() {
+        return games.size();
+    }
+
+    /**
+     * Records that a player was added to a game.
+     * @param gameid id of the game
+     * @param displayName display name of the player
+     */
+    public void playerJoined(String gameid, String displayName) {
+        gamesByPlayer.computeIfAbsent(displayName, name -> ConcurrentHashMap.newKeySet()).add(gameid);
+    }
+
+    /**
+     * Records that a player left a game.
+     * @param gameid id of the game
+     * @param displayName display name of the player
+     */
+    public void playerLeft(String gameid, String displayName) {
+        gamesByPlayer.computeIfPresent(displayName, (name, ids) -> {
+            ids.remove(gameid);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    /**
+     * Finds all games a player is in.
+     * @param displayName display name of the player
+     * @return the games, empty if the player is not in any game
+     */
+    public Collection<Ludo> getGamesOfPlayer(String displayName) {
+        Set<String> ids = displayName == null ? null : gamesByPlayer.get(displayName);
+        if (ids == null) {
+            return Collections.emptyList();
+        }
+        return lookup(ids);
+    }
+
+    /**
+     * Finds the games that have not started yet. They might have filled up since, so check before joining.
+     * @return games waiting for players
+     */
+    public Collection<Ludo> getLobbyGames() {
+        return lookup(lobby);
+    }
+
+    /**
+     * Marks a game as started or full, so it is no longer offered to players searching for a game.
+     * @param gameid id of the game
+     */
+    public void leftLobby(String gameid) {
+        lobby.remove(gameid);
+    }
+
+    public void addInvitations(Invitations invites) {
+        invitations.put(invites.getGameid(), invites);
+    }
+
+    public Invitations getInvitations(String gameid) {
+        return gameid == null ? null : invitations.get(gameid);
+    }
+
+    public void removeInvitations(String gameid) {
+        invitations.remove(gameid);
+    }
+
+    private Collection<Ludo> lookup(Set<String> ids) {
+        ArrayList<Ludo> found = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Ludo game = games.get(id);
+            if (game != null) {
+                found.add(game);
+            }
+        }
+        return found;
+    }
+}
@@ -1,134 +1,335 @@
 package no.ntnu.imt3281.ludo.server;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 import no.ntnu.imt3281.ludo.logic.messages.*;
 
 import java.io.IOException;
-import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.Function;
 
 /**
  * Class that parses incoming messages and classifies them.
+ * <p>
+ *     The json is read token by token in a single pass, without building a tree. The fields are collected in a
+ *     holder that is reused between messages, and the action then picks the message type from a table.
+ *     Clients that use the binary protocol send the same fields as CBOR, which is read the same way.
+ *     Not thread safe, every thread that parses messages needs its own instance.
+ * </p>
  */
 public class JsonMessageParser {
-    ObjectMapper mapper = new ObjectMapper();
+    private static final JsonFactory factory = new JsonFactory();
+    private static final CBORFactory cborFactory = new CBORFactory();
+
+    //Bits for the fields a message can have, used to check that all required fields were sent.
+    private static final int RECIPIENT_SESSION_ID = 1;
+    private static final int USERNAME = 1 << 1;
+    private static final int PASSWORD = 1 << 2;
+    private static final int CHATROOMNAME = 1 << 3;
+    private static final int USERID = 1 << 4;
+    private static final int CHATMESSAGE = 1 << 5;
+    private static final int SEARCHQUERY = 1 << 6;
+    private static final int HOSTID = 1 << 7;
+    private static final int TOINVITEDISPLAYNAMES = 1 << 8;
+    private static final int ACCEPTED = 1 << 9;
+    private static final int GAMEID = 1 << 10;
+    private static final int PLAYERID = 1 << 11;
+    private static final int PIECEMOVED = 1 << 12;
+    private static final int MOVEDFROM = 1 << 13;
+    private static final int MOVEDTO = 1 << 14;
+    private static final int DISPLAYNAME = 1 << 15;
+    private static final int IMAGESTRING = 1 << 16;
+    private static final int FORMAT = 1 << 17;
+    private static final int AVATARHASH = 1 << 18;
+    private static final int THUMBNAIL = 1 << 19;
+    private static final int BEFORE = 1 << 20;
+    private static final int CATEGORY = 1 << 21;
+    private static final int FROM = 1 << 22;
+    private static final int COUNT = 1 << 23;
+    private static final int BEFOREID = 1 << 24;
+
+    private static final HashMap<String, MessageType> types = new HashMap<>();
+
+    static {
+        types.put("UserDoesLoginManual", new MessageType(RECIPIENT_SESSION_ID | USERNAME | PASSWORD,
+                f -> new ClientLogin(f.action, f.username, f.password)));
+        types.put("UserDoesLoginAuto", new MessageType(RECIPIENT_SESSION_ID,
+                f -> new ClientLogin(f.action, "", "")));
+        types.put("UserDoesRegister", new MessageType(RECIPIENT_SESSION_ID | USERNAME | PASSWORD,
+                f -> new ClientRegister(f.action, f.username, f.password)));
+        types.put("UserJoinChat", new MessageType(CHATROOMNAME | USERID,
+                f -> new UserJoinChat(f.action, f.chatroomname, f.userid)));
+        types.put("UserSentMessage", new MessageType(USERID | CHATROOMNAME | CHATMESSAGE,
+                f -> new UserSentMessage(f.action, f.userid, f.chatroomname, f.chatmessage)));
+        types.put("UserLeftChatRoom", new MessageType(USERID | CHATROOMNAME,
+                f -> new UserLeftChatRoom(f.action, f.userid, f.chatroomname)));
+        types.put("UserListChatrooms", new MessageType(0,
+                f -> new UserListChatrooms(f.action)));
+        types.put("UserWantsUsersList", new MessageType(USERID | SEARCHQUERY,
+                f -> new UserWantsUsersList(f.action, f.userid, f.searchquery)));
+        types.put("UserWantsToCreateGame", new MessageType(HOSTID | TOINVITEDISPLAYNAMES,
+                f -> new UserWantsToCreateGame(f.action, f.hostid, f.toinvitedisplaynames)));
+        types.put("UserDoesGameInvitationAnswer", new MessageType(ACCEPTED | USERID | GAMEID,
+                f -> new UserDoesGameInvitationAnswer(f.action, f.accepted, f.userid, f.gameid)));
+        types.put("UserLeftGame", new MessageType(GAMEID,
+                f -> new UserLeftGame(f.action, f.gameid)));
+        types.put("UserDoesDiceThrow", new MessageType(PLAYERID | GAMEID,
+                f -> new UserDoesDiceThrow(f.action, f.playerid, f.gameid)));
+        types.put("UserDoesPieceMove", new MessageType(GAMEID | PLAYERID | PIECEMOVED | MOVEDFROM | MOVEDTO,
+                f -> new UserDoesPieceMove(f.action, f.gameid, f.playerid, f.piecemoved, f.movedfrom, f.movedto)));
+        types.put("UserDoesRandomGameSearch", new MessageType(USERID,
+                f -> new UserDoesRandomGameSearch(f.action, f.userid)));
+        types.put("UserWantToViewProfile", new MessageType(DISPLAYNAME,
+                f -> new UserWantToViewProfile(f.action, f.displayname, f.thumbnail)));
+        types.put("UserWantToEditProfile", new MessageType(DISPLAYNAME | PASSWORD,
+                f -> new UserWantToEditProfile(f.action, f.displayname, f.imageString, f.password)));
+        types.put("UserWantsLeaderboard", new MessageType(0,
+                f -> new UserWantsLeaderboard(f.action)));
+        types.put("UserWantsBinaryProtocol", new MessageType(FORMAT,
+                f -> new UserWantsBinaryProtocol(f.action, f.format)));
+        types.put("UserWantsAvatar", new MessageType(AVATARHASH,
+                f -> new UserWantsAvatar(f.action, f.avatarhash, f.thumbnail)));
+        types.put("UserWantsOlderChatMessages", new MessageType(CHATROOMNAME | BEFORE | BEFOREID,
+                f -> new UserWantsOlderChatMessages(f.action, f.chatroomname, f.before, f.beforeId)));
+        types.put("UserWantsRanking", new MessageType(CATEGORY | COUNT,
+                f -> new UserWantsRanking(f.action, f.category, f.displayname, f.from, f.count)));
+    }
+
+    private final Fields fields = new Fields();
 
     /**
      * Parses incoming json from a client and creates a object of the correct type and returns it.
-     * @param json
-     * @return Message object with correct information
+     * Login and register messages keep the session id they were sent with, all other messages get the
+     * session id of the connection.
+     * @param json the message from the client
+     * @param sessionid session id of the client that sent it
+     * @return Message object with correct information, null if the message is unknown or missing fields
      */
     public Message parseJson(String json, String sessionid) {
-        Message msg = null;
-        try {
-            JsonNode action = mapper.readTree(json);
-            System.out.println("PARSING THIS NOW: " + action.get("action").asText());
-
-            switch(action.get("action").asText()) {
-                case "UserDoesLoginManual":{
-                    msg = new ClientLogin(action.get("action").asText(),action.get("username").asText(),action.get("password").asText());
-                    msg.setRecipientSessionId(action.get("recipientSessionId").asText());
-                    return msg;
-                }
-                case "UserDoesLoginAuto":{
-                    msg = new ClientLogin(action.get("action").asText(),"","");
-                    msg.setRecipientSessionId(action.get("recipientSessionId").asText());
-                    return msg;
-                }
-                case "UserDoesRegister":{
-                    msg = new ClientRegister(action.get("action").asText(),action.get("username").asText(),action.get("password").asText());
-                    msg.setRecipientSessionId(action.get("recipientSessionId").asText());
-                    return msg;
-                }
-                case "UserJoinChat" : {
-                    msg = new UserJoinChat(action.get("action").asText(), action.get("chatroomname").asText(),action.get("userid").asText());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserSentMessage": {
-                    msg = new UserSentMessage(action.get("action").asText(), action.get("userid").asText(), action.get("chatroomname").asText(), action.get("chatmessage").asText());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserLeftChatRoom":{
-                    msg = new UserLeftChatRoom(action.get("action").asText(), action.get("userid").asText(), action.get("chatroomname").asText());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserListChatrooms":{
-                    msg = new UserListChatrooms(action.get("action").asText());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserWantsUsersList":{
-                    msg = new UserWantsUsersList(action.get("action").asText(), action.get("userid").asText(), action.get("searchquery").asText());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserWantsToCreateGame": {
-                    ArrayList<String> toInv = mapper.convertValue(action.get("toinvitedisplaynames"), ArrayList.class);
-                    String[] arr = new String[toInv.size()];
-                    for(int i = 0; i < toInv.size(); i++) {
-                        arr[i] = toInv.get(i);
-                    }
-                    System.out.println("UserWantsToCreateGame size " + toInv.size());
-                    msg = new UserWantsToCreateGame(action.get("action").asText(), action.get("hostid").asText(),arr);
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserDoesGameInvitationAnswer":{
-                    msg = new UserDoesGameInvitationAnswer(action.get("action").asText(), action.get("accepted").asBoolean(),action.get("userid").asText(),action.get("gameid").asText());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserLeftGame":{
-                    msg = new UserLeftGame(action.get("action").asText(), action.get("gameid").asText());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserDoesDiceThrow":{
-                    msg = new UserDoesDiceThrow(action.get("action").asText(), action.get("playerid").asInt(), action.get("gameid").asText());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserDoesPieceMove":{
-                    msg = new UserDoesPieceMove(action.get("action").asText(), action.get("gameid").asText(), action.get("playerid").asInt(), action.get("piecemoved").asInt(), action.get("movedfrom").asInt(), action.get("movedto").asInt());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserDoesRandomGameSearch":{
-                    msg = new UserDoesRandomGameSearch(action.get("action").asText(), action.get("userid").asText());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserWantToViewProfile":{
-                    msg = new UserWantToViewProfile(action.get("action").asText(),action.get("displayname").asText());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserWantToEditProfile":{
-                    msg = new UserWantToEditProfile(action.get("action").asText(), action.get("displayname").asText(), action.get("imageString").binaryValue(), action.get("password").asText());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                case "UserWantsLeaderboard":{
-                    msg = new UserWantsLeaderboard(action.get("action").asText());
-                    msg.setRecipientSessionId(sessionid);
-                    return msg;
-                }
-                default: {
-                    System.out.println("Unhandled incoming json: " + json);
-                    break;
-                }
-            }
+        try (JsonParser parser = factory.createParser(json)) {
+            return parse(parser, json, sessionid);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
+    /**
+     * Parses an incoming binary frame from a client, see {@link #parseJson(String, String)}.
+     * @param cbor the CBOR data of the frame
+     * @param sessionid session id of the client that sent it
+     * @return Message object with correct information, null if the message is unknown or missing fields
+     */
+    public Message parseCbor(byte[] cbor, String sessionid) {
+        try (JsonParser parser = cborFactory.createParser(cbor)) {
+            return parse(parser, "<binary, " + cbor.length + " bytes>", sessionid);
         } catch (IOException e) {
             e.printStackTrace();
-        } catch(NullPointerException e) {
-            System.out.println("Null pointer on JsonMessageParser " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Reads a message and creates the object for it.
+     * @param parser parser positioned before the message
+     * @param raw the message as it is logged if it can not be handled
+     * @param sessionid session id of the client that sent it
+     * @return the message, null if it is unknown or missing fields
+     * @throws IOException if the message is malformed
+     */
+    private Message parse(JsonParser parser, String raw, String sessionid) throws IOException {
+        if (!readFields(parser)) {
+            System.out.println("Unhandled incoming json: " + raw);
+            return null;
+        }
+
+        System.out.println("PARSING THIS NOW: " + fields.action);
+        MessageType type = fields.action == null ? null : types.get(fields.action);
+        if (type == null) {
+            System.out.println("Unhandled incoming json: " + raw);
+            return null;
+        }
+        if ((fields.present & type.required) != type.required) {
+            System.out.println("Missing fields on JsonMessageParser " + fields.action);
+            return null;
         }
-        return null;
+
+        Message msg = type.create.apply(fields);
+        msg.setRecipientSessionId((type.required & RECIPIENT_SESSION_ID) != 0 ? fields.recipientSessionId : sessionid);
+        return msg;
     }
 
+    /**
+     * Reads all top level fields of a json object into the field holder.
+     * @param parser parser positioned before the object
+     * @return false if the json is not an object
+     * @throws IOException if the json is malformed
+     */
+    private boolean readFields(JsonParser parser) throws IOException {
+        fields.reset();
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+
+            switch (name) {
+                case "action": fields.action = text(parser); break;
+                case "recipientSessionId": fields.recipientSessionId = text(parser); fields.present |= RECIPIENT_SESSION_ID; break;
+                case "username": fields.username = text(parser); fields.present |= USERNAME; break;
+                case "password": fields.password = text(parser); fields.present |= PASSWORD; break;
+                case "chatroomname": fields.chatroomname = text(parser); fields.present |= CHATROOMNAME; break;
+                case "userid": fields.userid = text(parser); fields.present |= USERID; break;
+                case "chatmessage": fields.chatmessage = text(parser); fields.present |= CHATMESSAGE; break;
+                case "searchquery": fields.searchquery = text(parser); fields.present |= SEARCHQUERY; break;
+                case "hostid": fields.hostid = text(parser); fields.present |= HOSTID; break;
+                case "gameid": fields.gameid = text(parser); fields.present |= GAMEID; break;
+                case "displayname": fields.displayname = text(parser); fields.present |= DISPLAYNAME; break;
+                case "format": fields.format = text(parser); fields.present |= FORMAT; break;
+                case "avatarhash": fields.avatarhash = text(parser); fields.present |= AVATARHASH; break;
+                case "category": fields.category = text(parser); fields.present |= CATEGORY; break;
+                case "thumbnail": fields.thumbnail = parser.getValueAsBoolean(); fields.present |= THUMBNAIL; parser.skipChildren(); break;
+                case "accepted": fields.accepted = parser.getValueAsBoolean(); fields.present |= ACCEPTED; parser.skipChildren(); break;
+                case "playerid": fields.playerid = parser.getValueAsInt(); fields.present |= PLAYERID; parser.skipChildren(); break;
+                case "piecemoved": fields.piecemoved = parser.getValueAsInt(); fields.present |= PIECEMOVED; parser.skipChildren(); break;
+                case "movedfrom": fields.movedfrom = parser.getValueAsInt(); fields.present |= MOVEDFROM; parser.skipChildren(); break;
+                case "movedto": fields.movedto = parser.getValueAsInt(); fields.present |= MOVEDTO; parser.skipChildren(); break;
+                case "before": fields.before = parser.getValueAsLong(); fields.present |= BEFORE; parser.skipChildren(); break;
+                case "beforeId": fields.beforeId = parser.getValueAsLong(); fields.present |= BEFOREID; parser.skipChildren(); break;
+                case "from": fields.from = parser.getValueAsInt(); fields.present |= FROM; parser.skipChildren(); break;
+                case "count": fields.count = parser.getValueAsInt(); fields.present |= COUNT; parser.skipChildren(); break;
+                case "imageString": {
+                    if (value == JsonToken.VALUE_STRING || value == JsonToken.VALUE_EMBEDDED_OBJECT) {   //Base64 in json, raw bytes in CBOR
+                        fields.imageString = parser.getBinaryValue();
+                    } else {
+                        parser.skipChildren();
+                    }
+                    fields.present |= IMAGESTRING;
+                } break;
+                case "toinvitedisplaynames": {
+                    if (value == JsonToken.START_ARRAY) {
+                        fields.toinvitedisplaynames = stringArray(parser);
+                        fields.present |= TOINVITEDISPLAYNAMES;
+                    } else {
+                        parser.skipChildren();
+                    }
+                } break;
+                default: parser.skipChildren(); break;   //Not used by any message, skip it and anything inside it
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the current value as text, the same way JsonNode.asText() does.
+     * @param parser parser positioned at the value
+     * @return the value as text, "null" for json null and "" for objects and arrays
+     * @throws IOException if the json is malformed
+     */
+    private static String text(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return "null";
+        }
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return "";
+        }
+        return parser.getValueAsString();
+    }
+
+    /**
+     * Reads an array of strings.
+     * @param parser parser positioned at the start of the array
+     * @return the strings in the array
+     * @throws IOException if the json is malformed
+     */
+    private static String[] stringArray(JsonParser parser) throws IOException {
+        ArrayList<String> values = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            values.add(parser.currentToken() == JsonToken.VALUE_NULL ? null : text(parser));
+        }
+        return values.toArray(new String[0]);
+    }
+
+    /**
+     * A message type, the fields it needs and how to create it.
+     */
+    private static final class MessageType {
+        final int required;
+        final Function<Fields, Message> create;
+
+        MessageType(int required, Function<Fields, Message> create) {
+            this.required = required;
+            this.create = create;
+        }
+    }
+
+    /**
+     * Holds the fields of the message being parsed.
+     */
+    private static final class Fields {
+        int present;
+        String action;
+        String recipientSessionId;
+        String username;
+        String password;
+        String chatroomname;
+        String userid;
+        String chatmessage;
+        String searchquery;
+        String hostid;
+        String gameid;
+        String displayname;
+        String format;
+        String avatarhash;
+        String category;
+        String[] toinvitedisplaynames;
+        byte[] imageString;
+        boolean accepted;
+        boolean thumbnail;
+        int playerid;
+        int piecemoved;
+        int movedfrom;
+        int movedto;
+        long before;
+        long beforeId;
+        int from;
+        int count;
+
+        void reset() {
+            present = 0;
+            action = null;
+            recipientSessionId = null;
+            username = null;
+            password = null;
+            chatroomname = null;
+            userid = null;
+            chatmessage = null;
+            searchquery = null;
+            hostid = null;
+            gameid = null;
+            displayname = null;
+            format = null;
+            avatarhash = null;
+            category = null;
+            toinvitedisplaynames = null;
+            imageString = null;
+            accepted = false;
+            thumbnail = false;
+            playerid = 0;
+            piecemoved = 0;
+            movedfrom = 0;
+            movedto = 0;
+            before = 0;
+            beforeId = 0;
+            from = 0;
+            count = 0;
+        }
+    }
 }
@@ -0,0 +1,157 @@
+package no.ntnu.imt3281.ludo.server;
+
+import no.ntnu.imt3281.ludo.logic.messages.LeaderboardResponse;
+import no.ntnu.imt3281.ludo.logic.messages.RankingResponse;
+
+import java.util.List;
+
+/**
+ * All players ranked by games played and by games won, kept in memory.
+ * <p>
+ *     Filled from the database when the server starts, and updated whenever a player's profile changes.
+ *     The rank of any player, and any page of the rankings, is found in O(log n), see {@link RankingTree}.
+ * </p>
+ * <p>
+ *     The top ten response is made once and sent to everyone who asks, until the top of a ranking changes.
+ *     Safe to use from any thread.
+ * </p>
+ */
+public class Leaderboard {
+    public static final String PLAYED = "played";
+    public static final String WON = "won";
+
+    private final int size;
+    private final RankingTree mostPlayed = new RankingTree();
+    private final RankingTree mostWon = new RankingTree();
+    private OutboundFrame response = null;                           // null when the top of the rankings has changed
+
+    /**
+     * @param size number of players on the top lists
+     */
+    public Leaderboard(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Fills the rankings with all players, used when the server starts.
+     * @param users every player, each only once
+     */
+    public synchronized void load(List<UserInfo> users) {
+        mostPlayed.build(users, UserInfo::getGamesPlayed);
+        mostWon.build(users, UserInfo::getGamesWon);
+        response = null;
+    }
+
+    /**
+     * Adds or updates a player, after the games played, games won or display name has changed.
+     * @param info the player's profile
+     */
+    public synchronized void update(UserInfo info) {
+        boolean changed = place(mostPlayed, info.getUserId(), info.getDisplayName(), info.getGamesPlayed());
+        changed |= place(mostWon, info.getUserId(), info.getDisplayName(), info.getGamesWon());
+        if (changed) {
+            response = null;
+        }
+    }
+
+    /**
+     * Changes the display name of a player. Games played and won are kept as they are in the rankings, since they
+     * are only changed by {@link #update(UserInfo)} after a game.
+     * @param userId the player's user id
+     * @param displayName the new display name
+     */
+    public synchronized void rename(String userId, String displayName) {
+        boolean changed = rename(mostPlayed, userId, displayName);
+        changed |= rename(mostWon, userId, displayName);
+        if (changed) {
+            response = null;
+        }
+    }
+
+    /**
+     * @return the top lists, with the place of each player
+     */
+    public synchronized TopTenList getTopTenList() {
+        RankingEntry[] topPlayed = mostPlayed.page(0, size);
+        TopTenList.PlayedEntry[] played = new TopTenList.PlayedEntry[topPlayed.length];
+        for (int i = 0; i < played.length; i++) {
+            played[i] = new TopTenList.PlayedEntry(topPlayed[i].getPlayerName(), topPlayed[i].getCount(), i + 1);
+        }
+
+        RankingEntry[] topWon = mostWon.page(0, size);
+        TopTenList.WonEntry[] won = new TopTenList.WonEntry[topWon.length];
+        for (int i = 0; i < won.length; i++) {
+            won[i] = new TopTenList.WonEntry(topWon[i].getPlayerName(), topWon[i].getCount(), i + 1);
+        }
+
+        return new TopTenList(played, won);
+    }
+
+    /**
+     * @return LeaderboardResponse with the top lists, ready to be sent to any client
+     */
+    public synchronized OutboundFrame getResponse() {
+        if (response == null) {
+            TopTenList lists = getTopTenList();
+            response = new OutboundFrame(new LeaderboardResponse("LeaderboardResponse", lists.getPlayedEntries(), lists.getWonEntries()));
+        }
+        return response;
+    }
+
+    /**
+     * Gets a page of a ranking. If a player is given, the page is centered on that player and has their rank.
+     * @param category {@link #PLAYED} or {@link #WON}
+     * @param info the player to center on, null to start at a given position
+     * @param from position of the first player when no player is given, counting from 0
+     * @param count max number of players on the page
+     * @return RankingResponse without a recipient, null if the category is unknown
+     */
+    public synchronized RankingResponse getRanking(String category, UserInfo info, int from, int count) {
+        RankingTree ranking = PLAYED.equals(category) ? mostPlayed : WON.equals(category) ? mostWon : null;
+        if (ranking == null) {
+            return null;
+        }
+
+        RankingResponse retMsg = new RankingResponse("RankingResponse");
+        retMsg.setCategory(category);
+        retMsg.setTotal(ranking.size());
+
+        if (info != null) {
+            retMsg.setDisplayname(info.getDisplayName());
+            retMsg.setRank(ranking.rankOf(info.getUserId()));
+            int index = ranking.indexOf(info.getUserId());
+            if (index >= 0) {
+                from = index - count / 2;
+            }
+        }
+
+        from = Math.max(0, Math.min(from, ranking.size() - count));
+        retMsg.setFrom(from);
+        retMsg.setEntries(ranking.page(from, count));
+        return retMsg;
+    }
+
+    /**
+     * Moves a player in a ranking.
+     * @return true if the top of the ranking changed
+     */
+    private boolean place(RankingTree ranking, String userId, String displayName, int count) {
+        int before = ranking.indexOf(userId);
+        if (!ranking.put(userId, displayName, count)) {
+            return false;
+        }
+        return (before >= 0 && before < size) || ranking.indexOf(userId) < size;
+    }
+
+    /**
+     * Renames a player in a ranking.
+     * @return true if the top of the ranking changed
+     */
+    private boolean rename(RankingTree ranking, String userId, String displayName) {
+        int before = ranking.indexOf(userId);
+        if (!ranking.rename(userId, displayName)) {
+            return false;
+        }
+        return before < size || ranking.indexOf(userId) < size;
+    }
+}
@@ -0,0 +1,92 @@
+package no.ntnu.imt3281.ludo.server;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import no.ntnu.imt3281.ludo.logic.messages.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts messages the server sends to the format the clients expect.
+ * <p>
+ *     The session id a message is addressed to is only used for routing on the server, so it is left out.
+ *     One mapper is shared by all threads, and a writer is prepared once per message type.
+ * </p>
+ * <p>
+ *     Messages are sent as json lines, or as CBOR to clients that asked for the binary protocol.
+ *     A binary frame is the length of the CBOR data as a 4 byte big endian int, followed by the data.
+ *     Frames are at most {@link #MAX_FRAME_SIZE} bytes, so the first byte of a binary frame is always 0
+ *     and can not be mistaken for the start of a json line.
+ * </p>
+ */
+public class MessageCodec {
+    public static final int MAX_FRAME_SIZE = (1 << 24) - 1;  // 16MB, largest length where the first byte is 0
+
+    private static final ObjectMapper mapper = new ObjectMapper().addMixIn(Message.class, OutboundMessage.class);
+    private static final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory()).addMixIn(Message.class, OutboundMessage.class);
+    private static final ConcurrentHashMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Class<?>, ObjectWriter> cborWriters = new ConcurrentHashMap<>();
+
+    private MessageCodec() {}
+
+    /**
+     * Leaves the recipient out of all outbound messages.
+     */
+    private abstract static class OutboundMessage {
+        @JsonIgnore
+        public String recipientSessionId;
+    }
+
+    /**
+     * Converts a message to json.
+     * @param msg the message to convert
+     * @return json string without recipientSessionId
+     * @throws JsonProcessingException if the message can not be serialized
+     */
+    public static String encode(Message msg) throws JsonProcessingException {
+        return writers.computeIfAbsent(msg.getClass(), mapper::writerFor).writeValueAsString(msg);
+    }
+
+    /**
+     * Converts a message to CBOR.
+     * @param msg the message to convert
+     * @return CBOR bytes without recipientSessionId
+     * @throws JsonProcessingException if the message can not be serialized
+     */
+    public static byte[] encodeCbor(Message msg) throws JsonProcessingException {
+        return cborWriters.computeIfAbsent(msg.getClass(), cborMapper::writerFor).writeValueAsBytes(msg);
+    }
+
+    /**
+     * Encodes a json message as it is sent on the socket.
+     * @param json the message
+     * @return the message followed by a newline, as UTF-8
+     */
+    public static ByteBuffer jsonFrame(String json) {
+        return StandardCharsets.UTF_8.encode(json + "\n");
+    }
+
+    /**
+     * Encodes a message as a binary frame.
+     * @param msg the message
+     * @return length prefix followed by the CBOR data
+     * @throws JsonProcessingException if the message can not be serialized or is too large
+     */
+    public static ByteBuffer cborFrame(Message msg) throws JsonProcessingException {
+        byte[] data = encodeCbor(msg);
+        if (data.length > MAX_FRAME_SIZE) {
+            throw new JsonProcessingException(msg.getAction() + " is larger than " + MAX_FRAME_SIZE + " bytes") {};
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(4 + data.length);
+        frame.putInt(data.length);
+        frame.put(data);
+        frame.flip();
+        return frame;
+    }
+}
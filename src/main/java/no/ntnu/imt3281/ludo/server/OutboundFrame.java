@@ -0,0 +1,58 @@
+package no.ntnu.imt3281.ludo.server;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import no.ntnu.imt3281.ludo.logic.messages.Message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message on its way out, encoded the first time a client needs it in a given format.
+ * <p>
+ *     When the same message goes to several clients, each format is encoded once and every client
+ *     gets its own view of the same bytes.
+ * </p>
+ */
+public class OutboundFrame {
+    private final Message message;
+    private ByteBuffer json;
+    private ByteBuffer cbor;
+    private boolean failed = false;
+
+    public OutboundFrame(Message message) {
+        this.message = message;
+    }
+
+    /**
+     * @return the message as a json line, null if it could not be encoded
+     */
+    public synchronized ByteBuffer json() {
+        if (json == null && !failed) {
+            try {
+                json = MessageCodec.jsonFrame(MessageCodec.encode(message)).asReadOnlyBuffer();
+            } catch (JsonProcessingException e) {
+                failed = true;
+                e.printStackTrace();
+            }
+        }
+        return json == null ? null : json.duplicate();
+    }
+
+    /**
+     * @return the message as a binary frame, null if it could not be encoded
+     */
+    public synchronized ByteBuffer cbor() {
+        if (cbor == null && !failed) {
+            try {
+                cbor = MessageCodec.cborFrame(message).asReadOnlyBuffer();
+            } catch (JsonProcessingException e) {
+                failed = true;
+                e.printStackTrace();
+            }
+        }
+        return cbor == null ? null : cbor.duplicate();
+    }
+
+    public String getAction() {
+        return message.getAction();
+    }
+}
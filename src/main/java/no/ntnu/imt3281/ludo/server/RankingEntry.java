@@ -0,0 +1,30 @@
+package no.ntnu.imt3281.ludo.server;
+
+/**
+ * Data class for one player in a ranking
+ */
+public class RankingEntry {
+    private String playerName;  // displayname
+    private int count;          // games won or games played, depending on the ranking
+    private int rank;           // players with the same count share a rank
+
+    public RankingEntry(){}
+
+    public RankingEntry(String playerName, int count, int rank){
+        this.playerName = playerName;
+        this.count = count;
+        this.rank = rank;
+    }
+
+    public String getPlayerName() {
+        return playerName;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+}
@@ -0,0 +1,335 @@
+package no.ntnu.imt3281.ludo.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.function.ToIntFunction;
+
+/**
+ * All players ordered by a count, like games won, highest first.
+ * <p>
+ *     The players are kept in a treap, a binary search tree that stays balanced by giving every node a random
+ *     priority. Each node knows the size of its subtree, so the position and rank of a player, and the player
+ *     at any position, are found in O(log n). A page of k players is read in O(log n + k).
+ * </p>
+ * <p>
+ *     Players with the same count are ordered by display name. They share a rank, which is one more than the
+ *     number of players with a higher count. Not thread safe.
+ * </p>
+ */
+public class RankingTree {
+    private final HashMap<String, Node> byUserId = new HashMap<>();
+    private final Random random = new Random();
+    private Node root = null;
+
+    /**
+     * @return number of players in the ranking
+     */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * Adds a player, or moves them if their count or display name has changed.
+     * @param userId the player's user id
+     * @param displayName the name shown in the ranking
+     * @param count the count the player is ranked by
+     * @return false if the player was already in the ranking with the same count and name
+     */
+    public boolean put(String userId, String displayName, int count) {
+        Node old = byUserId.get(userId);
+        if (old != null) {
+            if (old.count == count && old.displayName.equals(displayName)) {
+                return false;
+            }
+            root = delete(root, old);
+        }
+
+        Node node = new Node(userId, displayName, count, random.nextInt());
+        byUserId.put(userId, node);
+        root = insert(root, node);
+        return true;
+    }
+
+    /**
+     * Changes the display name of a player, keeping the count they have in the ranking.
+     * @param userId the player's user id
+     * @param displayName the new name shown in the ranking
+     * @return false if the player is not in the ranking, or already has that name
+     */
+    public boolean rename(String userId, String displayName) {
+        Node old = byUserId.get(userId);
+        return old != null && put(userId, displayName, old.count);
+    }
+
+    /**
+     * Replaces the ranking with a list of players. Faster than adding them one by one, since the players are
+     * sorted once and the tree is built in a single pass.
+     * @param users the players, each user id only once
+     * @param count gives the count a player is ranked by
+     */
+    public void build(List<UserInfo> users, ToIntFunction<UserInfo> count) {
+        Node[] nodes = new Node[users.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            UserInfo info = users.get(i);
+            nodes[i] = new Node(info.getUserId(), info.getDisplayName(), count.applyAsInt(info), random.nextInt());
+        }
+        Arrays.sort(nodes, RankingTree::compare);
+
+        // Nodes in order, each one placed below the last node on the right edge with a higher priority
+        byUserId.clear();
+        ArrayDeque<Node> rightEdge = new ArrayDeque<>();
+        for (Node node : nodes) {
+            byUserId.put(node.userId, node);
+            Node last = null;
+            while (!rightEdge.isEmpty() && rightEdge.peek().priority < node.priority) {
+                last = rightEdge.pop();
+            }
+            node.left = last;
+            if (!rightEdge.isEmpty()) {
+                rightEdge.peek().right = node;
+            }
+            rightEdge.push(node);
+        }
+        root = rightEdge.peekLast();
+        updateAll(root);
+    }
+
+    /**
+     * Removes a player from the ranking.
+     * @param userId the player's user id
+     */
+    public void remove(String userId) {
+        Node old = byUserId.remove(userId);
+        if (old != null) {
+            root = delete(root, old);
+        }
+    }
+
+    /**
+     * Finds the position of a player, counting from 0. Unlike the rank, the position is unique.
+     * @param userId the player's user id
+     * @return the position, -1 if the player is not in the ranking
+     */
+    public int indexOf(String userId) {
+        Node target = byUserId.get(userId);
+        if (target == null) {
+            return -1;
+        }
+
+        int index = 0;
+        Node node = root;
+        while (node != target) {
+            if (compare(target, node) < 0) {
+                node = node.left;
+            } else {
+                index += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return index + size(node.left);
+    }
+
+    /**
+     * Finds the rank of a player.
+     * @param userId the player's user id
+     * @return the rank, starting at 1, or 0 if the player is not in the ranking
+     */
+    public int rankOf(String userId) {
+        Node node = byUserId.get(userId);
+        return node == null ? 0 : countAbove(node.count) + 1;
+    }
+
+    /**
+     * Gets the players at a range of positions.
+     * @param from position of the first player, counting from 0
+     * @param count max number of players
+     * @return the players with their rank, highest first
+     */
+    public RankingEntry[] page(int from, int count) {
+        ArrayList<Node> nodes = new ArrayList<>();
+        from = Math.max(0, from);
+        collect(root, from, from + count, 0, nodes);
+
+        RankingEntry[] entries = new RankingEntry[nodes.size()];
+        int rank = 0;
+        for (int i = 0; i < entries.length; i++) {
+            Node node = nodes.get(i);
+            if (i == 0) {
+                rank = countAbove(node.count) + 1;
+            } else if (node.count != nodes.get(i - 1).count) {
+                rank = from + i + 1;
+            }
+            entries[i] = new RankingEntry(node.displayName, node.count, rank);
+        }
+        return entries;
+    }
+
+    /**
+     * @return number of players with a count higher than the given count
+     */
+    private int countAbove(int count) {
+        int above = 0;
+        Node node = root;
+        while (node != null) {
+            if (node.count > count) {
+                above += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return above;
+    }
+
+    /**
+     * Adds the nodes at positions [from, to) of a subtree to a list, in order.
+     * @param offset position of the first node in the subtree
+     */
+    private static void collect(Node node, int from, int to, int offset, ArrayList<Node> nodes) {
+        if (node == null || from >= offset + node.size || to <= offset) {
+            return;
+        }
+        collect(node.left, from, to, offset, nodes);
+        int index = offset + size(node.left);
+        if (index >= from && index < to) {
+            nodes.add(node);
+        }
+        collect(node.right, from, to, index + 1, nodes);
+    }
+
+    /**
+     * Adds a node to a subtree, at the depth its priority gives it.
+     * @return the subtree with the node
+     */
+    private static Node insert(Node node, Node added) {
+        if (node == null) {
+            return added;
+        }
+        if (added.priority > node.priority) {
+            Node[] parts = split(node, added);
+            added.left = parts[0];
+            added.right = parts[1];
+            update(added);
+            return added;
+        }
+        if (compare(added, node) < 0) {
+            node.left = insert(node.left, added);
+        } else {
+            node.right = insert(node.right, added);
+        }
+        node.size++;
+        return node;
+    }
+
+    /**
+     * Splits a subtree into the nodes before a key and the nodes after it.
+     */
+    private static Node[] split(Node node, Node key) {
+        if (node == null) {
+            return new Node[]{null, null};
+        }
+        if (compare(node, key) < 0) {
+            Node[] parts = split(node.right, key);
+            node.right = parts[0];
+            update(node);
+            return new Node[]{node, parts[1]};
+        } else {
+            Node[] parts = split(node.left, key);
+            node.left = parts[1];
+            update(node);
+            return new Node[]{parts[0], node};
+        }
+    }
+
+    /**
+     * Joins two subtrees, where every node in the first comes before every node in the second.
+     */
+    private static Node merge(Node first, Node second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.priority > second.priority) {
+            first.right = merge(first.right, second);
+            update(first);
+            return first;
+        } else {
+            second.left = merge(first, second.left);
+            update(second);
+            return second;
+        }
+    }
+
+    /**
+     * Removes a node from a subtree.
+     * @return the subtree without the node
+     */
+    private static Node delete(Node node, Node target) {
+        if (node == null) {
+            return null;
+        }
+        if (node == target) {
+            return merge(node.left, node.right);
+        }
+        if (compare(target, node) < 0) {
+            node.left = delete(node.left, target);
+        } else {
+            node.right = delete(node.right, target);
+        }
+        update(node);
+        return node;
+    }
+
+    /**
+     * Orders nodes by count, highest first, then by display name and user id.
+     */
+    private static int compare(Node a, Node b) {
+        if (a.count != b.count) {
+            return a.count > b.count ? -1 : 1;
+        }
+        int byName = a.displayName.compareTo(b.displayName);
+        return byName != 0 ? byName : a.userId.compareTo(b.userId);
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static void update(Node node) {
+        node.size = size(node.left) + size(node.right) + 1;
+    }
+
+    private static int updateAll(Node node) {
+        if (node == null) {
+            return 0;
+        }
+        node.size = updateAll(node.left) + updateAll(node.right) + 1;
+        return node.size;
+    }
+
+    /**
+     * A player in the tree.
+     */
+    private static final class Node {
+        final String userId;
+        final String displayName;
+        final int count;
+        final int priority;
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(String userId, String displayName, int count, int priority) {
+            this.userId = userId;
+            this.displayName = displayName;
+            this.count = count;
+            this.priority = priority;
+        }
+    }
+}
@@ -1,18 +1,24 @@
 package no.ntnu.imt3281.ludo.server;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import no.ntnu.imt3281.ludo.logic.*;
 import no.ntnu.imt3281.ludo.logic.messages.*;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.sql.SQLException;
-import java.time.Instant;
+import java.sql.SQLIntegrityConstraintViolationException;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This is the main class for the server.
@@ -20,21 +26,45 @@ import java.util.concurrent.ArrayBlockingQueue;
 public class Server implements DiceListener, PieceListener, PlayerListener {
 
 	final private int SERVER_PORT = 4567; //Server Port
+	final private int CHAT_LOG_PAGE_SIZE = ChatRoom.RECENT_MESSAGES; //Number of chat messages sent when scrolling back
+	final private int LEADERBOARD_SIZE = 10; //Number of players on each leaderboard list
+	final private int RANKING_PAGE_SIZE = 100; //Max number of players sent in one page of a ranking
+	final private int CREDENTIAL_QUEUE_SIZE = 256; //Max number of logins and registrations waiting for a password check
+	final private int HANDLER_QUEUE_SIZE = 100; //Max number of messages waiting for the action handler
 	private Database db; //Database
 
-	private ArrayList<Ludo> activeLudoGames = new ArrayList<>(); //ArrayList of active games.
-	private ArrayList<ChatRoom> activeChatRooms = new ArrayList<>(); //ArrayList of chat rooms.
-	private ArrayList<Invitations> pendingInvites = new ArrayList<>(); //ArrayList of pending invites.
+	private final GameRegistry games = new GameRegistry(); //Active games by game id, with pending invites and the games of each player.
+	private ArrayList<ChatRoom> activeChatRooms = new ArrayList<>(); //ArrayList of chat rooms. Only used by the action handler thread, other threads go through runOnHandler
+	private final GameExecutor gameExecutor = new GameExecutor(); //Runs game actions, one thread per core. Each game always uses the same thread.
+	private final CredentialExecutor credentialExecutor = new CredentialExecutor(CREDENTIAL_QUEUE_SIZE); //Checks and hashes passwords, so chat never waits for it
+	private final ExecutorService statsExecutor = Executors.newSingleThreadExecutor(r -> { //Updates games played and won, so game threads never wait for the db
+		Thread t = new Thread(r, "stats");
+		t.setDaemon(true);
+		return t;
+	});
 
 	private final LinkedList<Client> clients = new LinkedList<>(); //LinkedList containing clients
 
-	private boolean stopping = false; //Boolean to stop the server
+	private volatile boolean stopping = false; //Boolean to stop the server
 
-	private final ArrayBlockingQueue<Message> objectsToHandle = new ArrayBlockingQueue<>(100); //Queue for incoming messages
+	private Selector selector; //Selector that accepts connections and reads from all clients
+	private ServerSocketChannel serverChannel; //Channel the server accepts connections on
+	private final JsonMessageParser parser = new JsonMessageParser(); //Parser for incoming messages, only used by the selector thread
 
-	private final ArrayBlockingQueue<Message> messagesToSend = new ArrayBlockingQueue<>(100); //Queue for outbound messages
+	private final ArrayBlockingQueue<Message> objectsToHandle = new ArrayBlockingQueue<>(HANDLER_QUEUE_SIZE); //Queue for incoming messages
+	private final ConcurrentLinkedQueue<Runnable> handlerTasks = new ConcurrentLinkedQueue<>(); //Work handed back to the action handler by other threads, run before the next message
+	private static final Message WAKE_HANDLER = new Message("WakeHandler"); //Put in the message queue so the handler runs the tasks above
 
-	private final ArrayBlockingQueue<Client> disconnectedClients = new ArrayBlockingQueue<>(1000); //Queue for clients that is to be disconnected.
+	private final LinkedHashMap<Client, ArrayDeque<Message>> pausedClients = new LinkedHashMap<>(); //Clients not read from while the handler queue is full, with the messages they already sent. Only used by the selector thread
+	private volatile boolean readsPaused = false; //True while any client is paused, so the handler wakes the selector when the queue drains
+
+	private final Leaderboard leaderboard = new Leaderboard(LEADERBOARD_SIZE); //All players ranked by games played and won, filled from the db at startup
+
+	private final SessionIndex sessions = new SessionIndex(); //Connected clients by session id, user id and display name. Used to route outbound messages
+
+	private final ConcurrentLinkedQueue<Client> pendingWrites = new ConcurrentLinkedQueue<>(); //Clients with new outbound messages the selector must start writing
+
+	private final LinkedBlockingQueue<Client> disconnectedClients = new LinkedBlockingQueue<>(); //Queue for clients that is to be disconnected. Unbounded, so the selector never fails to hand one over
 
 	/**
 	 * Main function of the server.
@@ -52,12 +82,11 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	 */
 	public Server(boolean testing){
 		startServerThread();
-		startListener();
 		startHandlingActions();
-		startSenderThread();
 		if (!testing){
 			sendPingMessage();
 			db = Database.getDatabase();
+			Runtime.getRuntime().addShutdownHook(new Thread(db::close, "database-shutdown")); //Write the last chat messages when the server is stopped.
 		} else {
 			db = Database.constructTestDatabase("jdbc:derby:./ludoTestDB");
 		}
@@ -74,6 +103,14 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 		setUpChatRooms();
 		System.out.println("Chatrooms: " + activeChatRooms.toString());
 
+		try {
+			ArrayList<UserInfo> users = new ArrayList<>();
+			db.forEachUserStats(users::add);
+			leaderboard.load(users);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+
 	}
 
 	/**
@@ -81,40 +118,85 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	 */
 	void stopServer(){
 		stopping = true;
+		gameExecutor.shutdown();
+		credentialExecutor.shutdown();
+		if (selector != null) {
+			selector.wakeup();
+		}
+		statsExecutor.shutdown(); //Let results of finished games be counted.
+		try {
+			statsExecutor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		db.flushChatLog(); //Chat messages not yet written to the chat log.
 	}
 
 	/**
-	 * Creates chatroom objects with names from the db.
+	 * Creates chatroom objects with names from the db, with the latest messages of each room.
 	 */
 	private void setUpChatRooms(){
 		ArrayList<String> roomNames = db.getAllChatRooms();
 		for (String name : roomNames) {
-			activeChatRooms.add(new ChatRoom(name));
+			ChatRoom room = new ChatRoom(name);
+			ArrayList<ChatMessage> recent = db.getChatMessages(name, Long.MAX_VALUE, Long.MAX_VALUE, ChatRoom.RECENT_MESSAGES);
+			if (recent != null) {
+				room.setRecentMessages(recent);
+			}
+			activeChatRooms.add(room);
 		}
 	}
 
 	/**
 	 *
-	 * This one handles new connections to the server.
+	 * This one handles new connections to the server and reads from all connected clients.
+	 * A single selector thread waits for sockets to become readable, so messages are
+	 * dispatched the moment they arrive and idle connections cost nothing.
 	 *
 	 */
 	private void startServerThread() {
+		try {
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(SERVER_PORT));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
 		Thread server = new Thread(() -> {
-			try {
-				ServerSocket server1 = new ServerSocket(SERVER_PORT);
-				while (!stopping) {
-					Socket s = server1.accept();
-					try {
-						Client c = new Client(s);
-						synchronized (clients) {
-							clients.add(c);
+			while (!stopping) {
+				try {
+					registerPendingWrites();
+					if (!pausedClients.isEmpty()) {
+						resumePausedClients();
+					}
+					selector.select();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						try {
+							handleKey(key);
+						} catch (RuntimeException e) { //One bad client must not stop the loop for everyone else
+							e.printStackTrace();
+							key.cancel();
+							if (key.attachment() instanceof Client) {
+								disconnectClient((Client) key.attachment());
+							}
 						}
-						System.out.println("Clients connceted: " + clients.size());
-					} catch (IOException e) {
-						System.err.println("Unable to create client from "+s.getInetAddress().getHostName());
 					}
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-			} catch ( IOException e) {
+			}
+
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		});
@@ -122,90 +204,276 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 		server.start();
 	}
 
+	/**
+	 * Accepts, reads or writes, whatever the key is ready for.
+	 * @param key a key the selector found ready
+	 */
+	private void handleKey(SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+
+		if (key.isAcceptable()) {
+			acceptClient();
+			return;
+		}
+		if (key.isReadable()) {
+			readFromClient(key);
+		}
+		if (key.isValid() && key.isWritable()) {
+			writeToClient(key);
+		}
+	}
 
 	/**
-	 *
-	 * This one Gets information from clients.
-	 *
+	 * Accepts a pending connection and registers it with the selector.
 	 */
-	private void startListener() {
-		JsonMessageParser parser = new JsonMessageParser();
-		TimerTask checkActivity = new TimerTask() {
-			@Override
-			public void run() {
-				synchronized (clients) {
-					Iterator<Client> iterator = clients.iterator();
-					while (iterator.hasNext()) {
-						Client c = iterator.next();
-						try {
-							String msg = c.read();
-							if (msg != null && (msg.contains("UserDoesLogin") || msg.contains("UserDoesRegister"))) {
-								synchronized (objectsToHandle) {
-									c.parseSessionid(msg);
-									System.out.println("Connected user : " + c.getUuid() + " " + msg);
-									Message toBeQueued = parser.parseJson(msg,c.getUuid());
-									if (toBeQueued != null) { //Discard if it is null
-										objectsToHandle.add(parser.parseJson(msg,c.getUuid())); //Add the object to queue for handling
-									} else {
-										System.out.println("DISCARDED MESSAGE : " + msg);
-									}
-								}
-							} else if (msg != null && c.getUuid() != null) {
-								synchronized (objectsToHandle) {
-									Message toBeQueued = parser.parseJson(msg,c.getUuid());
-									if (toBeQueued != null) {
-										objectsToHandle.add(parser.parseJson(msg,c.getUuid())); //Add the object to queue for handling
-									} else {
-										System.out.println("DISCARDED MESSAGE : " + msg);
-									}
-								}
+	private void acceptClient() {
+		SocketChannel channel = null;
+		try {
+			channel = serverChannel.accept();
+			if (channel == null) { //Someone else already took it.
+				return;
+			}
 
-							}
-						} catch (IOException e) {   // Exception while reading from client, assume client is lost
-							// Do nothing, this is really not likely to happen
-						}
-					}
+			Client c = new Client(channel);
+			channel.register(selector, SelectionKey.OP_READ, c);
+			synchronized (clients) {
+				clients.add(c);
+			}
+			System.out.println("Clients connceted: " + clients.size());
+		} catch (IOException e) {
+			System.err.println("Unable to create client from " + (channel != null ? channel.socket().getInetAddress().getHostName() : "unknown"));
+		}
+	}
+
+	/**
+	 * Reads all available messages from a client and queues them for handling.
+	 * @param key selection key of the client that has data ready
+	 */
+	private void readFromClient(SelectionKey key) {
+		Client c = (Client) key.attachment();
+		try {
+			for (Client.Frame msg : c.read()) {
+				Message toBeQueued = handleIncomingMessage(c, msg);
+				if (toBeQueued != null) {
+					queueForHandler(key, c, toBeQueued);
 				}
 			}
-		};
-		Timer timer = new Timer();
-		timer.scheduleAtFixedRate(checkActivity, 50L, 50L);
+		} catch (IOException e) {   // Exception while reading from client, assume client is lost
+			key.cancel();
+			disconnectClient(c);
+		}
 	}
 
 	/**
-	 * This sends data to the user
-	 *
+	 * Writes queued messages to a client whose socket has room for more data.
+	 * Stops listening for writability once everything is written.
+	 * @param key selection key of the client that can be written to
 	 */
-	private void startSenderThread() {
-		Thread sender = new Thread(() -> {
-			while (!stopping) {
-				try {
-					Message msg = messagesToSend.take();
-					Iterator<Client> iterator = clients.iterator();
-					while (iterator.hasNext()) {
-						Client c = iterator.next();
-						if ((c.getUuid() != null && msg.getRecipientSessionId() != null) && msg.getRecipientSessionId().contentEquals(c.getUuid())) {
-							try {
-								String converted = convertToCorrectJson(msg);
-								System.out.println("Session id: " + c.getUuid() + " " + converted);
-								c.send(converted);
-							} catch (IOException e) {   // Exception while sending to client, assume client is lost
-								synchronized (disconnectedClients) {
-									if (!disconnectedClients.contains(c)) {
-										disconnectedClients.add(c);
-									}
-								}
-							}
-						}
-					}
+	private void writeToClient(SelectionKey key) {
+		Client c = (Client) key.attachment();
+		try {
+			if (c.flush()) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE); //Keep reading paused if it is
+			}
+		} catch (IOException e) {   // Exception while sending to client, assume client is lost
+			key.cancel();
+			disconnectClient(c);
+		}
+	}
 
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+	/**
+	 * Starts listening for writability on clients that got new messages since the last select.
+	 */
+	private void registerPendingWrites() {
+		Client c;
+		while ((c = pendingWrites.poll()) != null) {
+			SelectionKey key = c.getChannel().keyFor(selector);
+			if (key != null && key.isValid()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
 			}
-		});
-		sender.setDaemon(true);
-		sender.start();
+		}
+	}
+
+	/**
+	 * Hands a client over to the thread removing disconnected clients.
+	 * @param c the client that is lost
+	 */
+	private void disconnectClient(Client c) {
+		if (c.markDisconnected()) { //Only hand it over once
+			disconnectedClients.add(c);
+		}
+	}
+
+	/**
+	 * Hands a message to the action handler. If the handler queue is full, the client is not read from
+	 * until the queue has room again, so a busy handler slows down the clients sending to it instead of
+	 * blocking the selector thread for everyone.
+	 * @param key selection key of the client
+	 * @param c the client that sent the message
+	 * @param message the parsed message
+	 */
+	private void queueForHandler(SelectionKey key, Client c, Message message) {
+		ArrayDeque<Message> backlog = pausedClients.get(c);
+		if (backlog == null) { //Messages from a paused client must wait behind the ones it already sent
+			if (objectsToHandle.offer(message)) {
+				return;
+			}
+			readsPaused = true; //Set before trying again, so the handler can not drain the queue without waking us
+			if (objectsToHandle.offer(message)) {
+				readsPaused = !pausedClients.isEmpty();
+				return;
+			}
+			backlog = new ArrayDeque<>();
+			pausedClients.put(c, backlog);
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		backlog.add(message);
+	}
+
+	/**
+	 * Hands the messages of paused clients to the action handler, oldest first, and starts reading from
+	 * each client again once all its messages are handed over.
+	 */
+	private void resumePausedClients() {
+		Iterator<Map.Entry<Client, ArrayDeque<Message>>> paused = pausedClients.entrySet().iterator();
+		while (paused.hasNext()) {
+			Map.Entry<Client, ArrayDeque<Message>> entry = paused.next();
+			ArrayDeque<Message> backlog = entry.getValue();
+			while (!backlog.isEmpty() && objectsToHandle.offer(backlog.peek())) {
+				backlog.poll();
+			}
+			if (!backlog.isEmpty()) { //Queue is full again
+				break;
+			}
+
+			paused.remove();
+			SelectionKey key = entry.getKey().getChannel().keyFor(selector);
+			if (key != null && key.isValid()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+		}
+		readsPaused = !pausedClients.isEmpty();
+	}
+
+	/**
+	 * Parses a message from a client, so it can be queued for the action handler.
+	 * Messages from clients without a session are discarded, unless they are logging in or registering.
+	 * A request for the binary protocol is answered right away, before anything else is sent to the client.
+	 * @param c the client that sent the message
+	 * @param msg the json line or binary frame
+	 * @return the message for the action handler, null if there is nothing to handle
+	 */
+	private Message handleIncomingMessage(Client c, Client.Frame msg) {
+		Message toBeQueued = msg.isBinary() ? parser.parseCbor(msg.getBinary(), c.getUuid()) : parser.parseJson(msg.getText(), c.getUuid());
+		if (toBeQueued == null) { //Discard if it is null
+			System.out.println("DISCARDED MESSAGE : " + msg);
+			return null;
+		}
+
+		if (toBeQueued instanceof UserWantsBinaryProtocol) {
+			switchToBinary(c, (UserWantsBinaryProtocol) toBeQueued);
+			return null;
+		}
+
+		if (toBeQueued instanceof ClientLogin || toBeQueued instanceof ClientRegister) { //These carry the session id of the client
+			c.setUuid(toBeQueued.getRecipientSessionId());
+			sessions.connect(c.getUuid(), c);
+			System.out.println("Connected user : " + c.getUuid() + " " + msg);
+		} else if (c.getUuid() == null) {
+			return null;
+		}
+
+		return toBeQueued;
+	}
+
+	/**
+	 * Switches a client to the binary protocol if it asks for a format we support.
+	 * The client keeps using json otherwise.
+	 * @param c the client
+	 * @param request the request from the client
+	 */
+	private void switchToBinary(Client c, UserWantsBinaryProtocol request) {
+		if (!"cbor".equals(request.getFormat()) || c.isBinary()) {
+			return;
+		}
+
+		OutboundFrame answer = new OutboundFrame(new BinaryProtocolResponse("BinaryProtocolResponse", "cbor"));
+		if (!c.switchToBinary(answer)) {
+			disconnectClient(c);
+		} else if (c.requestWrite()) {
+			pendingWrites.add(c);	// Already on the selector thread, picked up before the next select
+		}
+	}
+
+	/**
+	 * This sends data to the user.
+	 * The message is encoded right away and queued on the client with the matching session id,
+	 * so the message object can safely be changed and reused for the next recipient.
+	 * @param msg Message with recipientSessionId set to the session that should receive it
+	 */
+	private void sendMessage(Message msg) {
+		String sessionId = msg.getRecipientSessionId();
+		if (sessionId == null) {
+			return;
+		}
+
+		Client c = sessions.getClient(sessionId);
+		if (c == null) { //Not connected (anymore)
+			return;
+		}
+
+		System.out.println("Session id: " + sessionId + " " + msg.getAction());
+		sendToClient(c, new OutboundFrame(msg));
+	}
+
+	/**
+	 * Sends the same message to several users.
+	 * The message is encoded once per format, and all recipients are given a view of the same bytes.
+	 * @param msg Message to send, recipientSessionId is ignored
+	 * @param sessionIds session ids of the recipients, null entries (users that are not logged in) are skipped
+	 */
+	private void broadcast(Message msg, Collection<String> sessionIds) {
+		System.out.println("Broadcast to " + sessionIds.size() + ": " + msg.getAction());
+
+		OutboundFrame frame = new OutboundFrame(msg);
+		for (String sessionId : sessionIds) {
+			Client c = sessions.getClient(sessionId);
+			if (c != null) {
+				sendToClient(c, frame);
+			}
+		}
+	}
+
+	/**
+	 * Finds the session ids of players.
+	 * @param displayNames display names of the players
+	 * @return session ids, null for players that are not logged in
+	 */
+	private ArrayList<String> playerSessionIds(String[] displayNames) {
+		ArrayList<String> sessionIds = new ArrayList<>(displayNames.length);
+		for (String name : displayNames) {
+			sessionIds.add(displayNameToSessionId(name));
+		}
+		return sessionIds;
+	}
+
+	/**
+	 * Queues a message on a client and wakes the selector up if it has to start writing.
+	 * @param c the client to send to
+	 * @param frame the message, encoded in the format the client uses
+	 */
+	private void sendToClient(Client c, OutboundFrame frame) {
+		if (!c.queue(frame)) { //Client does not read what we send, assume client is lost
+			disconnectClient(c);
+			return;
+		}
+
+		if (c.requestWrite()) {
+			pendingWrites.add(c);
+			selector.wakeup();
+		}
 	}
 
 	/**
@@ -216,9 +484,17 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 			while (!stopping) {
 				try {
 					Client client = disconnectedClients.take();
+					try {
+						client.close();
+					} catch (IOException e) {
+						// The connection is already gone, nothing more to close
+					}
+					sessions.disconnect(client);
 					synchronized (clients) {
 						clients.remove(client);
-						removeClientsFromModules(client.getUserId());
+						if (client.getUserId() != null) { //Only logged in users are part of chats and games.
+							removeClientsFromModules(client.getUserId());
+						}
 						System.out.println("Clients connceted: " + clients.size());
 					}
 				} catch (InterruptedException e) {
@@ -236,17 +512,12 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	private void sendPingMessage(){
 		Thread sendPingMessage = new Thread(() -> {
 			while(!stopping) {
+				OutboundFrame ping = new OutboundFrame(new Message("Ping"));
 				LinkedList<Client> copyList = (LinkedList<Client>) clients.clone();
 				Iterator<Client> clientIterator = copyList.iterator();
 				while(clientIterator.hasNext()){
 					Client c = clientIterator.next();
-					try {
-						c.send("{\"action\": \"Ping\"}");
-					} catch (IOException e) {
-						synchronized (clients) {
-							disconnectedClients.add(c);
-						}
-					}
+					sendToClient(c, ping);
 				}
 				try {
 					Thread.sleep(1000);
@@ -264,47 +535,53 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	 * @param userId String containing the user id of the user we want to remove from chat and games.
 	 */
 	private void removeClientsFromModules(String userId){
-		//Remove user from chat rooms.
-		ArrayList<ChatRoom> rooms = (ArrayList<ChatRoom>) activeChatRooms.clone();
+		//Remove user from chat rooms. Done by the handler, the only thread that changes chat rooms.
+		runOnHandler(() -> {
+			ArrayList<ChatRoom> rooms = (ArrayList<ChatRoom>) activeChatRooms.clone();
 			for(ChatRoom room : rooms){
 				if(room.getConnectedUsers().contains(userId)){
-					UserInfo info = db.getProfile(userId);
+					UserInfo info = db.getUserInfo(userId);
 					announceRemovalToUsersInChatRoom(info, room.getName());
 					removeUserFromChatroom(room.getName(), userId);
 				}
 			}
+		});
 
-		//Remove user from ludo games.
-		ArrayList<Ludo> games = (ArrayList<Ludo>) activeLudoGames.clone();
-			UserInfo info = db.getProfile(userId);
-			for(Ludo game : games) {
-				if(game.getPlayerID(info.getDisplayName()) != -1) { //User is in this game. And there are more than 1 player active
-					game.removePlayer(info.getDisplayName());
-					UserLeftGameResponse retMsg = new UserLeftGameResponse("UserLeftGameResponse");
-					retMsg.setDisplayname(info.getDisplayName());
-					retMsg.setGameid(game.getGameid());
-
-					for(String name : game.getActivePlayers()){
-						if (!name.contentEquals(info.getDisplayName())){
-							UserInfo userInfo = db.getProfilebyDisplayName(name);
-							retMsg.setRecipientSessionId(useridToSessionId(userInfo.getUserId()));
-							System.out.println(name);
-							synchronized (messagesToSend){
-								messagesToSend.add(retMsg);
-							}
-						}
-					}
-
-
+		//Remove user from ludo games. Done by the game threads so it does not interfere with moves in progress.
+		UserInfo info = db.getUserInfo(userId);
+		for(Ludo game : games.getGamesOfPlayer(info.getDisplayName())) {
+			gameExecutor.execute(game.getGameid(), () -> removePlayerFromGame(game, info.getDisplayName()));
+		}
 
-				}
+	}
 
-				if(game.getActivePlayers().length < 1) { //Remove game since everyone has left.
-					activeLudoGames.remove(game);
-				}
+	/**
+	 * Removes a player from a game and tells the other players about it.
+	 * The game is removed when everyone has left. Must run on the game's thread.
+	 * @param game the game the player leaves
+	 * @param displayName display name of the player that leaves
+	 */
+	private void removePlayerFromGame(Ludo game, String displayName){
+		if (game.getPlayerID(displayName) == -1) { //Not in this game (anymore)
+			return;
+		}
+		game.removePlayer(displayName);
+		games.playerLeft(game.getGameid(), displayName);
+		UserLeftGameResponse retMsg = new UserLeftGameResponse("UserLeftGameResponse");
+		retMsg.setDisplayname(displayName);
+		retMsg.setGameid(game.getGameid());
 
+		ArrayList<String> recipients = new ArrayList<>();
+		for(String name : game.getActivePlayers()){
+			if (!name.contentEquals(displayName)){
+				recipients.add(displayNameToSessionId(name));
 			}
+		}
+		broadcast(retMsg, recipients);
 
+		if(game.activePlayers() < 1) { //Remove game since everyone has left.
+			games.remove(game);
+		}
 	}
 
 	/**
@@ -314,7 +591,21 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 		Thread handleActions = new Thread(() -> {
 			while (!stopping) {
 				try {
+					Runnable task;
+					while ((task = handlerTasks.poll()) != null) {
+						try {
+							task.run();
+						} catch (RuntimeException e) { //Do not let one failed task stop the handler
+							e.printStackTrace();
+						}
+					}
 					Message message = objectsToHandle.take();
+					if (readsPaused && objectsToHandle.remainingCapacity() >= HANDLER_QUEUE_SIZE / 2) { //Room again, let the selector read from paused clients
+						selector.wakeup();
+					}
+					if (message == WAKE_HANDLER) {
+						continue;
+					}
 					System.out.println("Handle obj : " + message.getAction());
 					handleAction(message);
 				} catch (InterruptedException e) {
@@ -327,21 +618,13 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	}
 
 	/**
-	 *	Checks if the user is already logged in.
-	 * @param userid userid of the user who is logging in.
-	 * @return true if user is already logged in. False if user is not logged in
+	 * Runs a task on the action handler thread, before it handles the next message.
+	 * Used by other threads to hand back work that touches what only the handler may change.
+	 * @param task the task
 	 */
-	private boolean alreadyLogged(String userid){
-
-		Iterator<Client> iterator = clients.iterator();
-		while(iterator.hasNext()){
-			Client c = iterator.next();
-			if (c.getUserId() != null && c.getUserId().contentEquals(userid)){
-				return true;
-			}
-		}
-
-		return false;
+	private void runOnHandler(Runnable task) {
+		handlerTasks.add(task);
+		objectsToHandle.offer(WAKE_HANDLER); //If the queue is full the handler is not waiting, and finds the task anyway
 	}
 
 	/**
@@ -351,193 +634,93 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	 */
 	private void handleAction(Message action){
 		switch (action.getAction()) {
-			case "UserDoesDiceThrow": UserDoesDiceThrow((UserDoesDiceThrow) action);break;
-			case "UserDoesLoginManual": UserDoesLoginManual((ClientLogin) action);break;
+			case "UserDoesDiceThrow": {
+				UserDoesDiceThrow msg = (UserDoesDiceThrow) action;
+				handleGameAction(msg.getGameid(), () -> UserDoesDiceThrow(msg));
+			} break;
+			case "UserDoesPieceMove" : {
+				UserDoesPieceMove msg = (UserDoesPieceMove) action;
+				handleGameAction(msg.getGameid(), () -> UserDoesPieceMove(msg));
+			} break;
+			case "UserLeftGame": {
+				UserLeftGame msg = (UserLeftGame) action;
+				handleGameAction(msg.getGameid(), () -> UserLeftGame(msg));
+			} break;
+			case "UserDoesGameInvitationAnswer": {
+				UserDoesGameInvitationAnswer msg = (UserDoesGameInvitationAnswer) action;
+				handleGameAction(msg.getGameid(), () -> UserDoesGameInvitationAnswer(msg));
+			} break;
+			case "UserDoesLoginManual": {
+				ClientLogin msg = (ClientLogin) action;
+				credentialExecutor.execute(() -> UserDoesLoginManual(msg), () -> sendBusyResponse(msg));
+			} break;
 			case "UserDoesLoginAuto": UserDoesLoginAuto((ClientLogin) action); break;
-			case "UserDoesRegister": UserDoesRegister((ClientRegister) action); break;
+			case "UserDoesRegister": {
+				ClientRegister msg = (ClientRegister) action;
+				credentialExecutor.execute(() -> UserDoesRegister(msg), () -> sendBusyResponse(msg));
+			} break;
 			case "UserJoinChat": UserJoinChat((UserJoinChat) action); break;
 			case "UserSentMessage": UserSentMessage((UserSentMessage) action); break;
 			case "UserLeftChatRoom": UserLeftChatRoom((UserLeftChatRoom) action); break;
 			case "UserListChatrooms": UserListChatrooms((UserListChatrooms) action); break;
             case "UserWantsUsersList": UserWantsUsersList((UserWantsUsersList) action); break;
 			case "UserWantsToCreateGame": UserWantsToCreateGame((UserWantsToCreateGame) action); break;
-			case "UserDoesGameInvitationAnswer": UserDoesGameInvitationAnswer((UserDoesGameInvitationAnswer) action); break;
-			case "UserLeftGame": UserLeftGame((UserLeftGame) action); break;
-			case "UserDoesPieceMove" : UserDoesPieceMove((UserDoesPieceMove) action); break;
 			case "UserDoesRandomGameSearch" : UserDoesRandomGameSearch((UserDoesRandomGameSearch) action);break;
 			case "UserWantToViewProfile" : UserWantToViewProfile((UserWantToViewProfile) action); break;
-			case "UserWantToEditProfile" : UserWantToEditProfile((UserWantToEditProfile) action); break;
+			case "UserWantToEditProfile" : {
+				UserWantToEditProfile msg = (UserWantToEditProfile) action;
+				String userId = sessionIdToUserId(msg.getRecipientSessionId());
+				//Edits by the same user run one at a time, in the order they were sent
+				credentialExecutor.execute(userId != null ? userId : msg.getRecipientSessionId(),
+						() -> UserWantToEditProfile(msg), () -> sendBusyResponse(msg));
+			} break;
 			case "UserWantsLeaderboard" : UserWantsLeaderboard((UserWantsLeaderboard) action); break;
+			case "UserWantsAvatar" : UserWantsAvatar((UserWantsAvatar) action); break;
+			case "UserWantsOlderChatMessages" : UserWantsOlderChatMessages((UserWantsOlderChatMessages) action); break;
+			case "UserWantsRanking" : UserWantsRanking((UserWantsRanking) action); break;
 		}
 
 	}
 
 	/**
-	 * This function converts from messages the server got and handled to a format
-	 * the user can expect to receive.
-	 * @param msg Message we want to convert to a String
-	 * @return String json message
+	 * Tells a user that their login, registration or password change could not be handled right now,
+	 * because too many are waiting for a password check.
+	 * @param action the action that was turned away
 	 */
-	private String convertToCorrectJson(Message msg) {
-		ObjectMapper mapper = new ObjectMapper();
-		try {
-			String msgJson = mapper.writeValueAsString(msg);
-
-			JsonNode jsonNode = mapper.readTree(msgJson);
-			String action = jsonNode.get("action").asText();
-
-			switch (action) {
-				case "LoginResponse" :{
-					LoginResponse message = new LoginResponse("LoginResponse");
-					message.setLoginStatus(( (LoginResponse) msg) .isLoginStatus());
-					message.setResponse(((LoginResponse) msg).getResponse());
-					message.setUserid(((LoginResponse) msg).getUserid());
-					message.setDisplayname(((LoginResponse)msg).getDisplayname());
-					return mapper.writeValueAsString(message);
-				}
-				case "RegisterResponse": {
-					RegisterResponse message = new RegisterResponse("RegisterResponse");
-					message.setRegisterStatus(( (RegisterResponse) msg) .isRegisterStatus());
-					message.setResponse(((RegisterResponse) msg).getResponse());
-					return mapper.writeValueAsString(message);
-				}
-				case "DiceThrowResponse" : {
-					DiceThrowResponse message = new DiceThrowResponse("DiceThrowResponse");
-					message.setDicerolled(((DiceThrowResponse)msg).getDicerolled());
-					message.setGameid(((DiceThrowResponse)msg).getGameid());
-					return mapper.writeValueAsString(message);
-				}
-				case "ChatJoinNewUserResponse" : {
-					ChatJoinNewUserResponse message = new ChatJoinNewUserResponse("ChatJoinNewUserResponse");
-					message.setDisplayname(((ChatJoinNewUserResponse)msg).getDisplayname());
-					message.setChatroomname(((ChatJoinNewUserResponse)msg).getChatroomname());
-					return mapper.writeValueAsString(message);
-				}
-				case "ChatJoinResponse" : {
-					ChatJoinResponse message = new ChatJoinResponse("ChatJoinResponse");
-					message.setStatus(((ChatJoinResponse)msg).isStatus());
-					message.setResponse(((ChatJoinResponse)msg).getResponse());
-					message.setChatroomname(((ChatJoinResponse)msg).getChatroomname());
-					message.setUsersinroom(((ChatJoinResponse)msg).getUsersinroom());
-					message.setChatlog(((ChatJoinResponse)msg).getChatlog());
-					return mapper.writeValueAsString(message);
-				}
-				case "SentMessageResponse": {
-					SentMessageResponse message = new SentMessageResponse("SentMessageResponse");
-					message.setdisplayname(((SentMessageResponse)msg).getdisplayname());
-					message.setChatroomname(((SentMessageResponse)msg).getChatroomname());
-					message.setChatmessage(((SentMessageResponse)msg).getChatmessage());
-					message.setTimestamp(((SentMessageResponse)msg).getTimestamp());
-					return mapper.writeValueAsString(message);
-				}
-				case "UserLeftChatRoomResponse": {
-					UserLeftChatRoomResponse message = new UserLeftChatRoomResponse("UserLeftChatRoomResponse");
-					message.setDisplayname(((UserLeftChatRoomResponse)msg).getDisplayname());
-					message.setChatroomname(((UserLeftChatRoomResponse)msg).getChatroomname());
-					return mapper.writeValueAsString(message);
-				}
-				case "ErrorMessageResponse" : {
-					ErrorMessageResponse message = new ErrorMessageResponse("ErrorMessageResponse");
-					message.setMessage(((ErrorMessageResponse)msg).getMessage());
-					return mapper.writeValueAsString(message);
-				}
-				case "ChatRoomsListResponse" : {
-					ChatRoomsListResponse message = new ChatRoomsListResponse("ChatRoomsListResponse");
-					message.setChatRoom(((ChatRoomsListResponse)msg).getChatRoom());
-					return mapper.writeValueAsString(message);
-				}
-                case "UsersListResponse" : {
-                    UsersListResponse message = new UsersListResponse("UsersListResponse");
-                    message.setDisplaynames(((UsersListResponse)msg).getDisplaynames());
-					return mapper.writeValueAsString(message);
-                }
-				case "CreateGameResponse": {
-					CreateGameResponse message = new CreateGameResponse("CreateGameResponse");
-					message.setGameid(((CreateGameResponse)msg).getGameid());
-					message.setJoinstatus(((CreateGameResponse)msg).isJoinstatus());
-					message.setResponse(((CreateGameResponse)msg).getResponse());
-					return mapper.writeValueAsString(message);
-				}
-				case "SendGameInvitationsResponse": {
-					SendGameInvitationsResponse message = new SendGameInvitationsResponse("SendGameInvitationsResponse");
-					message.setHostdisplayname(((SendGameInvitationsResponse)msg).getHostdisplayname());
-					message.setGameid(((SendGameInvitationsResponse)msg).getGameid());
-					return mapper.writeValueAsString(message);
-				}
-				case "UserJoinedGameResponse": {
-					UserJoinedGameResponse message = new UserJoinedGameResponse("UserJoinedGameResponse");
-					message.setPlayersinlobby(((UserJoinedGameResponse)msg).getPlayersinlobby());
-					message.setUserid(((UserJoinedGameResponse)msg).getUserid());
-					message.setGameid(((UserJoinedGameResponse)msg).getGameid());
-					return mapper.writeValueAsString(message);
-				}
-				case "UserDeclinedGameInvitationResponse":{
-					UserDeclinedGameInvitationResponse message = new UserDeclinedGameInvitationResponse("UserDeclinedGameInvitationResponse");
-					message.setUserid(((UserDeclinedGameInvitationResponse)msg).getUserid());
-					message.setGameid(((UserDeclinedGameInvitationResponse)msg).getGameid());
-					return mapper.writeValueAsString(message);
-				}
-				case "UserLeftGameResponse":{
-					UserLeftGameResponse message = new UserLeftGameResponse("UserLeftGameResponse");
-					message.setGameid(((UserLeftGameResponse)msg).getGameid());
-					message.setDisplayname(((UserLeftGameResponse)msg).getDisplayname());
-					return mapper.writeValueAsString(message);
-				}
-				case "PieceMovedResponse": {
-					PieceMovedResponse message = new PieceMovedResponse("PieceMovedResponse");
-					message.setPlayerid(((PieceMovedResponse)msg).getPlayerid());
-					message.setPiecemoved(((PieceMovedResponse)msg).getPiecemoved());
-					message.setMovedto(((PieceMovedResponse)msg).getMovedto());
-					message.setMovedfrom(((PieceMovedResponse)msg).getMovedfrom());
-					message.setGameid(((PieceMovedResponse)msg).getGameid());
-					return mapper.writeValueAsString(message);
-				}
-				case "PlayerWonGameResponse":{
-					PlayerWonGameResponse message = new PlayerWonGameResponse("PlayerWonGameResponse");
-					message.setPlayerwonid(((PlayerWonGameResponse)msg).getPlayerwonid());
-					message.setGameid(((PlayerWonGameResponse)msg).getGameid());
-					return mapper.writeValueAsString(message);
-				}
-				case "GameHasStartedResponse":{
-					GameHasStartedResponse message = new GameHasStartedResponse("GameHasStartedResponse");
-					message.setGameid(((GameHasStartedResponse)msg).getGameid());
-					return mapper.writeValueAsString(message);
-				}
-				case "UserWantToViewProfileResponse":{
-					UserWantToViewProfileResponse message = new UserWantToViewProfileResponse("UserWantToViewProfileResponse");
-					message.setUserId(((UserWantToViewProfileResponse)msg).getUserId());
-					message.setGamesWon(((UserWantToViewProfileResponse)msg).getGamesWon());
-					message.setGamesPlayed(((UserWantToViewProfileResponse)msg).getGamesPlayed());
-					message.setDisplayName(((UserWantToViewProfileResponse)msg).getDisplayName());
-					message.setImageString(((UserWantToViewProfileResponse)msg).getImageString());
-					message.setMessage(((UserWantToViewProfileResponse)msg).getMessage());
-					return mapper.writeValueAsString(message);
-				}
-				case "UserWantToEditProfileResponse":{
-					UserWantToEditProfileResponse message = new UserWantToEditProfileResponse("UserWantToEditProfileResponse");
-					message.setResponse(((UserWantToEditProfileResponse)msg).getResponse());
-					message.setChanged(((UserWantToEditProfileResponse)msg).isChanged());
-					message.setDisplayname(((UserWantToEditProfileResponse)msg).getDisplayname());
-					return mapper.writeValueAsString(message);
-				}
-				case "LeaderboardResponse":{
-					LeaderboardResponse message = new LeaderboardResponse("LeaderboardResponse");
-					message.setToptenplays(((LeaderboardResponse)msg).getToptenplays());
-					message.setToptenwins(((LeaderboardResponse)msg).getToptenwins());
-					return mapper.writeValueAsString(message);
-				}
-
-				default: {
-					System.out.println(msg);
-					return "{\"ERROR\":\"server.genericError\"}";
-				}
-			}
-
-		} catch (IOException e) {
-			e.printStackTrace();
+	private void sendBusyResponse(Message action){
+		Message retMsg;
+		if (action instanceof ClientLogin) {
+			LoginResponse response = new LoginResponse("LoginResponse");
+			response.setLoginStatus(false);
+			response.setResponse("server.internalError");
+			retMsg = response;
+		} else if (action instanceof ClientRegister) {
+			RegisterResponse response = new RegisterResponse("RegisterResponse");
+			response.setRegisterStatus(false);
+			response.setResponse("server.internalError");
+			retMsg = response;
+		} else {
+			UserWantToEditProfileResponse response = new UserWantToEditProfileResponse("UserWantToEditProfileResponse");
+			response.setChanged(false);
+			response.setResponse("server.userEditProfileFail");
+			retMsg = response;
 		}
+		retMsg.setRecipientSessionId(action.getRecipientSessionId());
+		sendMessage(retMsg);
+	}
 
-		return null;
+	/**
+	 * Hands an action over to the thread of the game it belongs to.
+	 * Games are then played in parallel, while the actions in one game are handled in order.
+	 * @param gameid id of the game, messages without one are discarded
+	 * @param task the handler to run
+	 */
+	private void handleGameAction(String gameid, Runnable task){
+		if (gameid == null) {
+			System.out.println("DISCARDED GAME ACTION WITHOUT GAMEID");
+			return;
+		}
+		gameExecutor.execute(gameid, task);
 	}
 
 	/**
@@ -548,27 +731,18 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 		LoginResponse retMsg = new LoginResponse("LoginResponse");
 		retMsg.setRecipientSessionId(action.getRecipientSessionId());
 		try {
-			boolean status = db.checkIfLoginValid(action.getUsername(), action.getPassword());
-			retMsg.setLoginStatus(status);
+			UserInfo info = db.login(action.getUsername(), action.getPassword()); //Account and profile in one query.
+			retMsg.setLoginStatus(info != null);
 
 			if(retMsg.isLoginStatus()){ //If login was successful we set the userid on the client.
 				retMsg.setResponse("server.loginOk");
 
-				String userid = db.getUserId(action.getUsername());
-				if (!alreadyLogged(userid)){
+				String userid = info.getUserId();
+				if (sessions.login(action.getRecipientSessionId(), userid, info.getDisplayName())){
 					retMsg.setUserid(userid);
-					setUseridToClient(action.getRecipientSessionId(), userid);
-					UserInfo info = db.getProfile(userid);
 					retMsg.setDisplayname(info.getDisplayName());
 
-					int tokenCount = db.countSessionToken(userid);
-
-					if (tokenCount > 0) { //Terminate existing token before inserting the new one.
-						db.terminateSessionToken(userid);
-						db.insertSessionToken(action.getRecipientSessionId(), userid);
-					} else {
-						db.insertSessionToken(action.getRecipientSessionId(), userid);
-					}
+					db.replaceSessionToken(action.getRecipientSessionId(), userid); //Replaces any existing token.
 				} else {
 					retMsg.setResponse("server.loginAlready");
 					retMsg.setLoginStatus(false);
@@ -584,9 +758,7 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 			e.printStackTrace();
 		}
 
-		synchronized (messagesToSend) {
-			messagesToSend.add(retMsg);
-		}
+		sendMessage(retMsg);
 
 	}
 
@@ -600,15 +772,13 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 		retMsg.setRecipientSessionId(action.getRecipientSessionId());
 
 		try {
-			boolean status = db.checkIfLoginValid(action.getRecipientSessionId());
-			retMsg.setLoginStatus(status);
-			if(status) {
+			UserInfo info = db.loginBySession(action.getRecipientSessionId()); //Cached, or token and profile in one query.
+			retMsg.setLoginStatus(info != null);
+			if(info != null) {
 				retMsg.setResponse("server.loginOk");
-				String userid = db.getUserIdBySession(retMsg.getRecipientSessionId());
-				if (!alreadyLogged(userid)){
+				String userid = info.getUserId();
+				if (sessions.login(action.getRecipientSessionId(), userid, info.getDisplayName())){
 					retMsg.setUserid(userid);
-					setUseridToClient(action.getRecipientSessionId(), userid);
-					UserInfo info = db.getProfile(userid);
 					retMsg.setDisplayname(info.getDisplayName());
 				} else {
 					retMsg.setResponse("server.loginAlready");
@@ -625,9 +795,7 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 			e.printStackTrace();
 		}
 
-		synchronized (messagesToSend) {
-			messagesToSend.add(retMsg);
-		}
+		sendMessage(retMsg);
 
 	}
 
@@ -653,9 +821,7 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 
 		retMsg.setChatRoom(arr);
 
-		synchronized (messagesToSend) {
-			messagesToSend.add(retMsg);
-		}
+		sendMessage(retMsg);
 
 	}
 	/**
@@ -673,6 +839,10 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 			boolean usernameExists = db.doesAccountNameExist(action.getUsername());
 			if (!usernameExists) {
 				db.insertAccount(action.getUsername(), action.getPassword());
+				UserInfo info = db.getUserInfoByDisplayName(action.getUsername());
+				if (info != null) { //Ranked from the start, with no games.
+					leaderboard.update(info);
+				}
 				retMsg.setRegisterStatus(true);
 				retMsg.setResponse("server.registerOk");
 			} else {
@@ -680,14 +850,15 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 				retMsg.setResponse("server.registerFail");
 			}
 
+		} catch (SQLIntegrityConstraintViolationException e) { //Registered by someone else at the same time
+			retMsg.setRegisterStatus(false);
+			retMsg.setResponse("server.registerFail");
 		} catch (SQLException e) {
 			retMsg.setRegisterStatus(false);
 			retMsg.setResponse("server.internalError");
 			e.printStackTrace();
 		}
-		synchronized (messagesToSend) {
-			messagesToSend.add(retMsg);
-		}
+		sendMessage(retMsg);
 
 	}
 
@@ -709,15 +880,13 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 		if (chatRoomExists(action.getChatroomname())) {
 
 			if (chatRoomIsGameOnly(action.getChatroomname())) {
-				UserInfo info = db.getProfile(action.getUserid());
+				UserInfo info = db.getUserInfo(action.getUserid());
 				if (!userIsAllowedInRoom(action.getChatroomname(), info.getDisplayName())){
 					retMsg.setResponse("server.roomNotAllowed");
 					retMsg.setChatroomname(action.getChatroomname());
 					retMsg.setStatus(false);
-					synchronized (messagesToSend) {
-						messagesToSend.add(retMsg);
-						return; //We dont do anything else here.
-					}
+					sendMessage(retMsg);
+					return; //We dont do anything else here.
 				}
 			}
 
@@ -774,41 +943,58 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 
 		}
 
-		synchronized (messagesToSend) {
-			messagesToSend.add(retMsg);
-		}
+		sendMessage(retMsg);
 
 	}
 
 	/**
-	 *
+	 * Get the latest messages in a chat room, the first page of its chat log.
+	 * They are kept in memory by the chat room, the database is only used if the room can not provide them.
 	 * @param chatroomname String with the name of the chatroom
 	 * @return Array of chat messages in a chat room.
 	 */
 	private ChatMessage[] getChatLog(String chatroomname){
-		ArrayList<ChatMessage> arraylist = db.getChatMessages(chatroomname);
+		ChatRoom room = getChatRoom(chatroomname);
+		if (room != null) {
+			return room.getRecentMessages();
+		}
+		return getChatLog(chatroomname, Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Get a page of the chat log in a chat room, oldest message first.
+	 * @param chatroomname String with the name of the chatroom
+	 * @param before only messages sent before this time (epoch seconds)
+	 * @param beforeId of the messages sent at time before, only those with a lower id
+	 * @return Array of chat messages in a chat room.
+	 */
+	private ChatMessage[] getChatLog(String chatroomname, long before, long beforeId){
+		ArrayList<ChatMessage> arraylist = db.getChatMessages(chatroomname, before, beforeId, CHAT_LOG_PAGE_SIZE);
 
 		// fixing NullPointerException when no chat history is available
 		if(arraylist == null){
 			return new ChatMessage[]{};
 		}
 
-		ChatMessage[] arr;
+		return arraylist.toArray(new ChatMessage[0]);
+	}
 
-		if  (arraylist.size() >= 50) {
-			List<ChatMessage> subArraylist = arraylist.subList(arraylist.size()-50, arraylist.size());
-			arr = new ChatMessage[subArraylist.size() +1];
-			for (int i = 0; i <= subArraylist.size(); i++){
-				arr[i] = arraylist.get(i);
-			}
-		} else {
-			arr = new ChatMessage[arraylist.size()];
-			for (int i = 0; i < arraylist.size(); i++){
-				arr[i] = arraylist.get(i);
-			}
+	/**
+	 * When a user scrolls back in the chat log of a chat room they are in.
+	 * @param action UserWantsOlderChatMessages message from user
+	 */
+	private void UserWantsOlderChatMessages(UserWantsOlderChatMessages action){
+		String userid = sessionIdToUserId(action.getRecipientSessionId());
+		if (userid == null || !userIsInChatroom(action.getChatroomname(), userid)) {
+			return;
 		}
 
-		return arr;
+		OlderChatMessagesResponse retMsg = new OlderChatMessagesResponse("OlderChatMessagesResponse");
+		retMsg.setRecipientSessionId(action.getRecipientSessionId());
+		retMsg.setChatroomname(action.getChatroomname());
+		retMsg.setChatlog(getChatLog(action.getChatroomname(), action.getBefore(), action.getBeforeId()));
+
+		sendMessage(retMsg);
 	}
 
 	/**
@@ -828,7 +1014,7 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 				retMsg.setRecipientSessionId(recipientId);
 				((UserLeftChatRoomResponse)retMsg).setChatroomname(action.getChatroomname());
 
-				UserInfo info = db.getProfile(action.getUserid());
+				UserInfo info = db.getUserInfo(action.getUserid());
 
 				((UserLeftChatRoomResponse)retMsg).setDisplayname(info.getDisplayName());
 
@@ -845,9 +1031,7 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 			((ErrorMessageResponse)retMsg).setMessage("server.roomLeaveError");
 		}
 
-		synchronized (messagesToSend) {
-			messagesToSend.add(retMsg);
-		}
+		sendMessage(retMsg);
 
 	}
 
@@ -871,19 +1055,19 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 		roomExists = chatRoomExists(action.getChatroomname());
 
 		if (roomExists && isConnected){
-			try {
-				db.insertChatMessage(action.getChatroomname(), action.getUserid(), action.getChatmessage());
-				UserInfo info = db.getProfile(action.getUserid());
-				((SentMessageResponse)retMsg).setdisplayname(info.getDisplayName());
-				((SentMessageResponse)retMsg).setChatroomname(action.getChatroomname());
-				((SentMessageResponse)retMsg).setChatmessage(action.getChatmessage());
-				((SentMessageResponse)retMsg).setTimestamp(String.valueOf(Instant.now().getEpochSecond()));
-
-				sendMessageToChatRoom(retMsg, ((SentMessageResponse) retMsg).getChatroomname());
-
-			} catch (SQLException e) {
-				e.printStackTrace();
+			//Written to the chat log in the background, the users get the message right away.
+			ChatMessage message = db.queueChatMessage(action.getChatroomname(), action.getUserid(), action.getChatmessage());
+			((SentMessageResponse)retMsg).setdisplayname(message.getdisplayName());
+			((SentMessageResponse)retMsg).setChatroomname(action.getChatroomname());
+			((SentMessageResponse)retMsg).setChatmessage(action.getChatmessage());
+			((SentMessageResponse)retMsg).setTimestamp(String.valueOf(message.getTimeSent()));
+
+			ChatRoom room = getChatRoom(action.getChatroomname());
+			if (room != null) {
+				room.addRecentMessage(message);
 			}
+
+			sendMessageToChatRoom(retMsg, ((SentMessageResponse) retMsg).getChatroomname());
 		} else { //If the chatroom is non existent give the user a error message.
 			retMsg = new ErrorMessageResponse("ErrorMessageResponse");
 			if (!isConnected) {
@@ -896,9 +1080,7 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 
 			retMsg.setRecipientSessionId(useridToSessionId(action.getUserid()));
 
-			synchronized (messagesToSend) {
-				messagesToSend.add(retMsg);
-			}
+			sendMessage(retMsg);
 		}
 
 
@@ -909,10 +1091,10 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	 * @param action UserDoesDiceThrow from user
 	 */
 	private void UserDoesDiceThrow(UserDoesDiceThrow action){
-		for(Ludo game : activeLudoGames) {
-			if (game.getGameid().contentEquals(action.getGameid())) {
-				game.throwDice();
-			}
+		Ludo game = games.get(action.getGameid());
+		if (game != null) {
+			game.throwDice();
+			games.leftLobby(game.getGameid()); //First throw starts the game.
 		}
 	}
 
@@ -921,10 +1103,9 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	 * @param action UserDoesPieceMove from user
 	 */
 	private void UserDoesPieceMove(UserDoesPieceMove action){
-		for (Ludo game : activeLudoGames) {
-			if (game.getGameid().contentEquals(action.getGameid())){
-				game.movePiece(action.getPlayerid(), action.getMovedfrom(), action.getMovedto());
-			}
+		Ludo game = games.get(action.getGameid());
+		if (game != null) {
+			game.movePiece(action.getPlayerid(), action.getMovedfrom(), action.getMovedto());
 		}
 	}
 
@@ -934,15 +1115,7 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	 * @return userid user id associated with the session id
 	 */
 	private String sessionIdToUserId(String sessionId){
-		Iterator<Client> c = clients.iterator();
-		while(c.hasNext()) {
-			Client client = c.next();
-			if (client.getUuid().contentEquals(sessionId)) {
-				return client.getUserId();
-			}
-		}
-
-		return null;
+		return sessions.getUserId(sessionId);
 	}
 
 	/**
@@ -951,31 +1124,16 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	 * @return sessionid session id associated with the user id
 	 */
 	private String useridToSessionId(String userid){
-		Iterator<Client> c = clients.iterator();
-		while(c.hasNext()) {
-			Client client = c.next();
-			if (client.getUserId() != null && client.getUserId().contentEquals(userid)) {
-				return client.getUuid();
-			}
-		}
-
-		return null;
+		return sessions.getSessionId(userid);
 	}
 
 	/**
-	 * Sets userid to client
-	 * @param sessionId String containing session id.
-	 * @param userid String containing user id.
+	 * Converts display name to sessionid
+	 * @param displayName String containing display name we want to convert to session id
+	 * @return sessionid session id associated with the display name, null if the user is not logged in
 	 */
-	private void setUseridToClient(String sessionId , String userid){
-		Iterator<Client> c = clients.iterator();
-		while(c.hasNext()) {
-			Client client = c.next();
-			if (client.getUuid().contentEquals(sessionId)) {
-				client.setUserId(userid);
-				return;
-			}
-		}
+	private String displayNameToSessionId(String displayName){
+		return sessions.getSessionIdByDisplayName(displayName);
 	}
 
 	/**
@@ -998,6 +1156,20 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 		return false;
 	}
 
+	/**
+	 * Find an active chat room by name, ignoring case.
+	 * @param chatRoomName String containing chat room name
+	 * @return the chat room, null if there is no such room
+	 */
+	private ChatRoom getChatRoom(String chatRoomName) {
+		for(ChatRoom room : activeChatRooms) {
+			if (room.getName().toLowerCase().contentEquals(chatRoomName.toLowerCase())) {
+				return room;
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Is the user in a specific chat room
 	 * @param chatRoomName String containing chat room name
@@ -1030,7 +1202,7 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 			if (room.getName().toLowerCase().contentEquals(chatRoomName.toLowerCase())){
 				arrayList = new ArrayList<>();
 				for (String userid : room.getConnectedUsers()){
-					UserInfo info = db.getProfile(userid);
+					UserInfo info = db.getUserInfo(userid);
 					arrayList.add(info.getDisplayName());
 				}
 			}
@@ -1055,18 +1227,17 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 
 		for (ChatRoom room : activeChatRooms) { //Loop over chat rooms
 			if (room.getName().contentEquals(chatroom)){ // Find correct chat room
+				SentMessageResponse sentMessageResponse = new SentMessageResponse("SentMessageResponse");
+				sentMessageResponse.setChatmessage(((SentMessageResponse)action).getChatmessage());
+				sentMessageResponse.setChatroomname(chatroom);
+				sentMessageResponse.setdisplayname(((SentMessageResponse)action).getdisplayname());
+				sentMessageResponse.setTimestamp(((SentMessageResponse)action).getTimestamp());
+
+				ArrayList<String> recipients = new ArrayList<>();
 				for(String UserId : room.getConnectedUsers()){ //Get all active users
-					SentMessageResponse sentMessageResponse = new SentMessageResponse("SentMessageResponse");
-					sentMessageResponse.setChatmessage(((SentMessageResponse)action).getChatmessage());
-					sentMessageResponse.setChatroomname(chatroom);
-					sentMessageResponse.setdisplayname(((SentMessageResponse)action).getdisplayname());
-					sentMessageResponse.setTimestamp(((SentMessageResponse)action).getTimestamp());
-					sentMessageResponse.setRecipientSessionId(useridToSessionId(UserId));
-
-					synchronized (messagesToSend) {
-						messagesToSend.add(sentMessageResponse); //Send message.
-					}
+					recipients.add(useridToSessionId(UserId));
 				}
+				broadcast(sentMessageResponse, recipients); //Send message.
 				return;
 			}
 		}
@@ -1080,22 +1251,22 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	 */
 	private void announceToUsersInChatRoom(Message action, String chatroomname){
 
-		UserInfo info = db.getProfile(sessionIdToUserId(action.getRecipientSessionId()));
+		String joinedUserId = sessionIdToUserId(action.getRecipientSessionId());
+		UserInfo info = db.getUserInfo(joinedUserId);
 
 		for (ChatRoom room : activeChatRooms) { //Loop over chat rooms
 			if (room.getName().contentEquals(chatroomname)){ // Find correct chat room
+				ChatJoinNewUserResponse chatJoinNewUserResponse = new ChatJoinNewUserResponse("ChatJoinNewUserResponse");
+				chatJoinNewUserResponse.setDisplayname(info.getDisplayName());
+				chatJoinNewUserResponse.setChatroomname(room.getName());
+
+				ArrayList<String> recipients = new ArrayList<>();
 				for(String UserId : room.getConnectedUsers()){ //Get all active users
-					if (!UserId.contentEquals(sessionIdToUserId(action.getRecipientSessionId()))) {
-						ChatJoinNewUserResponse chatJoinNewUserResponse = new ChatJoinNewUserResponse("ChatJoinNewUserResponse");
-						chatJoinNewUserResponse.setDisplayname(info.getDisplayName());
-						chatJoinNewUserResponse.setChatroomname(room.getName());
-						chatJoinNewUserResponse.setRecipientSessionId(useridToSessionId(UserId));
-
-						synchronized (messagesToSend) {
-							messagesToSend.add(chatJoinNewUserResponse); //Send message.
-						}
+					if (!UserId.contentEquals(joinedUserId)) {
+						recipients.add(useridToSessionId(UserId));
 					}
 				}
+				broadcast(chatJoinNewUserResponse, recipients); //Send message.
 				return;
 			}
 		}
@@ -1140,19 +1311,15 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 
 		for (ChatRoom room : activeChatRooms) { //Loop over chat rooms
 			if (room.getName().contentEquals(chatroomname)){ // Find correct chat room
+				UserLeftChatRoomResponse userLeftChatRoomResponse = new UserLeftChatRoomResponse("UserLeftChatRoomResponse");
+				userLeftChatRoomResponse.setDisplayname(info.getDisplayName());
+				userLeftChatRoomResponse.setChatroomname(chatroomname);
+
+				ArrayList<String> recipients = new ArrayList<>();
 				for(String UserId : room.getConnectedUsers()){ //Get all active users
-						UserLeftChatRoomResponse userLeftChatRoomResponse = new UserLeftChatRoomResponse("UserLeftChatRoomResponse");
-						userLeftChatRoomResponse.setDisplayname(info.getDisplayName());
-						userLeftChatRoomResponse.setChatroomname(chatroomname);
-						String sessionid = useridToSessionId(UserId);
-						if (sessionid != null ) {
-							userLeftChatRoomResponse.setRecipientSessionId(useridToSessionId(UserId));
-
-							synchronized (messagesToSend) {
-								messagesToSend.add(userLeftChatRoomResponse); //Send message.
-							}
-						}
-					}
+					recipients.add(useridToSessionId(UserId));
+				}
+				broadcast(userLeftChatRoomResponse, recipients); //Send message.
 				return;
 			}
 		}
@@ -1219,13 +1386,13 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 
 	    Message retMsg = new UsersListResponse("UsersListResponse");
 	    retMsg.setRecipientSessionId(action.getRecipientSessionId());
-	    UserInfo info_self = db.getProfile(sessionIdToUserId(retMsg.getRecipientSessionId()));
+	    UserInfo info_self = db.getUserInfo(sessionIdToUserId(retMsg.getRecipientSessionId()));
 
 	    ArrayList<String> usersMatchQuery = new ArrayList<>();
 
         for (ChatRoom room : activeChatRooms) {
             for (String userid : room.getConnectedUsers()){
-                UserInfo info = db.getProfile(userid);
+                UserInfo info = db.getUserInfo(userid);
                 if (info.getDisplayName().contains(action.getSearchquery()) && !info.getDisplayName().contentEquals(info_self.getDisplayName())) {
                     if (!usersMatchQuery.contains(info.getDisplayName())){
                         usersMatchQuery.add(info.getDisplayName());
@@ -1241,9 +1408,7 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 
         ((UsersListResponse)retMsg).setDisplaynames(retArr);
 
-        synchronized (messagesToSend) {
-            messagesToSend.add(retMsg);
-        }
+        sendMessage(retMsg);
 
     }
 
@@ -1266,40 +1431,36 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 		newGame.setHostid(action.getHostid());
 		newGame.setGameid(UUID.randomUUID().toString());
 
-		UserInfo info = db.getProfile(action.getHostid());
+		UserInfo info = db.getUserInfo(action.getHostid());
 		newGame.addPlayer(info.getDisplayName());
 		newGame.addDiceListener(this);
 		newGame.addPieceListener(this);
 		newGame.addPlayerListener(this);
-		activeLudoGames.add(newGame);
+
+		Invitations invites = new Invitations();
+		invites.setPlayers(action.getToinvitedisplaynames());
+		invites.setAccepted(new Boolean[action.getToinvitedisplaynames().length]);
+		invites.setGameid(newGame.getGameid());
+		games.addInvitations(invites);
+		games.add(newGame);
 
 		retMsg.setJoinstatus(true);
 		retMsg.setResponse("server.gameJoinOk");
 		retMsg.setGameid(newGame.getGameid());
 
-		System.out.println("Active ludo games " + activeLudoGames.size());
+		System.out.println("Active ludo games " + games.size());
 
-		synchronized (messagesToSend) {
-			messagesToSend.add(retMsg);
-		}
-
-		Invitations invites = new Invitations();
-		invites.setPlayers(action.getToinvitedisplaynames());
-		invites.setAccepted(new Boolean[action.getToinvitedisplaynames().length]);
-		invites.setGameid(newGame.getGameid());
-		pendingInvites.add(invites);
+		sendMessage(retMsg);
 
 		//Send out invitations here:
 		for (int i = 0; i < action.getToinvitedisplaynames().length; i++) {
 			SendGameInvitationsResponse invite = new SendGameInvitationsResponse("SendGameInvitationsResponse");
-			UserInfo userInfo = db.getProfilebyDisplayName(action.getToinvitedisplaynames()[i]);
+			UserInfo userInfo = db.getUserInfoByDisplayName(action.getToinvitedisplaynames()[i]);
 			if (userInfo != null){
 				invite.setGameid(newGame.getGameid());
 				invite.setHostdisplayname(info.getDisplayName());
 				invite.setRecipientSessionId(useridToSessionId(userInfo.getUserId()));
-				synchronized (messagesToSend){
-					messagesToSend.add(invite);
-				}
+				sendMessage(invite);
 			}
 		}
 
@@ -1331,103 +1492,68 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 			return;
 		}
 
+		Ludo game = games.get(action.getGameid());
+		if (game == null) { //Game is gone, nothing to answer.
+			return;
+		}
+		UserInfo info = db.getUserInfo(action.getUserid());
+		Invitations invite = games.getInvitations(action.getGameid());
+
 		Message retMsg;
 		System.out.println(action);
 		if (action.isAccepted()) { //User accepted. Add them to the game
 			retMsg = new UserJoinedGameResponse("UserJoinedGameResponse");
 			((UserJoinedGameResponse)retMsg).setGameid(action.getGameid());
 			((UserJoinedGameResponse)retMsg).setUserid(action.getUserid());
-			for(Ludo game : activeLudoGames) {
-				System.out.println(game.getGameid() + " " + action.getGameid());
-				if (game.getGameid().contentEquals(action.getGameid())) {
-					UserInfo info = db.getProfile(action.getUserid());
-					game.addPlayer(info.getDisplayName());
-					((UserJoinedGameResponse)retMsg).setPlayersinlobby(game.getPlayers());
-				}
-			}
+			game.addPlayer(info.getDisplayName());
+			games.playerJoined(game.getGameid(), info.getDisplayName());
+			((UserJoinedGameResponse)retMsg).setPlayersinlobby(game.getPlayers());
 
-			for(Ludo game : activeLudoGames) {
-				if (game.getGameid().contentEquals(action.getGameid())) {
-					for (String name : game.getPlayers()) {
-						if (name != null){
-							UserInfo info = db.getProfilebyDisplayName(name);
-							retMsg.setRecipientSessionId(useridToSessionId(info.getUserId()));
-							synchronized (messagesToSend){
-								messagesToSend.add(retMsg);
-							}
-						}
-					}
-				}
-			}
+			broadcast(retMsg, playerSessionIds(game.getPlayers()));
 
-			for (Invitations invite : pendingInvites) {
-				if (invite.getGameid().contentEquals(action.getGameid())){
-					UserInfo info = db.getProfile(action.getUserid());
-					invite.setOneUpdate(info.getDisplayName(),true);
-				}
+			if (invite != null) {
+				invite.setOneUpdate(info.getDisplayName(),true);
 			}
 
 		} else { //User declined. Send message to inviter. Which is host of game (?)
-			String hostId = null;
-			for(Ludo game : activeLudoGames) {
-				if (game.getGameid().contentEquals(action.getGameid())) {
-					hostId = game.getHostid();
-				}
-			}
 			retMsg = new UserDeclinedGameInvitationResponse("UserDeclinedGameInvitationResponse");
-			retMsg.setRecipientSessionId(useridToSessionId(hostId));
+			retMsg.setRecipientSessionId(useridToSessionId(game.getHostid()));
 			((UserDeclinedGameInvitationResponse)retMsg).setGameid(action.getGameid());
 			((UserDeclinedGameInvitationResponse)retMsg).setUserid(action.getUserid());
 
-			synchronized (messagesToSend){
-				messagesToSend.add(retMsg);
-			}
+			sendMessage(retMsg);
 
-			for (Invitations invite : pendingInvites) {
-				if (invite.getGameid().contentEquals(action.getGameid())){
-					UserInfo info = db.getProfile(action.getUserid());
-					invite.setOneUpdate(info.getDisplayName(),false);
-				}
+			if (invite != null) {
+				invite.setOneUpdate(info.getDisplayName(),false);
 			}
 
 		}
-		checkIfEveryoneAnsweredInvite(action);
+		checkIfEveryoneAnsweredInvite(game, invite);
 	}
 
 	/**
 	 * Checks if all invited users have answered the invite.
-	 * @param action UserDoesGameInvitationAnswer message from user
+	 * When they have, the players that accepted and the host are told that the game has started.
+	 * @param game the game the invite is for
+	 * @param invite the pending invite of the game, null if there is none
 	 */
-	private void checkIfEveryoneAnsweredInvite(UserDoesGameInvitationAnswer action){
-		for (Invitations invite : pendingInvites) {
-			if (invite.getGameid().contentEquals(action.getGameid())){
-				UserInfo info = db.getProfile(action.getUserid());
-
-				if (invite.isEveryoneAccepted()){
-					for (int i = 0; i < invite.getPlayers().length; i++){
-						if (invite.getOnePlayerAccepted(i)){
-							GameHasStartedResponse gameStarted = new GameHasStartedResponse("GameHasStartedResponse");
-							gameStarted.setGameid(invite.getGameid());
-							UserInfo userInfo = db.getProfilebyDisplayName(invite.getOnePlayerName(i));
-							gameStarted.setRecipientSessionId(useridToSessionId(userInfo.getUserId()));
-
-							synchronized (messagesToSend){
-								messagesToSend.add(gameStarted);
-							}
-
-						}
-					}
-					//pendingInvites.remove(invite);
-					for (Ludo game : activeLudoGames) {
-						GameHasStartedResponse gameStarted = new GameHasStartedResponse("GameHasStartedResponse");
-						gameStarted.setGameid(invite.getGameid());
-						gameStarted.setRecipientSessionId(useridToSessionId(game.getHostid()));
-						messagesToSend.add(gameStarted);
-					}
-				}
+	private void checkIfEveryoneAnsweredInvite(Ludo game, Invitations invite){
+		if (invite == null || !invite.isEveryoneAccepted()) {
+			return;
+		}
 
+		ArrayList<String> recipients = new ArrayList<>();
+		for (int i = 0; i < invite.getPlayers().length; i++){
+			if (invite.getOnePlayerAccepted(i)){
+				recipients.add(displayNameToSessionId(invite.getOnePlayerName(i)));
 			}
 		}
+		recipients.add(useridToSessionId(game.getHostid()));
+		games.removeInvitations(invite.getGameid());
+
+		GameHasStartedResponse gameStarted = new GameHasStartedResponse("GameHasStartedResponse");
+		gameStarted.setGameid(invite.getGameid());
+		broadcast(gameStarted, recipients);
 	}
 
 	/**
@@ -1436,25 +1562,11 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	 */
 	private void UserLeftGame(UserLeftGame action){
 
-		UserLeftGameResponse retMsg = new UserLeftGameResponse("UserLeftGameResponse");
-		UserInfo info = db.getProfile(sessionIdToUserId(action.getRecipientSessionId()));
-		retMsg.setDisplayname(info.getDisplayName());
-		retMsg.setGameid(action.getGameid());
-
-		for (Ludo game : activeLudoGames) {
-			if (game.getGameid().contentEquals(action.getGameid())) {
-				game.removePlayer(info.getDisplayName());
-				for(String name : game.getActivePlayers()){
-					if (!name.contentEquals(info.getDisplayName())){
-						UserInfo userInfo = db.getProfilebyDisplayName(name);
-						retMsg.setRecipientSessionId(useridToSessionId(userInfo.getUserId()));
-						System.out.println(name);
-						synchronized (messagesToSend){
-							messagesToSend.add(retMsg);
-						}
-					}
-				}
-			}
+		UserInfo info = db.getUserInfo(sessionIdToUserId(action.getRecipientSessionId()));
+
+		Ludo game = games.get(action.getGameid());
+		if (game != null) {
+			removePlayerFromGame(game, info.getDisplayName());
 		}
 	}
 
@@ -1470,88 +1582,112 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 			return;
 		}
 
-		UserInfo info = db.getProfile(action.getUserid());
-
-		boolean foundGame = false;
-
-		for (Ludo game : activeLudoGames) {
-			System.out.println("Status: " + game.getStatus());
-			if (game.getStatus().contentEquals("Initiated") && game.getActivePlayers().length < 4){
-				foundGame = true;
-				game.addPlayer(info.getDisplayName());
-
-				UserJoinedGameResponse retMsg = new UserJoinedGameResponse("UserJoinedGameResponse");
-				retMsg.setGameid(game.getGameid());
-				retMsg.setUserid(action.getUserid());
-				retMsg.setPlayersinlobby(game.getPlayers());
-
-				for (String name : game.getPlayers()) {
-					UserInfo userInfo = db.getProfilebyDisplayName(name);
-					retMsg.setRecipientSessionId(useridToSessionId(userInfo.getUserId()));
-					synchronized (messagesToSend){
-						messagesToSend.add(retMsg);
-					}
-				}
-
-				for(ChatRoom room : activeChatRooms) {
-					if (room.getName().contentEquals(game.getGameid())){
-						ArrayList<String> names = room.getAllowedUsers();
-						names.add(info.getDisplayName());
-						room.setAllowedUsers(names);
-					}
-				}
+		UserInfo info = db.getUserInfo(action.getUserid());
+		joinNextLobbyGame(action, info, new ArrayList<>(games.getLobbyGames()).iterator());
+	}
 
-				if(game.getActivePlayers().length == 4) {
-					for (String name : game.getPlayers()) {
-						Message gameStarted = new GameHasStartedResponse("GameHasStartedResponse");
-						((GameHasStartedResponse)gameStarted).setGameid(game.getGameid());
-						UserInfo userInfo = db.getProfilebyDisplayName(name);
-						gameStarted.setRecipientSessionId(useridToSessionId(userInfo.getUserId()));
-						synchronized (messagesToSend){
-							messagesToSend.add(gameStarted);
-						}
+	/**
+	 * Tries to join the next open game in the lobby, on the game's own thread, so the handler does not wait for it.
+	 * If the game refuses, the search goes on from the handler thread. Creates a new game when none are left.
+	 * @param action UserDoesRandomGameSearch message from user
+	 * @param info profile of the user searching
+	 * @param candidates lobby games not tried yet, only used on the handler thread
+	 */
+	private void joinNextLobbyGame(UserDoesRandomGameSearch action, UserInfo info, Iterator<Ludo> candidates) {
+		while (candidates.hasNext()) {
+			Ludo game = candidates.next();
+			if (game.getStatus().contentEquals("Initiated") && game.activePlayers() < 4){
+				//Join on the game's thread, the game might have filled up or started since we looked at it.
+				gameExecutor.execute(game.getGameid(), () -> {
+					if (!joinRandomGame(game, info, action.getUserid())) {
+						runOnHandler(() -> joinNextLobbyGame(action, info, candidates));
 					}
-				}
-
+				});
+				return;
 			}
 		}
 
-		if (!foundGame) {
-			CreateGameResponse retMsg = new CreateGameResponse("CreateGameResponse");
-			retMsg.setRecipientSessionId(action.recipientSessionId);
+		CreateGameResponse retMsg = new CreateGameResponse("CreateGameResponse");
+		retMsg.setRecipientSessionId(action.recipientSessionId);
 
-			Ludo newGame = new Ludo();
-			newGame.setHostid(sessionIdToUserId(action.getRecipientSessionId()));
-			newGame.setGameid(UUID.randomUUID().toString());
+		Ludo newGame = new Ludo();
+		newGame.setHostid(sessionIdToUserId(action.getRecipientSessionId()));
+		newGame.setGameid(UUID.randomUUID().toString());
 
-			newGame.addPlayer(info.getDisplayName());
-			newGame.addDiceListener(this);
-			newGame.addPieceListener(this);
-			newGame.addPlayerListener(this);
-			activeLudoGames.add(newGame);
+		newGame.addPlayer(info.getDisplayName());
+		newGame.addDiceListener(this);
+		newGame.addPieceListener(this);
+		newGame.addPlayerListener(this);
+		games.add(newGame);
 
-			retMsg.setJoinstatus(true);
-			retMsg.setResponse("server.gameJoinOk");
-			retMsg.setGameid(newGame.getGameid());
-			synchronized (messagesToSend) {
-				messagesToSend.add(retMsg);
-			}
+		retMsg.setJoinstatus(true);
+		retMsg.setResponse("server.gameJoinOk");
+		retMsg.setGameid(newGame.getGameid());
+		sendMessage(retMsg);
 
-			//Create a game room.
-			ChatRoom newRoom = new ChatRoom(newGame.getGameid());
-			newRoom.setGameRoom(true);
-			ArrayList<String> names = new ArrayList<>();
-			names.add(info.getDisplayName());
-			newRoom.setAllowedUsers(names);
-			activeChatRooms.add(newRoom);
-			try {
-				db.insertChatRoom(newGame.getGameid());
-			} catch (SQLException e) {
-				e.printStackTrace();
-			}
+		//Create a game room.
+		ChatRoom newRoom = new ChatRoom(newGame.getGameid());
+		newRoom.setGameRoom(true);
+		ArrayList<String> names = new ArrayList<>();
+		names.add(info.getDisplayName());
+		newRoom.setAllowedUsers(names);
+		activeChatRooms.add(newRoom);
+		try {
+			db.insertChatRoom(newGame.getGameid());
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
 
+	/**
+	 * Adds a user to a game found by random search and tells everyone in the lobby. Starts the game when it is full.
+	 * Must run on the game's thread.
+	 * @param game the game to join
+	 * @param info profile of the user joining
+	 * @param userid user id of the user joining
+	 * @return true if the user joined, false if the game was no longer open
+	 */
+	private boolean joinRandomGame(Ludo game, UserInfo info, String userid){
+		if (!game.getStatus().contentEquals("Initiated") || game.activePlayers() >= 4) {
+			games.leftLobby(game.getGameid());
+			return false;
 		}
+		game.addPlayer(info.getDisplayName());
+		games.playerJoined(game.getGameid(), info.getDisplayName());
+
+		UserJoinedGameResponse retMsg = new UserJoinedGameResponse("UserJoinedGameResponse");
+		retMsg.setGameid(game.getGameid());
+		retMsg.setUserid(userid);
+		retMsg.setPlayersinlobby(game.getPlayers());
+
+		//Chat rooms are only changed by the handler. It lets the user into the game room before it handles
+		//anything the players send after hearing about the join.
+		runOnHandler(() -> allowInChatRoom(game.getGameid(), info.getDisplayName()));
+		broadcast(retMsg, playerSessionIds(game.getPlayers()));
+
+		if(game.activePlayers() == 4) {
+			games.leftLobby(game.getGameid());
+			GameHasStartedResponse gameStarted = new GameHasStartedResponse("GameHasStartedResponse");
+			gameStarted.setGameid(game.getGameid());
+			broadcast(gameStarted, playerSessionIds(game.getPlayers()));
+		}
+		return true;
+	}
 
+	/**
+	 * Lets a user into a chat room that only some users may join, like the room of a game.
+	 * Must run on the handler thread.
+	 * @param chatRoomName name of the room
+	 * @param displayName display name of the user
+	 */
+	private void allowInChatRoom(String chatRoomName, String displayName) {
+		for(ChatRoom room : activeChatRooms) {
+			if (room.getName().contentEquals(chatRoomName)){
+				ArrayList<String> names = room.getAllowedUsers();
+				names.add(displayName);
+				room.setAllowedUsers(names);
+			}
+		}
 	}
 
 	/**
@@ -1559,12 +1695,13 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	 * @param action UserWantToViewProfile message from user
 	 */
 	private void UserWantToViewProfile(UserWantToViewProfile action){
-		UserInfo info = db.getProfilebyDisplayName(action.getDisplayname());
+		UserInfo info = db.getUserInfoByDisplayName(action.getDisplayname());
 		UserWantToViewProfileResponse retMsg;
 		retMsg = new UserWantToViewProfileResponse("UserWantToViewProfileResponse");
 		retMsg.setRecipientSessionId(action.getRecipientSessionId());
 		if (info != null){
-			retMsg.setImageString(info.getAvatarImage());
+			retMsg.setAvatarHash(info.getAvatarHash()); //The client fetches the avatar itself, unless it has it already
+			retMsg.setThumbnail(action.isThumbnail());
 			retMsg.setDisplayName(info.getDisplayName());
 			retMsg.setGamesPlayed(info.getGamesPlayed());
 			retMsg.setGamesWon(info.getGamesWon());
@@ -1575,18 +1712,27 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 			retMsg.setMessage("server.userViewProfileFail");
 		}
 
-		synchronized (messagesToSend) {
-			messagesToSend.add(retMsg);
-		}
+		sendMessage(retMsg);
 
 	}
 
+	/**
+	 * When a user wants an avatar, after getting its hash with a profile.
+	 * @param action UserWantsAvatar message from user
+	 */
+	private void UserWantsAvatar(UserWantsAvatar action){
+		byte[] avatar = db.getAvatar(action.getAvatarhash(), action.isThumbnail());
+		AvatarResponse retMsg = new AvatarResponse("AvatarResponse", action.getAvatarhash(), action.isThumbnail(), avatar);
+		retMsg.setRecipientSessionId(action.getRecipientSessionId());
+		sendMessage(retMsg);
+	}
+
 	/**
 	 * When a user wants to edit their profile.
 	 * @param action UserWantToEditProfile message from user
 	 */
 	private void UserWantToEditProfile(UserWantToEditProfile action) {
-		UserInfo oldInfo = db.getProfile(sessionIdToUserId(action.getRecipientSessionId()));
+		UserInfo oldInfo = db.getUserInfo(sessionIdToUserId(action.getRecipientSessionId()));
 		//Security check.
 		boolean secCheckPass = securityCheck(oldInfo.getUserId(),action.getRecipientSessionId());
 		if(!secCheckPass){
@@ -1596,13 +1742,17 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 
 		UserWantToEditProfileResponse retMsg = new UserWantToEditProfileResponse("UserWantToEditProfileResponse");
 		retMsg.setRecipientSessionId(action.getRecipientSessionId());
+		//No image means the avatar is unchanged, so the new info keeps the current one.
 		UserInfo newInfo = new UserInfo(sessionIdToUserId(action.getRecipientSessionId()), action.getDisplayname(),action.getImageString(), oldInfo.getGamesPlayed(), oldInfo.getGamesWon());
+		newInfo.setAvatarHash(oldInfo.getAvatarHash());
 
         boolean profileUpdate = false, passwordUpdate = false;
 
 		try {
 			if(!db.displaynameExists(newInfo.getDisplayName())){ //Displayname doesnt exist
 				db.updateProfile(newInfo);
+				sessions.rename(newInfo.getUserId(), newInfo.getDisplayName());
+				leaderboard.rename(newInfo.getUserId(), newInfo.getDisplayName()); //Counts stay as the stats thread left them
 				profileUpdate = true;
 			} else if (oldInfo.getDisplayName().contentEquals(newInfo.getDisplayName())) { //User are not changing displayname
 				db.updateProfile(newInfo);
@@ -1643,9 +1793,7 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 			retMsg.setDisplayname(oldInfo.getDisplayName());
 		}
 
-		synchronized (messagesToSend){
-			messagesToSend.add(retMsg);
-		}
+		sendMessage(retMsg);
 	}
 
 	/**
@@ -1653,15 +1801,37 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	 * @param action UserWantsLeaderboard message from user
 	 */
 	private void UserWantsLeaderboard(UserWantsLeaderboard action) {
-		LeaderboardResponse retMsg = new LeaderboardResponse("LeaderboardResponse");
-		retMsg.setRecipientSessionId(action.getRecipientSessionId());
-		TopTenList toptenlist = db.getTopTenList();
-		retMsg.setToptenwins(toptenlist.getWonEntries());
-		retMsg.setToptenplays(toptenlist.getPlayedEntries());
+		Client c = sessions.getClient(action.getRecipientSessionId());
+		if (c == null) { //Not connected (anymore)
+			return;
+		}
 
-		synchronized (messagesToSend){
-			messagesToSend.add(retMsg);
+		//Same response for everyone, only made again when the leaderboard changes.
+		sendToClient(c, leaderboard.getResponse());
+	}
+
+	/**
+	 * When a user wants to see a ranking, either around a player or a page starting at a given place.
+	 * @param action UserWantsRanking message from user
+	 */
+	private void UserWantsRanking(UserWantsRanking action) {
+		UserInfo info = null;
+		if (action.getDisplayname() != null && !action.getDisplayname().isEmpty()) {
+			info = db.getUserInfoByDisplayName(action.getDisplayname());
 		}
+
+		int count = Math.max(0, Math.min(action.getCount(), RANKING_PAGE_SIZE));
+		RankingResponse retMsg = leaderboard.getRanking(action.getCategory(), info, action.getFrom(), count);
+		if (retMsg == null) {
+			System.out.println("Warning: " + action.getRecipientSessionId() + " asked for unknown ranking " + action.getCategory());
+			return;
+		}
+		if (info == null) { //Tell the user if the player was not found
+			retMsg.setDisplayname(action.getDisplayname());
+		}
+
+		retMsg.setRecipientSessionId(action.getRecipientSessionId());
+		sendMessage(retMsg);
 	}
 
 	/**
@@ -1674,7 +1844,7 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	private boolean securityCheck(String userid, String sessionid) {
 		System.out.println("Security check: " + userid + " " + sessionid);
 		String sessUserId = sessionIdToUserId(sessionid);
-		return (sessUserId.contentEquals(userid));
+		return (sessUserId != null && sessUserId.contentEquals(userid));
 	}
 
 	/**
@@ -1685,18 +1855,10 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	public void diceThrown(DiceEvent diceEvent) {
 		Ludo game = diceEvent.getLudoGame();
 
-		for (String name : game.getPlayers()){
-			Message retMsg = new DiceThrowResponse("DiceThrowResponse");
-
-			((DiceThrowResponse)retMsg).setGameid(game.getGameid());
-			((DiceThrowResponse)retMsg).setDicerolled(diceEvent.getDiceRolled());
-			UserInfo userInfo = db.getProfilebyDisplayName(name);
-			retMsg.setRecipientSessionId(useridToSessionId(userInfo.getUserId()));
-			synchronized (messagesToSend){
-				messagesToSend.add(retMsg);
-			}
-		}
-
+		DiceThrowResponse retMsg = new DiceThrowResponse("DiceThrowResponse");
+		retMsg.setGameid(game.getGameid());
+		retMsg.setDicerolled(diceEvent.getDiceRolled());
+		broadcast(retMsg, playerSessionIds(game.getPlayers()));
 
 	}
 
@@ -1707,21 +1869,13 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	@Override
 	public void pieceMoved(PieceEvent pieceEvent) {
 		Ludo game = pieceEvent.getLudoGame();
-		for (String name : game.getPlayers()){
-
-			PieceMovedResponse retMsg = new PieceMovedResponse("PieceMovedResponse");
-
-			retMsg.setGameid(game.getGameid());
-			retMsg.setMovedfrom(pieceEvent.getFrom());
-			retMsg.setMovedto(pieceEvent.getTo());
-			retMsg.setPiecemoved(pieceEvent.getPieceMoved());
-			retMsg.setPlayerid(pieceEvent.getPlayerID());
-			UserInfo userInfo = db.getProfilebyDisplayName(name);
-			retMsg.setRecipientSessionId(useridToSessionId(userInfo.getUserId()));
-			synchronized (messagesToSend){
-				messagesToSend.add(retMsg);
-			}
-		}
+		PieceMovedResponse retMsg = new PieceMovedResponse("PieceMovedResponse");
+		retMsg.setGameid(game.getGameid());
+		retMsg.setMovedfrom(pieceEvent.getFrom());
+		retMsg.setMovedto(pieceEvent.getTo());
+		retMsg.setPiecemoved(pieceEvent.getPieceMoved());
+		retMsg.setPlayerid(pieceEvent.getPlayerID());
+		broadcast(retMsg, playerSessionIds(game.getPlayers()));
 
 	}
 
@@ -1733,25 +1887,46 @@ public class Server implements DiceListener, PieceListener, PlayerListener {
 	public void playerStateChanged(PlayerEvent event) {
 		Ludo game = event.getLudo();
 		if(event.getPlayerEvent().contentEquals("Won")){
-			int playerid = 0; //Represents which player we are looping through. This works since ludo game id
-							  // Have the same order as player names.
-			for (String name : game.getActivePlayers()){
-				UserInfo info = db.getProfilebyDisplayName(name);
-				info.setGamesPlayed(info.getGamesPlayed() + 1);
-
-				//ONLY FOR WINNER.
-				if(playerid == event.getPlayerID()) {
-					info.setGamesWon(info.getGamesWon() + 1);
-				}
+			String[] players = game.getActivePlayers();
+			String winner = game.getPlayerName(event.getPlayerID());
+			statsExecutor.execute(() -> updateGameStats(players, winner));
+		}
+	}
 
-				try {
-					db.updateProfile(info);
-				} catch (SQLException e) {
-					e.printStackTrace();
+	/**
+	 * Counts a finished game for its players, in the db and on the leaderboard. Runs on the stats thread.
+	 * @param players display names of the players that were still in the game
+	 * @param winner display name of the winner
+	 */
+	private void updateGameStats(String[] players, String winner) {
+		ArrayList<UserInfo> infos = new ArrayList<>();
+		ArrayList<String> userIds = new ArrayList<>();
+		String winnerId = null;
+		for (String name : players) {
+			UserInfo info = name == null ? null : db.getUserInfoByDisplayName(name); //Players that left are null
+			if (info != null) {
+				infos.add(info);
+				userIds.add(info.getUserId());
+				if (name.equals(winner)) {
+					winnerId = info.getUserId();
 				}
+			}
+		}
+
+		try {
+			db.updateGameStats(userIds, winnerId);
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return;
+		}
 
-				playerid++;
+		//The profiles were read after the last update, and this is the only thread that updates the counts.
+		for (UserInfo info : infos) {
+			info.setGamesPlayed(info.getGamesPlayed() + 1);
+			if (info.getUserId().equals(winnerId)) {
+				info.setGamesWon(info.getGamesWon() + 1);
 			}
+			leaderboard.update(info);
 		}
 	}
 
@@ -0,0 +1,142 @@
+package no.ntnu.imt3281.ludo.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of which client belongs to which session, user and display name.
+ * <p>
+ *     All lookups are constant time and safe to use from any thread. The index is updated when a client
+ *     connects (gets a session id), logs in, changes display name and disconnects.
+ * </p>
+ */
+public class SessionIndex {
+    private final ConcurrentHashMap<String, Client> bySessionId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Client> byUserId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Client> byDisplayName = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the session id of a client that is logging in or registering.
+     * @param sessionId the session id the client sent
+     * @param client the client
+     */
+    public void connect(String sessionId, Client client) {
+        bySessionId.put(sessionId, client);
+    }
+
+    /**
+     * Marks the client with the given session as logged in.
+     * @param sessionId session id of the client
+     * @param userId the user that logged in
+     * @param displayName display name of the user
+     * @return false if the user is already logged in, or the session is unknown
+     */
+    public boolean login(String sessionId, String userId, String displayName) {
+        Client client = getClient(sessionId);
+        if (client == null || userId == null) {
+            return false;
+        }
+
+        if (byUserId.putIfAbsent(userId, client) != null) { //Someone is already logged in as this user.
+            return false;
+        }
+
+        client.setUserId(userId);
+        client.setUsername(displayName);
+        if (displayName != null) {
+            byDisplayName.put(displayName, client);
+        }
+        return true;
+    }
+
+    /**
+     * Updates the display name of a logged in user.
+     * @param userId the user
+     * @param newDisplayName the new display name
+     */
+    public void rename(String userId, String newDisplayName) {
+        Client client = getClientByUserId(userId);
+        if (client == null || newDisplayName == null) {
+            return;
+        }
+
+        String oldDisplayName = client.getUsername();
+        if (oldDisplayName != null) {
+            byDisplayName.remove(oldDisplayName, client);
+        }
+        client.setUsername(newDisplayName);
+        byDisplayName.put(newDisplayName, client);
+    }
+
+    /**
+     * Removes all entries of a client that has disconnected.
+     * @param client the client
+     */
+    public void disconnect(Client client) {
+        if (client.getUuid() != null) {
+            bySessionId.remove(client.getUuid(), client);
+        }
+        if (client.getUserId() != null) {
+            byUserId.remove(client.getUserId(), client);
+        }
+        if (client.getUsername() != null) {
+            byDisplayName.remove(client.getUsername(), client);
+        }
+    }
+
+    public Client getClient(String sessionId) {
+        return sessionId == null ? null : bySessionId.get(sessionId);
+    }
+
+    public Client getClientByUserId(String userId) {
+        return userId == null ? null : byUserId.get(userId);
+    }
+
+    /**
+     * Converts session id to user id.
+     * @param sessionId the session id
+     * @return user id of the session, null if the session is not logged in
+     */
+    public String getUserId(String sessionId) {
+        Client client = getClient(sessionId);
+        return client == null ? null : client.getUserId();
+    }
+
+    /**
+     * Converts user id to session id.
+     * @param userId the user id
+     * @return session id of the user, null if the user is not logged in
+     */
+    public String getSessionId(String userId) {
+        Client client = getClientByUserId(userId);
+        return client == null ? null : client.getUuid();
+    }
+
+    /**
+     * Converts display name to session id.
+     * @param displayName the display name
+     * @return session id of the user, null if the user is not logged in
+     */
+    public String getSessionIdByDisplayName(String displayName) {
+        Client client = displayName == null ? null : byDisplayName.get(displayName);
+        return client == null ? null : client.getUuid();
+    }
+
+    /**
+     * Gets the display name of a logged in user.
+     * @param userId the user id
+     * @return the display name, null if the user is not logged in
+     */
+    public String getDisplayName(String userId) {
+        Client client = getClientByUserId(userId);
+        return client == null ? null : client.getUsername();
+    }
+
+    /**
+     * Checks if a user is logged in.
+     * @param userId the user id
+     * @return true if a client is logged in as the user
+     */
+    public boolean isLoggedIn(String userId) {
+        return userId != null && byUserId.containsKey(userId);
+    }
+}
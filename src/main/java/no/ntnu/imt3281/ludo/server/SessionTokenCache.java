@@ -0,0 +1,104 @@
+package no.ntnu.imt3281.ludo.server;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recently used session tokens that are known to be valid, with the user each one belongs to.
+ * <p>
+ *     A user has at most one token, so a new token for a user replaces the old one. When the cache is full the
+ *     least recently used token is dropped, and is checked against the database next time. Safe to use from any
+ *     thread.
+ * </p>
+ * <p>
+ *     Like {@link UserInfoCache}, a token read from the database is only added if no token was invalidated
+ *     while it was read, so a token that was just replaced can not come back.
+ * </p>
+ */
+public class SessionTokenCache {
+    private final int capacity;
+    private final HashMap<String, String> tokenByUserId = new HashMap<>();
+    private final LinkedHashMap<String, String> userIdByToken;
+    private long invalidations = 0;
+
+    /**
+     * @param capacity max number of tokens to keep
+     */
+    public SessionTokenCache(int capacity) {
+        this.capacity = capacity;
+        this.userIdByToken = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > SessionTokenCache.this.capacity) {
+                    tokenByUserId.remove(eldest.getValue(), eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Finds the user a token belongs to.
+     * @param sessionId the session token
+     * @return the user id, null if the token is not cached
+     */
+    public synchronized String get(String sessionId) {
+        return userIdByToken.get(sessionId);
+    }
+
+    /**
+     * Must be taken before reading a token from the database that is to be added to the cache.
+     * @return the current stamp
+     */
+    public synchronized long stamp() {
+        return invalidations;
+    }
+
+    /**
+     * Adds a token read from the database.
+     * @param sessionId the session token
+     * @param userId the user it belongs to
+     * @param stamp the stamp taken before the token was read
+     */
+    public synchronized void put(String sessionId, String userId, long stamp) {
+        if (stamp != invalidations) { //A token changed while it was read, it might be old
+            return;
+        }
+        add(sessionId, userId);
+    }
+
+    /**
+     * Sets the token of a user, replacing any token the user had. Used right after the token is written.
+     * @param sessionId the new session token
+     * @param userId the user
+     */
+    public synchronized void replace(String sessionId, String userId) {
+        invalidations++;
+        add(sessionId, userId);
+    }
+
+    /**
+     * Removes the token of a user, so it is no longer valid.
+     * @param userId the user
+     */
+    public synchronized void invalidate(String userId) {
+        invalidations++;
+        String old = tokenByUserId.remove(userId);
+        if (old != null) {
+            userIdByToken.remove(old);
+        }
+    }
+
+    private void add(String sessionId, String userId) {
+        String old = tokenByUserId.put(userId, sessionId);
+        if (old != null) {
+            userIdByToken.remove(old);
+        }
+        String oldUserId = userIdByToken.put(sessionId, userId);
+        if (oldUserId != null && !oldUserId.equals(userId)) {
+            tokenByUserId.remove(oldUserId, sessionId);
+        }
+    }
+}
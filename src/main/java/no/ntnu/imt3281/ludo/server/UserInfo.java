@@ -4,6 +4,7 @@ public class UserInfo {
     private final String userId;
     private String displayName;
     private byte[] avatarImage;
+    private String avatarHash;      // key of the avatar in the avatar store, null if the user has no avatar
     private int gamesPlayed;
     private int gamesWon;
 
@@ -35,6 +36,14 @@ public class UserInfo {
         this.avatarImage = avatarImage;
     }
 
+    public String getAvatarHash() {
+        return avatarHash;
+    }
+
+    public void setAvatarHash(String avatarHash) {
+        this.avatarHash = avatarHash;
+    }
+
     public int getGamesPlayed() {
         return gamesPlayed;
     }
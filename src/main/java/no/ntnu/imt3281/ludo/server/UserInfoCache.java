@@ -0,0 +1,106 @@
+package no.ntnu.imt3281.ludo.server;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recently used profiles, without avatars, looked up by user id or display name.
+ * <p>
+ *     When the cache is full the least recently used profile is dropped. Profiles are handed out as copies,
+ *     so callers can change them freely. Safe to use from any thread.
+ * </p>
+ * <p>
+ *     A profile read from the database is only added if no profile was invalidated while it was read, see
+ *     {@link #stamp()}. Otherwise a slow read could put back a profile that was just changed.
+ * </p>
+ */
+public class UserInfoCache {
+    private final int capacity;
+    private final HashMap<String, String> userIdByDisplayName = new HashMap<>();
+    private final LinkedHashMap<String, UserInfo> byUserId;
+    private long invalidations = 0;
+
+    /**
+     * @param capacity max number of profiles to keep
+     */
+    public UserInfoCache(int capacity) {
+        this.capacity = capacity;
+        this.byUserId = new LinkedHashMap<String, UserInfo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, UserInfo> eldest) {
+                if (size() > UserInfoCache.this.capacity) {
+                    userIdByDisplayName.remove(eldest.getValue().getDisplayName(), eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Finds a profile by user id.
+     * @param userId the user id
+     * @return a copy of the profile, null if it is not cached
+     */
+    public synchronized UserInfo get(String userId) {
+        return copy(byUserId.get(userId));
+    }
+
+    /**
+     * Finds a profile by display name.
+     * @param displayName the display name
+     * @return a copy of the profile, null if it is not cached
+     */
+    public synchronized UserInfo getByDisplayName(String displayName) {
+        String userId = userIdByDisplayName.get(displayName);
+        return userId == null ? null : copy(byUserId.get(userId));
+    }
+
+    /**
+     * Must be taken before reading a profile from the database that is to be added to the cache.
+     * @return the current stamp
+     */
+    public synchronized long stamp() {
+        return invalidations;
+    }
+
+    /**
+     * Adds a profile read from the database. The avatar is not kept.
+     * @param info the profile
+     * @param stamp the stamp taken before the profile was read
+     */
+    public synchronized void put(UserInfo info, long stamp) {
+        if (stamp != invalidations) { //Something changed while it was read, it might be old
+            return;
+        }
+        remove(info.getUserId());
+        byUserId.put(info.getUserId(), copy(info));
+        userIdByDisplayName.put(info.getDisplayName(), info.getUserId());
+    }
+
+    /**
+     * Removes a profile that has changed, so it is read from the database next time.
+     * @param userId user id of the profile
+     */
+    public synchronized void invalidate(String userId) {
+        invalidations++;
+        remove(userId);
+    }
+
+    private void remove(String userId) {
+        UserInfo old = byUserId.remove(userId);
+        if (old != null) {
+            userIdByDisplayName.remove(old.getDisplayName(), userId);
+        }
+    }
+
+    private static UserInfo copy(UserInfo info) {
+        if (info == null) {
+            return null;
+        }
+        UserInfo copy = new UserInfo(info.getUserId(), info.getDisplayName(), null, info.getGamesPlayed(), info.getGamesWon());
+        copy.setAvatarHash(info.getAvatarHash());
+        return copy;
+    }
+}
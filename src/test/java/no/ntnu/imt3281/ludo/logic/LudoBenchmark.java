@@ -0,0 +1,64 @@
+package no.ntnu.imt3281.ludo.logic;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolls and moves per second on one core, with the bytes allocated per operation (gc.alloc.rate.norm).
+ * Four players play until someone wins, then a new game starts. Every roll that gives a legal move is
+ * followed by the first legal move.
+ * Run with the main method, after mvn test-compile.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+@State(Scope.Thread)
+public class LudoBenchmark {
+    private final int[] moves = new int[Ludo.MAX_MOVES * 2];
+    private Ludo game;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        game = new Ludo("Player1", "Player2", "Player3", "Player4");
+    }
+
+    /**
+     * One roll, with the turn handling that follows it.
+     */
+    @Benchmark
+    public int roll() {
+        if (game.getWinner() != -1) {
+            setUp();
+        }
+        return game.throwDice();
+    }
+
+    /**
+     * One roll, and one move if the roll allows any.
+     */
+    @Benchmark
+    public boolean rollAndMove() {
+        if (game.getWinner() != -1) {
+            setUp();
+        }
+        game.throwDice();
+        return game.legalMoves(moves) > 0 && game.movePiece(game.activePlayer(), moves[0], moves[1]);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(LudoBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -4,7 +4,9 @@
 package no.ntnu.imt3281.ludo.logic;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 
@@ -449,6 +451,99 @@ public class LudoTest {
 		assertEquals(5, ludo.getPosition(Ludo.BLUE, 0));
 	}
 
+	/**
+	 * legalMoves gives the moves the active player can make with the dice that was rolled,
+	 * and these are exactly the moves movePiece accepts.
+	 */
+	@Test
+	public void legalMoves() {
+		Ludo ludo = new Ludo("Player1", "Player2", null, null);
+		int[] moves = new int[Ludo.MAX_MOVES * 2];
+
+		ludo.throwDice(3); // All pieces at home, nothing can move
+		assertEquals(0, ludo.legalMoves(moves));
+		assertFalse(ludo.movePiece(Ludo.RED, 0, 3));
+
+		ludo.throwDice(6); // All pieces at home can go out, but they are on the same position
+		assertEquals(1, ludo.legalMoves(moves));
+		assertEquals(0, moves[0]);
+		assertEquals(1, moves[1]);
+		assertFalse(ludo.movePiece(Ludo.BLUE, 0, 1)); // Not blue's turn
+		assertEquals(0, ludo.getPosition(Ludo.BLUE, 0));
+		assertTrue(ludo.movePiece(Ludo.RED, moves[0], moves[1]));
+		skipPlayer(ludo);
+
+		ludo.throwDice(6); // One piece in play, and one more can go out
+		assertEquals(2, ludo.legalMoves(moves));
+		assertEquals(1, moves[0]);
+		assertEquals(7, moves[1]);
+		assertEquals(0, moves[2]);
+		assertEquals(1, moves[3]);
+		assertFalse(ludo.movePiece(Ludo.RED, 1, 8)); // Not what the dice says
+		assertTrue(ludo.movePiece(Ludo.RED, 1, 7));
+
+		ludo.throwDice(4); // Only the piece in play can move
+		assertEquals(1, ludo.legalMoves(moves));
+		assertEquals(7, moves[0]);
+		assertEquals(11, moves[1]);
+		assertTrue(ludo.movePiece(Ludo.RED, 7, 11));
+
+		skipPlayer(ludo); // Red gets the turn back, but has not thrown the dice yet
+		assertEquals(Ludo.RED, ludo.activePlayer());
+		assertEquals(0, ludo.legalMoves(moves));
+	}
+
+	/**
+	 * Games with the same seed are the same, and a game can be replayed from the
+	 * throws its dice listener saw.
+	 */
+	@Test
+	public void diceSource() {
+		int[] recorded = new int[10000];
+		int[] count = new int[1];
+		Ludo original = new Ludo("Player1", "Player2", "Player3", "Player4");
+		original.setDiceSource(DiceSource.seeded(3281));
+		original.addDiceListener(event -> recorded[count[0]++] = event.getDiceRolled());
+		playUntilWinner(original);
+
+		Ludo sameSeed = new Ludo("Player1", "Player2", "Player3", "Player4");
+		sameSeed.setDiceSource(DiceSource.seeded(3281));
+		playUntilWinner(sameSeed);
+
+		Ludo replayed = new Ludo("Player1", "Player2", "Player3", "Player4");
+		replayed.setDiceSource(DiceSource.recorded(Arrays.copyOf(recorded, count[0])));
+		playUntilWinner(replayed);
+
+		assertTrue(original.getWinner() != -1);
+		for (Ludo other : new Ludo[] { sameSeed, replayed }) {
+			assertEquals(original.getWinner(), other.getWinner());
+			for (int player = 0; player < 4; player++) {
+				for (int piece = 0; piece < 4; piece++) {
+					assertEquals(original.getPosition(player, piece), other.getPosition(player, piece));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Throws the dice and makes the first legal move until someone wins. Fails if
+	 * there is no winner after 100000 throws, as the game is then stuck.
+	 *
+	 * @param ludo the object holding this game
+	 */
+	private void playUntilWinner(Ludo ludo) {
+		int[] moves = new int[Ludo.MAX_MOVES * 2];
+		for (int throwsMade = 0; ludo.getWinner() == -1; throwsMade++) {
+			if (throwsMade == 100000) {
+				fail("No winner after " + throwsMade + " throws");
+			}
+			ludo.throwDice();
+			if (ludo.legalMoves(moves) > 0) {
+				ludo.movePiece(ludo.activePlayer(), moves[0], moves[1]);
+			}
+		}
+	}
+
 	/**
 	 * Use to throw three ones for a player, i.e. if this player has all the pieces
 	 * in home position it will effectively skip this player.
@@ -0,0 +1,47 @@
+package no.ntnu.imt3281.ludo.logic;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SimulatorTest {
+	private static final Simulator.Policy[] RANDOM = { Simulator.Policy.RANDOM, Simulator.Policy.RANDOM,
+			Simulator.Policy.RANDOM, Simulator.Policy.RANDOM };
+
+	/**
+	 * Plays a few thousand games, which stops with an exception if the rules are
+	 * broken, and checks that every game got a winner.
+	 */
+	@Test
+	public void playsGamesToTheEnd() {
+		Simulator.Result result = new Simulator(RANDOM, 3281).run(5000);
+
+		assertEquals(5000, result.getGames());
+		long wins = 0;
+		for (int seat = 0; seat < 4; seat++) {
+			wins += result.getWins(seat);
+		}
+		assertEquals(5000, wins);
+	}
+
+	/**
+	 * A game is decided by the seed and its number, not by the thread it is played on.
+	 */
+	@Test
+	public void sameSeedSameGames() {
+		Simulator.Policy[] seats = { Simulator.Policy.GREEDY, Simulator.Policy.RANDOM, Simulator.Policy.GREEDY,
+				Simulator.Policy.RANDOM };
+		Simulator.Result first = new Simulator(seats, 42).run(2000);
+		Simulator.Result second = new Simulator(seats, 42).run(2000);
+
+		assertEquals(first.getThrows(), second.getThrows());
+		assertEquals(first.getTurns(), second.getTurns());
+		for (int seat = 0; seat < 4; seat++) {
+			assertEquals(first.getWins(seat), second.getWins(seat));
+		}
+
+		Simulator.Result one = new Simulator(seats, 42).play(7);
+		Simulator.Result again = new Simulator(seats, 42).play(7);
+		assertEquals(one.getThrows(), again.getThrows());
+	}
+}
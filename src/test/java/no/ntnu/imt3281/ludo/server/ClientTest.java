@@ -0,0 +1,278 @@
+package no.ntnu.imt3281.ludo.server;
+
+import no.ntnu.imt3281.ludo.logic.messages.ClientLogin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClientTest {
+    private ServerSocketChannel listener;
+    private SocketChannel peer;         // the other end, where the test writes what the client sends
+    private Client client;
+    private Selector selector;
+
+    @Before
+    public void connect() throws IOException {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        peer = SocketChannel.open(listener.getLocalAddress());
+        client = new Client(listener.accept());
+        selector = Selector.open();
+        client.getChannel().register(selector, SelectionKey.OP_READ);
+    }
+
+    @After
+    public void disconnect() throws IOException {
+        selector.close();
+        client.close();
+        peer.close();
+        listener.close();
+    }
+
+    /**
+     * Sends bytes from the peer and reads what has arrived, the way the selector thread does.
+     */
+    private ArrayList<Client.Frame> send(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            peer.write(buffer);
+        }
+        return readReady();
+    }
+
+    private ArrayList<Client.Frame> readReady() throws IOException {
+        if (selector.select(5000) == 0) {
+            fail("Nothing arrived");
+        }
+        selector.selectedKeys().clear();
+        return client.read();
+    }
+
+    private static byte[] text(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] binary(byte[] payload) {
+        return ByteBuffer.allocate(4 + payload.length).putInt(payload.length).put(payload).array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer all = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            all.put(part);
+        }
+        return all.array();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void readsJsonLines() throws IOException {
+        ArrayList<Client.Frame> frames = send(text("{\"action\":\"a\"}\n{\"action\":\"b\"}\r\n"));
+
+        assertEquals(2, frames.size());
+        assertFalse(frames.get(0).isBinary());
+        assertEquals("{\"action\":\"a\"}", frames.get(0).getText());
+        assertEquals("{\"action\":\"b\"}", frames.get(1).getText());     // \r is dropped
+    }
+
+    @Test
+    public void jsonLineSplitAcrossReads() throws IOException {
+        assertTrue(send(text("{\"action\":")).isEmpty());
+        assertTrue(send(text("\"UserDoesLogin")).isEmpty());
+        ArrayList<Client.Frame> frames = send(text("Manual\"}\n{\"act"));
+
+        assertEquals(1, frames.size());
+        assertEquals("{\"action\":\"UserDoesLoginManual\"}", frames.get(0).getText());
+
+        frames = send(text("ion\":\"x\"}\n"));
+        assertEquals(1, frames.size());
+        assertEquals("{\"action\":\"x\"}", frames.get(0).getText());
+    }
+
+    @Test
+    public void binaryFrameSplitAcrossReads() throws IOException {
+        byte[] payload = { 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+        byte[] frame = binary(payload);
+
+        // Split inside the length prefix, then inside the data
+        assertTrue(send(new byte[]{ frame[0] }).isEmpty());
+        assertTrue(send(new byte[]{ frame[1], frame[2] }).isEmpty());
+        assertTrue(send(new byte[]{ frame[3], frame[4], frame[5] }).isEmpty());
+        ArrayList<Client.Frame> frames = send(Arrays.copyOfRange(frame, 6, frame.length));
+
+        assertEquals(1, frames.size());
+        assertTrue(frames.get(0).isBinary());
+        assertArrayEquals(payload, frames.get(0).getBinary());
+    }
+
+    @Test
+    public void jsonAndBinaryInOneBuffer() throws IOException {
+        byte[] payload = text("not json, only bytes\n");
+        ArrayList<Client.Frame> frames = send(concat(text("{\"action\":\"a\"}\n"), binary(payload),
+                text("{\"action\":\"b\"}\n"), binary(new byte[]{ 42 })));
+
+        assertEquals(4, frames.size());
+        assertEquals("{\"action\":\"a\"}", frames.get(0).getText());
+        assertArrayEquals(payload, frames.get(1).getBinary());      // the newline in the data does not end it
+        assertEquals("{\"action\":\"b\"}", frames.get(2).getText());
+        assertArrayEquals(new byte[]{ 42 }, frames.get(3).getBinary());
+    }
+
+    @Test
+    public void messageLargerThanReadBuffer() throws IOException {
+        byte[] payload = new byte[100000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        ByteBuffer frame = ByteBuffer.wrap(binary(payload));
+        while (frame.hasRemaining()) {
+            peer.write(frame);
+        }
+
+        ArrayList<Client.Frame> frames = new ArrayList<>();
+        while (frames.isEmpty()) {
+            frames.addAll(readReady());
+        }
+        assertEquals(1, frames.size());
+        assertArrayEquals(payload, frames.get(0).getBinary());
+    }
+
+    @Test
+    public void zeroLengthFrameIsSkipped() throws IOException {
+        ArrayList<Client.Frame> frames = send(concat(binary(new byte[0]), binary(new byte[0]),
+                text("{\"action\":\"a\"}\n"), binary(new byte[0]), binary(new byte[]{ 42 })));
+
+        // An empty frame holds no message, and the frames after it are read as usual
+        assertEquals(2, frames.size());
+        assertEquals("{\"action\":\"a\"}", frames.get(0).getText());
+        assertArrayEquals(new byte[]{ 42 }, frames.get(1).getBinary());
+    }
+
+    @Test
+    public void largestFrameLengthIsAccepted() throws IOException {
+        // A length prefix starts with 0, so MAX_FRAME_SIZE is the largest length that can be sent
+        byte[] prefix = ByteBuffer.allocate(4).putInt(MessageCodec.MAX_FRAME_SIZE).array();
+        assertEquals(0, prefix[0]);
+        assertTrue(send(prefix).isEmpty());
+    }
+
+    @Test
+    public void oversizeJsonLineIsRefused() throws IOException {
+        byte[] chunk = new byte[1 << 16];
+        Arrays.fill(chunk, (byte) 'x');
+        // Written from another thread, as the socket fills up long before the line ends
+        Thread writer = new Thread(() -> {
+            try {
+                for (int written = 0; written <= MessageCodec.MAX_FRAME_SIZE; written += chunk.length) {
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                    while (buffer.hasRemaining()) {
+                        peer.write(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                // The client closed the connection
+            }
+        });
+        writer.start();
+
+        try {
+            while (true) {
+                assertTrue(readReady().isEmpty());
+            }
+        } catch (EOFException e) {
+            fail("Connection closed before the line was refused");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("exceeds"));
+        } finally {
+            client.close();
+            peer.close();
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void closedConnection() throws IOException {
+        send(text("{\"action\":\"a\"}"));
+        peer.shutdownOutput();
+        readReady();
+    }
+
+    @Test
+    public void outboundFrameGivesEachClientItsOwnBuffer() {
+        OutboundFrame frame = new OutboundFrame(new ClientLogin("UserDoesLoginManual", "Boby", "Dog123"));
+
+        ByteBuffer first = frame.json();
+        ByteBuffer second = frame.json();
+        String json = StandardCharsets.UTF_8.decode(first).toString();
+        assertTrue(json.endsWith("\n"));
+        assertTrue(json.contains("\"UserDoesLoginManual\""));
+        assertFalse(first.hasRemaining());
+        assertEquals(json.length(), second.remaining());           // reading one does not use up the other
+
+        ByteBuffer cbor = frame.cbor();
+        assertEquals(cbor.remaining() - 4, cbor.getInt(0));
+        assertEquals(cbor, frame.cbor());
+        assertEquals("UserDoesLoginManual", frame.getAction());
+    }
+
+    @Test
+    public void outboundFrameIsReadBack() throws IOException {
+        ClientLogin message = new ClientLogin("UserDoesLoginManual", "Boby", "Dog123");
+        OutboundFrame frame = new OutboundFrame(message);
+
+        ArrayList<Client.Frame> frames = send(concat(bytes(frame.json()), bytes(frame.cbor())));
+
+        assertEquals(2, frames.size());
+        assertEquals(MessageCodec.encode(message), frames.get(0).getText());
+        assertArrayEquals(MessageCodec.encodeCbor(message), frames.get(1).getBinary());
+    }
+
+    @Test
+    public void sendsJsonUntilSwitchedToBinary() throws IOException {
+        OutboundFrame before = new OutboundFrame(new ClientLogin("UserDoesLoginManual", "Boby", "Dog123"));
+        OutboundFrame answer = new OutboundFrame(new ClientLogin("UserDoesLoginAuto", "", ""));
+        OutboundFrame after = new OutboundFrame(new ClientLogin("UserDoesLoginManual", "Anna", "Cat456"));
+
+        assertTrue(client.queue(before));
+        assertTrue(client.switchToBinary(answer));
+        assertTrue(client.isBinary());
+        assertTrue(client.queue(after));
+        assertTrue(client.requestWrite());
+        assertFalse(client.requestWrite());                         // already asked for
+        assertTrue(client.flush());
+
+        byte[] expected = concat(bytes(before.json()), bytes(answer.json()), bytes(after.cbor()));
+        ByteBuffer received = ByteBuffer.allocate(expected.length);
+        while (received.hasRemaining()) {
+            peer.read(received);
+        }
+        assertArrayEquals(expected, received.array());
+    }
+}
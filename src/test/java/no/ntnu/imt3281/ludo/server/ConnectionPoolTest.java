@@ -0,0 +1,117 @@
+package no.ntnu.imt3281.ludo.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest {
+    private static final String URL = "jdbc:derby:memory:connectionPoolTest;create=true";
+
+    private final ExecutorService waiter = Executors.newSingleThreadExecutor();
+    private ConnectionPool pool;
+
+    @Before
+    public void openPool() throws SQLException {
+        pool = new ConnectionPool(URL, 1);
+    }
+
+    @After
+    public void closePool() {
+        pool.close();
+        waiter.shutdownNow();
+    }
+
+    private static int selectOne(ConnectionPool.PooledConnection connection) throws SQLException {
+        try (ResultSet rs = connection.prepare("VALUES 1").executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    /**
+     * Starts a thread that waits for a connection, and checks that it is still waiting.
+     */
+    private Future<Integer> waitForConnection() throws Exception {
+        Future<Integer> result = waiter.submit(() -> {
+            try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+                return selectOne(connection);
+            }
+        });
+        try {
+            result.get(200, TimeUnit.MILLISECONDS);
+            fail("Got a connection while the only one was in use");
+        } catch (TimeoutException e) {
+            // Waiting, as it should
+        }
+        return result;
+    }
+
+    @Test
+    public void reusesReturnedConnection() throws SQLException {
+        ConnectionPool.PooledConnection first = pool.acquire();
+        assertEquals(1, selectOne(first));
+        first.close();
+
+        ConnectionPool.PooledConnection second = pool.acquire();
+        assertSame(first, second);
+        assertSame(second.prepare("VALUES 1"), second.prepare("VALUES 1"));
+        second.close();
+    }
+
+    @Test
+    public void waiterGetsReturnedConnection() throws Exception {
+        ConnectionPool.PooledConnection connection = pool.acquire();
+        Future<Integer> result = waitForConnection();
+
+        connection.close();
+        assertEquals(1, (int) result.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void waiterGetsNewConnectionWhenReturnedOneIsBroken() throws Exception {
+        ConnectionPool.PooledConnection connection = pool.acquire();
+        Future<Integer> result = waitForConnection();
+
+        connection.getConnection().close();     // Lost, like after a database restart
+        connection.close();
+        assertEquals(1, (int) result.get(5, TimeUnit.SECONDS));
+
+        try (ConnectionPool.PooledConnection next = pool.acquire()) {
+            assertNotSame(connection, next);
+            assertFalse(next.getConnection().isClosed());
+        }
+    }
+
+    @Test
+    public void closeWakesWaiters() throws Exception {
+        ConnectionPool.PooledConnection connection = pool.acquire();
+        Future<Integer> result = waitForConnection();
+
+        pool.close();
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("Got a connection from a closed pool");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+
+        connection.close();
+        assertTrue(connection.getConnection().isClosed());    // Returned after the pool was closed
+    }
+}
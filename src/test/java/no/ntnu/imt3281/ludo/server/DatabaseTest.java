@@ -134,13 +134,14 @@ public class DatabaseTest {
             assertFalse(true);
         }
 
-        // check if tables have all the required columns and only has 4 columns
+        // check if tables have all the required columns and only has 5 columns
         try {
             assertEquals("CHAT_NAME", resultSet.getMetaData().getColumnName(1));
             assertEquals("USER_ID", resultSet.getMetaData().getColumnName(2));
             assertEquals("CHAT_MESSAGE", resultSet.getMetaData().getColumnName(3));
             assertEquals("TIMESTAMP", resultSet.getMetaData().getColumnName(4));
-            assertEquals(4, resultSet.getMetaData().getColumnCount());
+            assertEquals("ID", resultSet.getMetaData().getColumnName(5));
+            assertEquals(5, resultSet.getMetaData().getColumnCount());
         } catch (SQLException ex) {
             assertFalse(true);
         }
@@ -195,6 +196,9 @@ public class DatabaseTest {
                 user2display = rs.getString("account_name");
                 user2Salt = rs.getBytes("account_salt");
             }
+            // close them, an open ResultSet keeps the tables from being dropped after the test
+            rs.close();
+            state.close();
 
             // get the profile information
             UserInfo user1 = testDatabase.getProfile(user1Id);
@@ -214,6 +218,11 @@ public class DatabaseTest {
             // update data for both users in database
             testDatabase.updateProfile(user1);
             testDatabase.updateProfile(user2);
+            // updateProfile leaves the game counts alone, so set them directly
+            state = testConnection.createStatement();
+            state.executeUpdate("UPDATE user_info SET games_played = 10, games_won = 3 WHERE user_id = '" + user1Id + "'");
+            state.executeUpdate("UPDATE user_info SET games_played = 6, games_won = 6 WHERE user_id = '" + user2Id + "'");
+            state.close();
 
             // set the user's session tokens
             user1Session = UUID.randomUUID().toString();
@@ -352,6 +361,60 @@ public class DatabaseTest {
         }
     }
 
+    /**
+     * Tests if logging in gives the profile of the right user, and nothing when the login is wrong
+     */
+    @Test
+    public void loginTest(){
+        // insert two users
+        insertTwoAccounts();
+
+        try{
+            UserInfo user1 = testDatabase.login("Boby", "BobysFavoriteDog123");
+            assertNotNull(user1);
+            assertEquals(user1Id, user1.getUserId());
+            assertEquals("Boby", user1.getDisplayName());
+            assertEquals(10, user1.getGamesPlayed());
+
+            // wrong username or password
+            assertNull(testDatabase.login("Boby1", "BobysFavoriteDog123"));
+            assertNull(testDatabase.login("Samy", "BobysFavoriteDog123"));
+        } catch(SQLException ex){
+            ex.printStackTrace();
+            assertTrue(false);
+        }
+    }
+
+    /**
+     * Tests if a new session token replaces the old one, both in the database and for logging in
+     */
+    @Test
+    public void replaceSessionTokenTest(){
+        // insert two users (and their session tokens)
+        insertTwoAccounts();
+
+        try{
+            assertEquals(user1Id, testDatabase.loginBySession(user1Session).getUserId());
+
+            String newSession = UUID.randomUUID().toString();
+            testDatabase.replaceSessionToken(newSession, user1Id);
+
+            assertEquals(user1Id, testDatabase.loginBySession(newSession).getUserId());
+            assertNull(testDatabase.loginBySession(user1Session));
+            assertEquals(1, testDatabase.countSessionToken(user1Id));
+
+            // the other user keeps their token
+            assertEquals(user2Id, testDatabase.loginBySession(user2Session).getUserId());
+
+            // a terminated token can not be used
+            testDatabase.terminateSessionToken(user1Id);
+            assertNull(testDatabase.loginBySession(newSession));
+        } catch(SQLException ex){
+            ex.printStackTrace();
+            assertTrue(false);
+        }
+    }
+
     /**
      * Tests if we can correctly authenticate users by their sessionTokens
      */
@@ -552,7 +615,7 @@ public class DatabaseTest {
             while (rs.next()) {
                 assertEquals(user1Id, rs.getString("user_id"));
                 assertEquals("Boby", rs.getString("display_name"));
-                assertEquals("736f6d65496d6167652e706e67", rs.getString("avatar_path"));
+                assertEquals("8fe17257e2a505d87564b11bdfb9dde06ece72f9f0c771b3ebae84031288aa30", rs.getString("avatar_path"));  // SHA-256 of the image
                 assertEquals(10, rs.getInt("games_played"));
                 assertEquals(3, rs.getInt("games_won"));
             }
@@ -564,7 +627,7 @@ public class DatabaseTest {
             while (rs.next()) {
                 assertEquals(user2Id, rs.getString("user_id"));
                 assertEquals("Samy", rs.getString("display_name"));
-                assertEquals("736f6d654f74686572496d6167652e706e67", rs.getString("avatar_path"));
+                assertEquals("0f637e81725703fe2098610619989a8f02ee907c7e99731f257ccb368f7823c1", rs.getString("avatar_path"));  // SHA-256 of the image
                 assertEquals(6, rs.getInt("games_played"));
                 assertEquals(6, rs.getInt("games_won"));
             }
@@ -601,6 +664,36 @@ public class DatabaseTest {
         assertEquals(6, user2.getGamesWon());
     }
 
+    /**
+     * Test if a finished game is counted for all its players, and only the winner gets a win
+     */
+    @Test
+    public void updateGameStatsTest(){
+        // insert two users
+        insertTwoAccounts();
+
+        // Samy wins a game against Boby
+        try{
+            ArrayList<String> players = new ArrayList<>();
+            players.add(user1Id);
+            players.add(user2Id);
+            testDatabase.updateGameStats(players, user2Id);
+        } catch(SQLException ex){
+            ex.printStackTrace();
+            assertTrue(false);
+        }
+
+        // both played one more game, the avatar is unchanged
+        UserInfo user1 = testDatabase.getProfile(user1Id);
+        assertEquals(11, user1.getGamesPlayed());
+        assertEquals(3, user1.getGamesWon());
+        assertEquals("someImage.png", new String(user1.getAvatarImage()));
+
+        UserInfo user2 = testDatabase.getProfile(user2Id);
+        assertEquals(7, user2.getGamesPlayed());
+        assertEquals(7, user2.getGamesWon());
+    }
+
     /**
      * Test if we can update one of the two users in the database
      */
@@ -623,13 +716,33 @@ public class DatabaseTest {
             assertTrue(false);
         }
 
-        // get the new data and compare
+        // get the new data and compare, games played and won are only changed by updateGameStats
         user2 = testDatabase.getProfile(user2Id);
         assertEquals(user2Id, user2.getUserId());
         assertEquals("Fredy", user2.getDisplayName());
         assertEquals("someOtherImage.png", new String(user2.getAvatarImage()));
-        assertEquals(200, user2.getGamesPlayed());
-        assertEquals(100, user2.getGamesWon());
+        assertEquals(6, user2.getGamesPlayed());
+        assertEquals(6, user2.getGamesWon());
+    }
+
+    /**
+     * Test if updating a user without an avatar image keeps the avatar they have
+     */
+    @Test
+    public void updateProfileWithoutImageTest(){
+        insertTwoAccounts();
+
+        // like an edit of the display name from the profile page, which does not send the image
+        try{
+            testDatabase.updateProfile(new UserInfo(user2Id, "Fredy", null, 0, 0));
+        } catch(SQLException ex){
+            ex.printStackTrace();
+            assertTrue(false);
+        }
+
+        UserInfo user2 = testDatabase.getProfile(user2Id);
+        assertEquals("Fredy", user2.getDisplayName());
+        assertEquals("someOtherImage.png", new String(user2.getAvatarImage()));
     }
 
     /**
@@ -807,6 +920,96 @@ public class DatabaseTest {
         assertEquals("Ye, this game deserves an 'A'!", chatMessages.get(0).getChatMessage());
     }
 
+    /**
+     * Test to see if queued chat messages are in the chat log after it is flushed
+     */
+    @Test
+    public void queueChatMessageTest() {
+        insertTwoAccounts();
+        insertTwoChatRooms();
+
+        ChatMessage queued = testDatabase.queueChatMessage("Testroom", user1Id, "Queued");
+        ChatMessage alsoQueued = testDatabase.queueChatMessage("Testroom2", user2Id, "Also queued");
+        assertEquals(user1display, queued.getdisplayName());
+        assertTrue(alsoQueued.getId() > queued.getId());
+        testDatabase.flushChatLog();
+
+        ArrayList<ChatMessage> chatMessages = testDatabase.getChatMessages("Testroom");
+        assertEquals(1, chatMessages.size());
+        assertEquals(user1display, chatMessages.get(0).getdisplayName());
+        assertEquals("Queued", chatMessages.get(0).getChatMessage());
+        assertEquals(queued.getTimeSent(), chatMessages.get(0).getTimeSent());
+        assertEquals(queued.getId(), chatMessages.get(0).getId());
+
+        assertEquals(1, testDatabase.getChatMessages("Testroom2").size());
+    }
+
+    /**
+     * Test to see if we can get the chat log of a chat room one page at a time
+     */
+    @Test
+    public void getChatMessagesPageTest() {
+        insertTwoAccounts();
+        insertTwoChatRooms();
+        insertTwoMessages();
+
+        try {
+            testDatabase.insertChatMessage("Testroom", user2Id, "First!");
+            testDatabase.insertChatMessage("Testroom", user1Id, "Second");
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+            assertTrue(false);
+        }
+
+        // the latest page has the whole log, oldest first
+        ArrayList<ChatMessage> page = testDatabase.getChatMessages("Testroom", Long.MAX_VALUE, Long.MAX_VALUE, 50);
+        ArrayList<ChatMessage> all = testDatabase.getChatMessages("Testroom");
+        assertEquals(3, page.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(all.get(i).getId(), page.get(i).getId());
+        }
+
+        // a page has at most the number of messages asked for, and the next page starts right before it
+        page = testDatabase.getChatMessages("Testroom", Long.MAX_VALUE, Long.MAX_VALUE, 1);
+        assertEquals(1, page.size());
+        assertEquals(all.get(2).getId(), page.get(0).getId());
+        page = testDatabase.getChatMessages("Testroom", page.get(0).getTimeSent(), page.get(0).getId(), 1);
+        assertEquals(1, page.size());
+        assertEquals(all.get(1).getId(), page.get(0).getId());
+
+        // there is nothing before the oldest message
+        assertTrue(testDatabase.getChatMessages("Testroom", all.get(0).getTimeSent(), all.get(0).getId(), 50).isEmpty());
+    }
+
+    /**
+     * Test to see if paging through many messages sent in the same second gets each of them once, in order
+     */
+    @Test
+    public void getChatMessagesPageSameSecondTest() {
+        insertTwoAccounts();
+        insertTwoChatRooms();
+
+        ArrayList<Long> sent = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            sent.add(testDatabase.queueChatMessage("Testroom", user1Id, "Message " + i).getId());
+        }
+        testDatabase.flushChatLog();
+
+        ArrayList<Long> read = new ArrayList<>();
+        long before = Long.MAX_VALUE;
+        long beforeId = Long.MAX_VALUE;
+        ArrayList<ChatMessage> page;
+        while (!(page = testDatabase.getChatMessages("Testroom", before, beforeId, 10)).isEmpty()) {
+            assertTrue(page.size() <= 10);
+            for (int i = page.size() - 1; i >= 0; i--) {
+                read.add(0, page.get(i).getId());
+            }
+            before = page.get(0).getTimeSent();
+            beforeId = page.get(0).getId();
+        }
+        assertEquals(sent, read);
+    }
+
     /**
      * Test to see if we can get the top 10 entries of the playerbase
      */
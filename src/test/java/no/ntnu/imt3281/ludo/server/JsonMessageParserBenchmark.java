@@ -0,0 +1,119 @@
+package no.ntnu.imt3281.ludo.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.ntnu.imt3281.ludo.logic.messages.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the streaming JsonMessageParser with the tree based parser it replaced.
+ * Run with the main method, after mvn test-compile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonMessageParserBenchmark {
+    private static final String SESSION = "348b2331-14f4-419f-99b1-ad492e8906fa";
+
+    @Param({
+            "{\"action\":\"UserDoesPieceMove\",\"gameid\":\"f558dd10-5038-4336-ac7b-af274ea76f4c\",\"playerid\":1,\"piecemoved\":2,\"movedfrom\":0,\"movedto\":1}",
+            "{\"action\":\"UserSentMessage\",\"userid\":\"19f548fd-9e55-4678-ac87-0bf98a6ce15e\",\"chatroomname\":\"Global\",\"chatmessage\":\"Hei, er det noen som vil spille?\"}",
+            "{\"action\":\"UserWantsToCreateGame\",\"hostid\":\"19f548fd-9e55-4678-ac87-0bf98a6ce15e\",\"toinvitedisplaynames\":[\"test2\",\"test3\",\"test4\"]}"
+    })
+    public String json;
+
+    private JsonMessageParser streaming;
+    private TreeJsonMessageParser tree;
+    private PrintStream stdout;
+
+    @Setup
+    public void setUp() {
+        streaming = new JsonMessageParser();
+        tree = new TreeJsonMessageParser();
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));   // Both parsers log every message
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public Message streamingParser() {
+        return streaming.parseJson(json, SESSION);
+    }
+
+    @Benchmark
+    public Message treeParser() {
+        return tree.parseJson(json, SESSION);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(JsonMessageParserBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    /**
+     * The parser as it was before it was made streaming, for the message types used in the benchmark.
+     * Reads the json into a tree and looks up the fields in it.
+     */
+    static class TreeJsonMessageParser {
+        ObjectMapper mapper = new ObjectMapper();
+
+        Message parseJson(String json, String sessionid) {
+            Message msg = null;
+            try {
+                JsonNode action = mapper.readTree(json);
+                System.out.println("PARSING THIS NOW: " + action.get("action").asText());
+
+                switch (action.get("action").asText()) {
+                    case "UserSentMessage": {
+                        msg = new UserSentMessage(action.get("action").asText(), action.get("userid").asText(), action.get("chatroomname").asText(), action.get("chatmessage").asText());
+                        msg.setRecipientSessionId(sessionid);
+                        return msg;
+                    }
+                    case "UserWantsToCreateGame": {
+                        ArrayList<String> toInv = mapper.convertValue(action.get("toinvitedisplaynames"), ArrayList.class);
+                        String[] arr = new String[toInv.size()];
+                        for (int i = 0; i < toInv.size(); i++) {
+                            arr[i] = toInv.get(i);
+                        }
+                        msg = new UserWantsToCreateGame(action.get("action").asText(), action.get("hostid").asText(), arr);
+                        msg.setRecipientSessionId(sessionid);
+                        return msg;
+                    }
+                    case "UserDoesPieceMove": {
+                        msg = new UserDoesPieceMove(action.get("action").asText(), action.get("gameid").asText(), action.get("playerid").asInt(), action.get("piecemoved").asInt(), action.get("movedfrom").asInt(), action.get("movedto").asInt());
+                        msg.setRecipientSessionId(sessionid);
+                        return msg;
+                    }
+                    default: {
+                        System.out.println("Unhandled incoming json: " + json);
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (NullPointerException e) {
+                System.out.println("Null pointer on JsonMessageParser " + e.toString());
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package no.ntnu.imt3281.ludo.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import no.ntnu.imt3281.ludo.logic.messages.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JsonMessageParserTest {
+    private static final String CONNECTION_SESSION = "348b2331-14f4-419f-99b1-ad492e8906fa";   // session of the connection
+    private static final String MESSAGE_SESSION = "458b2331-14f4-419f-99b1-ad492e8906fb";      // session sent in the message
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+    private final JsonMessageParser parser = new JsonMessageParser();
+
+    /**
+     * One message of every type the server accepts, the way a client sends it.
+     */
+    private static List<Message> allMessages() {
+        List<Message> messages = new ArrayList<>(Arrays.asList(
+                new ClientLogin("UserDoesLoginManual", "Boby", "BobysFavoriteDog123"),
+                new ClientLogin("UserDoesLoginAuto", "", ""),
+                new ClientRegister("UserDoesRegister", "Samy", "SamysMotherMaidenName"),
+                new UserJoinChat("UserJoinChat", "Global", "user-1"),
+                new UserSentMessage("UserSentMessage", "user-1", "Global", "Hei, er det noen som vil spille?"),
+                new UserLeftChatRoom("UserLeftChatRoom", "user-1", "Global"),
+                new UserListChatrooms("UserListChatrooms"),
+                new UserWantsUsersList("UserWantsUsersList", "user-1", "Sa"),
+                new UserWantsToCreateGame("UserWantsToCreateGame", "user-1", new String[] { "Samy", "Fredy" }),
+                new UserDoesGameInvitationAnswer("UserDoesGameInvitationAnswer", true, "user-2", "game-1"),
+                new UserLeftGame("UserLeftGame", "game-1"),
+                new UserDoesDiceThrow("UserDoesDiceThrow", 2, "game-1"),
+                new UserDoesPieceMove("UserDoesPieceMove", "game-1", 1, 3, 12, 18),
+                new UserDoesRandomGameSearch("UserDoesRandomGameSearch", "user-1"),
+                new UserWantToViewProfile("UserWantToViewProfile", "Samy", true),
+                new UserWantToEditProfile("UserWantToEditProfile", "Boby", new byte[] { 1, 2, 3, -1 }, "NewPassword"),
+                new UserWantsLeaderboard("UserWantsLeaderboard"),
+                new UserWantsBinaryProtocol("UserWantsBinaryProtocol", "cbor"),
+                new UserWantsAvatar("UserWantsAvatar", "ab12cd", true),
+                new UserWantsOlderChatMessages("UserWantsOlderChatMessages", "Global", 1546300800000L, 42L),
+                new UserWantsRanking("UserWantsRanking", "won", "Samy", 20, 10)));
+        for (Message message : messages) {
+            message.setRecipientSessionId(MESSAGE_SESSION);
+        }
+        return messages;
+    }
+
+    /**
+     * The fields each message type can not do without.
+     */
+    private static Map<String, List<String>> requiredFields() {
+        Map<String, List<String>> required = new HashMap<>();
+        required.put("UserDoesLoginManual", Arrays.asList("recipientSessionId", "username", "password"));
+        required.put("UserDoesLoginAuto", Collections.singletonList("recipientSessionId"));
+        required.put("UserDoesRegister", Arrays.asList("recipientSessionId", "username", "password"));
+        required.put("UserJoinChat", Arrays.asList("chatroomname", "userid"));
+        required.put("UserSentMessage", Arrays.asList("userid", "chatroomname", "chatmessage"));
+        required.put("UserLeftChatRoom", Arrays.asList("userid", "chatroomname"));
+        required.put("UserListChatrooms", Collections.emptyList());
+        required.put("UserWantsUsersList", Arrays.asList("userid", "searchquery"));
+        required.put("UserWantsToCreateGame", Arrays.asList("hostid", "toinvitedisplaynames"));
+        required.put("UserDoesGameInvitationAnswer", Arrays.asList("accepted", "userid", "gameid"));
+        required.put("UserLeftGame", Collections.singletonList("gameid"));
+        required.put("UserDoesDiceThrow", Arrays.asList("playerid", "gameid"));
+        required.put("UserDoesPieceMove", Arrays.asList("gameid", "playerid", "piecemoved", "movedfrom", "movedto"));
+        required.put("UserDoesRandomGameSearch", Collections.singletonList("userid"));
+        required.put("UserWantToViewProfile", Collections.singletonList("displayname"));
+        required.put("UserWantToEditProfile", Arrays.asList("displayname", "password"));
+        required.put("UserWantsLeaderboard", Collections.emptyList());
+        required.put("UserWantsBinaryProtocol", Collections.singletonList("format"));
+        required.put("UserWantsAvatar", Collections.singletonList("avatarhash"));
+        required.put("UserWantsOlderChatMessages", Arrays.asList("chatroomname", "before", "beforeId"));
+        required.put("UserWantsRanking", Arrays.asList("category", "count"));
+        return required;
+    }
+
+    /**
+     * Login and register keep the session id they were sent with, all other messages get the one of the connection.
+     */
+    private static String expectedSession(String action) {
+        return requiredFields().get(action).contains("recipientSessionId") ? MESSAGE_SESSION : CONNECTION_SESSION;
+    }
+
+    /**
+     * Every message type comes out of the parser the same as it went into the client's ObjectMapper.
+     */
+    @Test
+    public void parsesEveryActionFromJson() throws Exception {
+        assertEquals(requiredFields().size(), allMessages().size());
+        for (Message message : allMessages()) {
+            Message parsed = parser.parseJson(mapper.writeValueAsString(message), CONNECTION_SESSION);
+            assertSameMessage(message, parsed);
+        }
+    }
+
+    /**
+     * The binary protocol gives the same messages as json.
+     */
+    @Test
+    public void parsesEveryActionFromCbor() throws Exception {
+        for (Message message : allMessages()) {
+            Message parsed = parser.parseCbor(cborMapper.writeValueAsBytes(message), CONNECTION_SESSION);
+            assertSameMessage(message, parsed);
+        }
+    }
+
+    /**
+     * A message missing any of its required fields is discarded, one missing an optional field is not.
+     */
+    @Test
+    public void rejectsMissingRequiredFields() {
+        Map<String, List<String>> required = requiredFields();
+        for (Message message : allMessages()) {
+            ObjectNode json = mapper.valueToTree(message);
+            List<String> names = new ArrayList<>();
+            json.fieldNames().forEachRemaining(names::add);
+
+            for (String name : names) {
+                if (name.equals("action")) {
+                    continue;
+                }
+                ObjectNode without = json.deepCopy();
+                without.remove(name);
+                Message parsed = parser.parseJson(without.toString(), CONNECTION_SESSION);
+                if (required.get(message.getAction()).contains(name)) {
+                    assertNull(message.getAction() + " without " + name, parsed);
+                } else {
+                    assertNotNull(message.getAction() + " without " + name, parsed);
+                }
+            }
+        }
+
+        // Optional fields that are left out get their default value
+        UserWantsRanking ranking = (UserWantsRanking) parser.parseJson(
+                "{\"action\":\"UserWantsRanking\",\"category\":\"played\",\"count\":5}", CONNECTION_SESSION);
+        assertNull(ranking.getDisplayname());
+        assertEquals(0, ranking.getFrom());
+        UserWantsAvatar avatar = (UserWantsAvatar) parser.parseJson(
+                "{\"action\":\"UserWantsAvatar\",\"avatarhash\":\"ab12cd\"}", CONNECTION_SESSION);
+        assertFalse(avatar.isThumbnail());
+    }
+
+    /**
+     * Fields can come in any order, and fields no message uses are skipped, even if they hold objects.
+     */
+    @Test
+    public void fieldOrderDoesNotMatter() throws Exception {
+        for (Message message : allMessages()) {
+            ObjectNode json = mapper.valueToTree(message);
+            List<String> names = new ArrayList<>();
+            json.fieldNames().forEachRemaining(names::add);
+            Collections.reverse(names);
+
+            ObjectNode reversed = mapper.createObjectNode();
+            reversed.set("unused", mapper.readTree("{\"action\":\"UserLeftGame\",\"gameid\":[1,{\"a\":null}]}"));
+            for (String name : names) {
+                reversed.set(name, json.get(name));
+            }
+            assertSameMessage(message, parser.parseJson(reversed.toString(), CONNECTION_SESSION));
+        }
+    }
+
+    /**
+     * Null, arrays and objects are read the same way JsonNode.asText() and asInt() read them.
+     */
+    @Test
+    public void nullAndArrayValues() {
+        UserSentMessage sent = (UserSentMessage) parser.parseJson("{\"action\":\"UserSentMessage\","
+                + "\"userid\":null,\"chatroomname\":[\"Global\"],\"chatmessage\":{\"text\":\"Hei\"}}", CONNECTION_SESSION);
+        assertEquals("null", sent.getUserid());
+        assertEquals("", sent.getChatroomname());
+        assertEquals("", sent.getChatmessage());
+
+        UserDoesPieceMove move = (UserDoesPieceMove) parser.parseJson("{\"action\":\"UserDoesPieceMove\","
+                + "\"gameid\":\"game-1\",\"playerid\":\"2\",\"piecemoved\":null,\"movedfrom\":[5],\"movedto\":7}", CONNECTION_SESSION);
+        assertEquals(2, move.getPlayerid());
+        assertEquals(0, move.getPiecemoved());
+        assertEquals(0, move.getMovedfrom());
+        assertEquals(7, move.getMovedto());
+
+        UserWantsToCreateGame create = (UserWantsToCreateGame) parser.parseJson("{\"action\":\"UserWantsToCreateGame\","
+                + "\"hostid\":\"user-1\",\"toinvitedisplaynames\":[\"Samy\",null,3]}", CONNECTION_SESSION);
+        assertArrayEquals(new String[] { "Samy", null, "3" }, create.getToinvitedisplaynames());
+        create = (UserWantsToCreateGame) parser.parseJson("{\"action\":\"UserWantsToCreateGame\","
+                + "\"hostid\":\"user-1\",\"toinvitedisplaynames\":[]}", CONNECTION_SESSION);
+        assertEquals(0, create.getToinvitedisplaynames().length);
+
+        // The invited players must be an array
+        assertNull(parser.parseJson("{\"action\":\"UserWantsToCreateGame\","
+                + "\"hostid\":\"user-1\",\"toinvitedisplaynames\":null}", CONNECTION_SESSION));
+        assertNull(parser.parseJson("{\"action\":\"UserWantsToCreateGame\","
+                + "\"hostid\":\"user-1\",\"toinvitedisplaynames\":\"Samy\"}", CONNECTION_SESSION));
+
+        // An avatar that is not base64 text counts as sent, but empty
+        UserWantToEditProfile edit = (UserWantToEditProfile) parser.parseJson("{\"action\":\"UserWantToEditProfile\","
+                + "\"displayname\":\"Boby\",\"imageString\":null,\"password\":\"\"}", CONNECTION_SESSION);
+        assertNull(edit.getImageString());
+    }
+
+    /**
+     * Anything that is not a known message gives null.
+     */
+    @Test
+    public void unknownMessages() {
+        assertNull(parser.parseJson("{\"action\":\"UserDoesSomethingElse\",\"userid\":\"user-1\"}", CONNECTION_SESSION));
+        assertNull(parser.parseJson("{\"userid\":\"user-1\"}", CONNECTION_SESSION));
+        assertNull(parser.parseJson("{\"action\":null}", CONNECTION_SESSION));
+        assertNull(parser.parseJson("[\"UserListChatrooms\"]", CONNECTION_SESSION));
+        assertNull(parser.parseJson("{\"action\":\"UserLeftGame\",\"gameid\":", CONNECTION_SESSION));
+        assertNull(parser.parseCbor(new byte[] { (byte) 0xff, 0x00 }, CONNECTION_SESSION));
+    }
+
+    /**
+     * The parser reuses its field holder, fields from one message must not show up in the next.
+     */
+    @Test
+    public void fieldsDoNotCarryOver() {
+        UserWantsRanking first = (UserWantsRanking) parser.parseJson("{\"action\":\"UserWantsRanking\","
+                + "\"category\":\"won\",\"displayname\":\"Samy\",\"from\":20,\"count\":10}", CONNECTION_SESSION);
+        assertEquals("Samy", first.getDisplayname());
+
+        UserWantsRanking second = (UserWantsRanking) parser.parseJson("{\"action\":\"UserWantsRanking\","
+                + "\"category\":\"won\",\"count\":10}", CONNECTION_SESSION);
+        assertNull(second.getDisplayname());
+        assertEquals(0, second.getFrom());
+
+        // A required field sent in an earlier message does not count
+        assertNull(parser.parseJson("{\"action\":\"UserLeftChatRoom\",\"chatroomname\":\"Global\"}", CONNECTION_SESSION));
+    }
+
+    /**
+     * Checks that a parsed message has the type, fields and session id the sent message should give.
+     */
+    private void assertSameMessage(Message sent, Message parsed) {
+        assertNotNull(sent.getAction(), parsed);
+        assertEquals(sent.getClass(), parsed.getClass());
+        assertEquals(expectedSession(sent.getAction()), parsed.getRecipientSessionId());
+
+        JsonNode expected = mapper.valueToTree(sent);
+        JsonNode actual = mapper.valueToTree(parsed);
+        Iterator<String> names = expected.fieldNames();
+        HashSet<String> checked = new HashSet<>();
+        while (names.hasNext()) {
+            String name = names.next();
+            if (!name.equals("recipientSessionId")) {
+                assertEquals(sent.getAction() + "." + name, expected.get(name), actual.get(name));
+                checked.add(name);
+            }
+        }
+        assertTrue(sent.getAction(), checked.contains("action"));
+    }
+}
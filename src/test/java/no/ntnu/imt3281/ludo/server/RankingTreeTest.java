@@ -0,0 +1,215 @@
+package no.ntnu.imt3281.ludo.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RankingTreeTest {
+
+    /**
+     * Ranking with counts 5, 3, 3, 3, 1. The three players with 3 share rank 2, ordered by name.
+     */
+    private static RankingTree sample() {
+        RankingTree tree = new RankingTree();
+        tree.put("u1", "Dora", 3);
+        tree.put("u2", "Anna", 5);
+        tree.put("u3", "Bob", 3);
+        tree.put("u4", "Eve", 1);
+        tree.put("u5", "Carl", 3);
+        return tree;
+    }
+
+    private static String names(RankingEntry[] entries) {
+        StringBuilder names = new StringBuilder();
+        for (RankingEntry entry : entries) {
+            names.append(entry.getPlayerName()).append(':').append(entry.getCount()).append(':')
+                    .append(entry.getRank()).append(' ');
+        }
+        return names.toString().trim();
+    }
+
+    @Test
+    public void tiesShareRankAndAreOrderedByName() {
+        RankingTree tree = sample();
+
+        assertEquals(5, tree.size());
+        assertEquals("Anna:5:1 Bob:3:2 Carl:3:2 Dora:3:2 Eve:1:5", names(tree.page(0, 10)));
+
+        assertEquals(0, tree.indexOf("u2"));
+        assertEquals(1, tree.indexOf("u3"));
+        assertEquals(2, tree.indexOf("u5"));
+        assertEquals(3, tree.indexOf("u1"));
+        assertEquals(4, tree.indexOf("u4"));
+        assertEquals(1, tree.rankOf("u2"));
+        assertEquals(2, tree.rankOf("u3"));
+        assertEquals(2, tree.rankOf("u1"));
+        assertEquals(5, tree.rankOf("u4"));
+
+        assertEquals(-1, tree.indexOf("nobody"));
+        assertEquals(0, tree.rankOf("nobody"));
+    }
+
+    @Test
+    public void sameNameIsOrderedByUserId() {
+        RankingTree tree = new RankingTree();
+        tree.put("b", "Same", 2);
+        tree.put("a", "Same", 2);
+
+        assertEquals(0, tree.indexOf("a"));
+        assertEquals(1, tree.indexOf("b"));
+        assertEquals(1, tree.rankOf("b"));
+    }
+
+    @Test
+    public void putMovesPlayer() {
+        RankingTree tree = sample();
+
+        assertFalse(tree.put("u4", "Eve", 1));          // nothing changed
+        assertTrue(tree.put("u4", "Eve", 6));
+        assertEquals(5, tree.size());
+        assertEquals("Eve:6:1 Anna:5:2 Bob:3:3 Carl:3:3 Dora:3:3", names(tree.page(0, 10)));
+
+        assertTrue(tree.put("u3", "Bob", 0));
+        assertEquals(4, tree.indexOf("u3"));
+        assertEquals(5, tree.rankOf("u3"));
+        assertEquals(2, tree.indexOf("u5"));
+    }
+
+    @Test
+    public void renameKeepsCount() {
+        RankingTree tree = sample();
+
+        assertTrue(tree.rename("u1", "Aaron"));
+        assertEquals("Anna:5:1 Aaron:3:2 Bob:3:2 Carl:3:2 Eve:1:5", names(tree.page(0, 10)));
+        assertFalse(tree.rename("u1", "Aaron"));
+        assertFalse(tree.rename("nobody", "Zed"));
+        assertEquals(5, tree.size());
+    }
+
+    @Test
+    public void removePlayer() {
+        RankingTree tree = sample();
+
+        tree.remove("u2");
+        assertEquals(4, tree.size());
+        assertEquals(-1, tree.indexOf("u2"));
+        assertEquals(0, tree.rankOf("u2"));
+        assertEquals("Bob:3:1 Carl:3:1 Dora:3:1 Eve:1:4", names(tree.page(0, 10)));
+
+        tree.remove("u2");                                  // not there any more
+        tree.remove("u5");
+        assertEquals(3, tree.size());
+        assertEquals(1, tree.indexOf("u1"));
+
+        tree.remove("u1");
+        tree.remove("u3");
+        tree.remove("u4");
+        assertEquals(0, tree.size());
+        assertEquals(0, tree.page(0, 10).length);
+    }
+
+    @Test
+    public void pageRanksAtBoundaries() {
+        RankingTree tree = sample();
+
+        // Starting in the middle of the players with 3, the rank comes from the players above
+        assertEquals("Carl:3:2 Dora:3:2", names(tree.page(2, 2)));
+        assertEquals("Dora:3:2 Eve:1:5", names(tree.page(3, 2)));
+        // Starting right after them
+        assertEquals("Eve:1:5", names(tree.page(4, 2)));
+        // Ending in the middle of them
+        assertEquals("Anna:5:1 Bob:3:2", names(tree.page(0, 2)));
+
+        assertEquals(0, tree.page(5, 2).length);
+        assertEquals(0, tree.page(0, 0).length);
+        assertEquals("Anna:5:1 Bob:3:2", names(tree.page(-3, 2)));
+    }
+
+    @Test
+    public void buildReplacesRanking() {
+        RankingTree tree = new RankingTree();
+        tree.put("old", "Old", 100);
+
+        List<UserInfo> users = Arrays.asList(
+                new UserInfo("u1", "Dora", null, 10, 3),
+                new UserInfo("u2", "Anna", null, 10, 5),
+                new UserInfo("u3", "Bob", null, 10, 3),
+                new UserInfo("u4", "Eve", null, 10, 1),
+                new UserInfo("u5", "Carl", null, 10, 3));
+        tree.build(users, UserInfo::getGamesWon);
+
+        assertEquals(5, tree.size());
+        assertEquals(-1, tree.indexOf("old"));
+        assertEquals(names(sample().page(0, 10)), names(tree.page(0, 10)));
+
+        // The built tree can be changed like any other
+        tree.put("u6", "Finn", 4);
+        assertEquals(1, tree.indexOf("u6"));
+        assertEquals(3, tree.rankOf("u5"));
+
+        tree.build(new ArrayList<>(), UserInfo::getGamesWon);
+        assertEquals(0, tree.size());
+        assertEquals(-1, tree.indexOf("u6"));
+    }
+
+    /**
+     * Makes random changes and compares the tree with a sorted list after each one.
+     */
+    @Test
+    public void matchesSortedList() {
+        Random random = new Random(3281);
+        RankingTree tree = new RankingTree();
+        String[][] players = new String[60][];                  // userId, displayName, count; null if not added
+
+        for (int step = 0; step < 2000; step++) {
+            int i = random.nextInt(players.length);
+            if (random.nextInt(5) == 0) {
+                tree.remove("u" + i);
+                players[i] = null;
+            } else {
+                String name = "p" + random.nextInt(20);
+                int count = random.nextInt(8);
+                tree.put("u" + i, name, count);
+                players[i] = new String[]{"u" + i, name, Integer.toString(count)};
+            }
+
+            List<String[]> sorted = new ArrayList<>();
+            for (String[] player : players) {
+                if (player != null) {
+                    sorted.add(player);
+                }
+            }
+            sorted.sort(Comparator.<String[]>comparingInt(p -> -Integer.parseInt(p[2]))
+                    .thenComparing(p -> p[1]).thenComparing(p -> p[0]));
+
+            assertEquals(sorted.size(), tree.size());
+            RankingEntry[] all = tree.page(0, sorted.size());
+            int[] ranks = new int[sorted.size()];
+            for (int at = 0; at < sorted.size(); at++) {
+                String[] player = sorted.get(at);
+                ranks[at] = at == 0 || !player[2].equals(sorted.get(at - 1)[2]) ? at + 1 : ranks[at - 1];
+                assertEquals(at, tree.indexOf(player[0]));
+                assertEquals(ranks[at], tree.rankOf(player[0]));
+                assertEquals(player[1], all[at].getPlayerName());
+                assertEquals(ranks[at], all[at].getRank());
+            }
+
+            // A page starting anywhere gives the same ranks
+            int from = random.nextInt(sorted.size() + 1);
+            RankingEntry[] page = tree.page(from, 3);
+            assertEquals(Math.min(3, sorted.size() - from), page.length);
+            for (int at = 0; at < page.length; at++) {
+                assertEquals(sorted.get(from + at)[1], page[at].getPlayerName());
+                assertEquals(ranks[from + at], page[at].getRank());
+            }
+        }
+    }
+}
@@ -238,8 +238,6 @@ public class ServerTest {
         System.out.println("Got Message Client 2: " + gotMessage); //Mainly for debugging purposes
         assertTrue(gotMessage.contains("\"playersinlobby\":[\"test\",\"test2\"]}"));
 
-        gotMessage = br_client_2.readLine();
-        System.out.println("Got Message Client 2: " + gotMessage); //Mainly for debugging purposes
         gotMessage = br_client_2.readLine();
         System.out.println("Got Message Client 2: " + gotMessage); //Mainly for debugging purposes
         assertTrue(gotMessage.contains("{\"action\":\"GameHasStartedResponse\",\"gameid\":"));
@@ -305,6 +303,20 @@ public class ServerTest {
         assertTrue(gotMessage.contains("\"changed\":true,\"response\":\"server.userEditProfileNoPW\""));
     }
 
+    @Test
+    public void GclientWantsRanking() throws IOException {
+        String userWantsRanking = "{\"action\":\"UserWantsRanking\",\"category\":\"won\",\"displayname\":\"testhei\",\"from\":0,\"count\":5}";
+
+        bw_client_1.write(userWantsRanking);
+        bw_client_1.newLine();
+        bw_client_1.flush();
+
+        String gotMessage = br_client_1.readLine();
+        System.out.println("Got Message Client1 : " + gotMessage); //Mainly for debugging purposes
+        assertTrue(gotMessage.contains("{\"action\":\"RankingResponse\",\"category\":\"won\",\"displayname\":\"testhei\",\"rank\":1,"));
+        assertTrue(gotMessage.contains("{\"playerName\":\"testhei\",\"count\":0,\"rank\":1}"));
+    }
+
     @Test
     public void GclientWantsTopTen() throws IOException {
         String userEditProfile = "{\"action\":\"UserWantsLeaderboard\"}";